@@ -0,0 +1,31 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package android.util;
+
+/**
+ * Desktop stand-in for the Android class, just enough for the library classes under benchmark to compile and
+ * run on a plain JVM.  Log output is discarded.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv.benchmarks;
+
+import android.util.Pair;
+import net.nologin.meep.tbv.GridAnchor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GridAnchor#getPosition(int, int, int)}, used by the view when moving to a tile.  Cheap, but it boxes its
+ * result into a pair, so it's here to catch any growth in that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridAnchorBenchmark {
+
+    private static final GridAnchor[] ANCHORS = GridAnchor.values();
+
+    @Benchmark
+    @OperationsPerInvocation(9)
+    public void allAnchors(Blackhole bh) {
+
+        for (GridAnchor anchor : ANCHORS) {
+            Pair<Integer, Integer> pos = anchor.getPosition(1280, 800, 256);
+            bh.consume(pos);
+        }
+    }
+}
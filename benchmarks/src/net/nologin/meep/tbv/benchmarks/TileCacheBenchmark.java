@@ -0,0 +1,172 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv.benchmarks;
+
+import net.nologin.meep.tbv.Tile;
+import net.nologin.meep.tbv.TileCache;
+import net.nologin.meep.tbv.TileRange;
+import net.nologin.meep.tbv.ViewState;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link TileCache} behind <code>AsyncTileProvider</code>, driven the way the provider drives it.
+ * <br/><br/>
+ * {@link #lookup(ProbeMix, Blackhole)} probes a cache of 1024 tiles with a fixed mix of hits and misses.
+ * {@link #loadCycle(Blackhole)} takes a strip of tiles through a whole request, claim and publish cycle, then
+ * evicts them.  {@link #panFrames(Blackhole)} gets its mix from a scripted pan - on a range change, tiles and
+ * requests more than a tile outside the new range are evicted and cancelled (the provider's default cache padding),
+ * and every event, each visible tile is looked up, with misses requested and loaded straight away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileCacheBenchmark {
+
+    private static final int PROBES = 4096;
+    private static final int STRIP_LENGTH = 64;
+    private static final int PAN_EVENTS = 256;
+    private static final int CACHE_PADDING = 1;
+
+    private ViewState panState;
+    private final TileCache panCache = new TileCache();
+    private final int[] panDx = new int[PAN_EVENTS];
+
+    private final TileCache loadCache = new TileCache();
+    private final List<TileRange> noRanges = Collections.emptyList();
+
+    /**
+     * A cache with a fixed mix of hits and misses to probe it with, for {@link #lookup(ProbeMix, Blackhole)}
+     */
+    @State(Scope.Thread)
+    public static class ProbeMix {
+
+        @Param({"50", "90", "99"})
+        public int hitPercent;
+
+        final TileCache cache = new TileCache();
+        final int[] probeX = new int[PROBES], probeY = new int[PROBES];
+
+        @Setup
+        public void setup() {
+
+            // a 32x32 block of cached tiles, misses probe the block to the right of it
+            for (int y = 0; y < 32; y++) {
+                for (int x = 0; x < 32; x++) {
+                    cache.put(new Tile(x, y));
+                }
+            }
+
+            Random rnd = new Random(42);
+            for (int i = 0; i < PROBES; i++) {
+                boolean hit = rnd.nextInt(100) < hitPercent;
+                probeX[i] = rnd.nextInt(32) + (hit ? 0 : 32);
+                probeY[i] = rnd.nextInt(32);
+            }
+        }
+    }
+
+    @Setup
+    public void setup() {
+
+        Random rnd = new Random(42);
+
+        // steady horizontal drags of a few px per event, reversing now and then
+        panState = new ViewState(1280, 800, 256, null);
+        panState.applySurfaceOffset(0, 0);
+        int dir = 1;
+        for (int i = 0; i < PAN_EVENTS; i++) {
+            if (rnd.nextInt(64) == 0) {
+                dir = -dir;
+            }
+            panDx[i] = dir * (4 + rnd.nextInt(12));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public void lookup(ProbeMix mix, Blackhole bh) {
+
+        for (int i = 0; i < PROBES; i++) {
+            bh.consume(mix.cache.get(Tile.createCacheKey(mix.probeX[i], mix.probeY[i])));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STRIP_LENGTH)
+    public void loadCycle(Blackhole bh) {
+
+        for (int x = 0; x < STRIP_LENGTH; x++) {
+            loadTile(loadCache, x, 0);
+        }
+
+        loadCache.evict(noRanges, CACHE_PADDING, 0, 0);
+        Tile t;
+        while ((t = loadCache.pollEvicted()) != null) {
+            bh.consume(t);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAN_EVENTS)
+    public void panFrames(Blackhole bh) {
+
+        for (int i = 0; i < PAN_EVENTS; i++) {
+
+            if (panState.applySurfaceOffsetRelative(panDx[i], 0)) {
+
+                Tile t;
+                while ((t = panCache.pollEvicted()) != null) {
+                    bh.consume(t);
+                }
+
+                List<TileRange> ranges = Collections.singletonList(panState.getVisibleTileRange());
+                panCache.evict(ranges, CACHE_PADDING, 0, 0);
+                bh.consume(panCache.cancel(ranges, CACHE_PADDING, 0, 0));
+            }
+
+            TileRange range = panState.getVisibleTileRange();
+            for (int y = range.top; y <= range.bottom; y++) {
+                for (int x = range.left; x <= range.right; x++) {
+                    Tile t = panCache.get(Tile.createCacheKey(x, y));
+                    if (t == null) {
+                        t = loadTile(panCache, x, y);
+                    }
+                    bh.consume(t);
+                }
+            }
+        }
+    }
+
+    /* request, claim and publish a tile, as the provider's range change and worker do */
+    private static Tile loadTile(TileCache cache, int x, int y) {
+
+        Tile t = new Tile(x, y);
+        if (cache.request(t) && cache.claim(t, 0) && cache.complete(t)) {
+            cache.put(t);
+        }
+        return t;
+    }
+}
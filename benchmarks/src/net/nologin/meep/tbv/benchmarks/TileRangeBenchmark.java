@@ -0,0 +1,92 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv.benchmarks;
+
+import net.nologin.meep.tbv.TileRange;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TileRange} construction, and the <code>contains</code> checks the providers make for every tile request
+ * and eviction pass.  The probe points are spread over an area a few times the size of the range, so roughly a
+ * quarter of them are inside it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileRangeBenchmark {
+
+    private static final int PROBES = 1024;
+
+    private final TileRange range = new TileRange(-3, -2, 6, 4); // about a 2560x1600 screen of 256px tiles
+    private final int[] probeX = new int[PROBES], probeY = new int[PROBES];
+
+    private int left, top;
+
+    @Setup
+    public void setup() {
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < PROBES; i++) {
+            probeX[i] = range.left - 5 + rnd.nextInt(range.numTilesHorizontal() * 2);
+            probeY[i] = range.top - 4 + rnd.nextInt(range.numTilesVertical() * 2);
+        }
+    }
+
+    @Benchmark
+    public TileRange construct() {
+
+        // vary the bounds, as the scroll path does
+        left++;
+        top--;
+        return new TileRange(left, top, left + 9, top + 6);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public void contains(Blackhole bh) {
+
+        for (int i = 0; i < PROBES; i++) {
+            bh.consume(range.contains(probeX[i], probeY[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public void containsPadded(Blackhole bh) {
+
+        for (int i = 0; i < PROBES; i++) {
+            bh.consume(range.contains(probeX[i], probeY[i], 2));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public void containsWrapped(Blackhole bh) {
+
+        // a wrap-around tile space only a little wider than the range
+        for (int i = 0; i < PROBES; i++) {
+            bh.consume(range.contains(probeX[i], probeY[i], 1, 16, 12));
+        }
+    }
+}
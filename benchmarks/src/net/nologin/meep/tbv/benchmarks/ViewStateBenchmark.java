@@ -0,0 +1,96 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv.benchmarks;
+
+import net.nologin.meep.tbv.TileRange;
+import net.nologin.meep.tbv.ViewState;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The view's scroll path - {@link ViewState#applySurfaceOffsetRelative(int, int)} is called for every scroll event,
+ * so it's replayed here under a scripted series of pans, much like those of a user dragging and flinging around a
+ * 1280x800 surface.  Most events move less than a tile, so only some of them change the visible range.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewStateBenchmark {
+
+    private static final int SCRIPT_EVENTS = 1024;
+
+    @Param({"64", "256"})
+    public int tileSize;
+
+    private ViewState state;
+    private final int[] dx = new int[SCRIPT_EVENTS], dy = new int[SCRIPT_EVENTS];
+
+    @Setup
+    public void setup() {
+
+        state = new ViewState(1280, 800, tileSize, null);
+        state.applySurfaceOffset(0, 0);
+
+        /* drags of a few px per event, mixed with flings that start fast and slow down, in random directions.  Seeded,
+         * so every run replays the same script */
+        Random rnd = new Random(42);
+        int i = 0;
+        while (i < SCRIPT_EVENTS) {
+
+            double angle = rnd.nextDouble() * 2 * Math.PI;
+            float speed = rnd.nextBoolean() ? 2 + rnd.nextInt(6) : 40 + rnd.nextInt(80);
+
+            for (; speed >= 1 && i < SCRIPT_EVENTS; speed *= 0.9f, i++) {
+                dx[i] = (int) (Math.cos(angle) * speed);
+                dy[i] = (int) (Math.sin(angle) * speed);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCRIPT_EVENTS)
+    public void scriptedPan(Blackhole bh) {
+
+        for (int i = 0; i < SCRIPT_EVENTS; i++) {
+            bh.consume(state.applySurfaceOffsetRelative(dx[i], dy[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCRIPT_EVENTS)
+    public void scriptedPanWithRangeFetch(Blackhole bh) {
+
+        // as the view does - the range is fetched for the provider whenever it changes
+        for (int i = 0; i < SCRIPT_EVENTS; i++) {
+            if (state.applySurfaceOffsetRelative(dx[i], dy[i])) {
+                TileRange range = state.getVisibleTileRange();
+                bh.consume(range);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object updatedSnapshot() {
+        return state.getUpdatedSnapshot();
+    }
+}
@@ -48,6 +48,12 @@ public class DemoTileProvider extends GenericTileProvider {
 
     private static final String DEBUG_SUMMARY_FMT = "StonesProv[cache=%d]";
 
+    // the cache tier name that our resource bitmap cache hits/misses are recorded under
+    private static final String CACHE_TIER_RES = "res";
+
+    // the 25 stone tiles repeat every 5 tiles in each direction
+    private static final int WRAP_PERIOD = 5;
+
     // used for the starting and stopping of background tasks
     private ExecutorService executorService;
     private Future lastSubmittedTask;
@@ -79,8 +85,15 @@ public class DemoTileProvider extends GenericTileProvider {
 
         /* as the TileProvider docs say, return empty tiles here if necessary, we can use 'hasFreshData'
          * to get the provider to do another pull of tiles later. */
-        return tileCache.get(Tile.createCacheKey(x, y));
+        return tileCache.get(Tile.createCacheKey(Tile.wrapId(x, WRAP_PERIOD), Tile.wrapId(y, WRAP_PERIOD)));
+
+    }
+
+    @Override
+    public Integer[] getConfigWrapPeriod() {
 
+        // the texture repeats, so we only ever need to cache one 5x5 period of tiles, however far we scroll
+        return new Integer[]{WRAP_PERIOD, WRAP_PERIOD};
     }
 
     @Override
@@ -100,16 +113,21 @@ public class DemoTileProvider extends GenericTileProvider {
          * that much memory for the tiles, so we add a buffer of 1 to our criteria so when we scroll back to
          * already seen tiles, they'll still have bitmap data.
          */
+        TileTracer tracer = TileTracer.get();
+
         Collection<Tile> entries = tileCache.values();
         for (Tile t : entries) {
-            if (t.getBmpData() != null && !newRange.contains(t, 1)) {
+            if (t.getBmpData() != null && !newRange.contains(t.xId, t.yId, 1, WRAP_PERIOD, WRAP_PERIOD)) {
                 t.clearBmpData();
+                tracer.tileEvicted(t.xId, t.yId);
             }
 
         }
 
-        // create a list of all the requested tiles that have no bitmap data
+        /* create a list of all the requested tiles that have no bitmap data.  The coordinates wrap, so a screen
+         * more than 5 tiles across will see the same tile more than once - only queue it the first time */
         List<Tile> renderQueue = new LinkedList<Tile>();
+        Set<Long> queued = new HashSet<Long>();
         Tile t;
 
         for (int y = newRange.top; y <= newRange.bottom; y++) {
@@ -117,7 +135,13 @@ public class DemoTileProvider extends GenericTileProvider {
 
                 t = getTile(x, y);
                 if (t == null || t.getBmpData() == null) {
-                    renderQueue.add(new Tile(x, y));
+
+                    int wrappedX = Tile.wrapId(x, WRAP_PERIOD);
+                    int wrappedY = Tile.wrapId(y, WRAP_PERIOD);
+                    if (queued.add(Tile.createCacheKey(wrappedX, wrappedY))) {
+                        renderQueue.add(new Tile(wrappedX, wrappedY));
+                        tracer.tileRequested(wrappedX, wrappedY);
+                    }
                 }
 
             }
@@ -154,12 +178,16 @@ public class DemoTileProvider extends GenericTileProvider {
         public void run() {
 
             Context ctx = getContext();
+            TileMetrics metrics = getMetrics();
 
             while (!renderQueue.isEmpty()) {
 
+                metrics.setQueueDepth(renderQueue.size());
+
                 // always keep checking to see if the view has requested that we stop
                 if (Thread.currentThread().isInterrupted()) {
                     Log.d(Utils.LOG_TAG, "Current queue processing being interruped");
+                    metrics.recordCancelled(renderQueue.size());
                     return;
                 }
 
@@ -169,26 +197,28 @@ public class DemoTileProvider extends GenericTileProvider {
                     continue; // nothing to do
                 }
 
-                Log.d(Utils.LOG_TAG, "Processing tile " + t);
-
-                // have tileable resources and rows and cols 1-5, loop our indexes to match
-                // http://stackoverflow.com/a/4412200/276183 for handling negative mod in java
-                int col = (t.xId % 5 + 5) % 5 + 1;
-                int row = (t.yId % 5 + 5) % 5 + 1;
+                // have tileable resources and rows and cols 1-5, queued tile IDs are already wrapped to 0-4
+                int col = t.xId + 1;
+                int row = t.yId + 1;
                 String resName = "sr" + row + "c" + col;
 
                 Bitmap bmp = resCache.get(resName);
 
                 if (bmp == null) {
 
+                    metrics.recordCacheMiss(CACHE_TIER_RES);
+
                     int resID = ctx.getResources().getIdentifier(resName, "drawable", ctx.getPackageName());
                     bmp = BitmapFactory.decodeResource(ctx.getResources(), resID);
                     resCache.put(resName, bmp);
 
+                } else {
+                    metrics.recordCacheHit(CACHE_TIER_RES);
                 }
 
 
                 t.setBmpData(bmp);
+                TileTracer.get().tileReady(t.xId, t.yId);
 
                 // cache the tile so the next getTile() for this tile will offer something the view can render
                 tileCache.put(t.cacheKey, t);
@@ -197,6 +227,7 @@ public class DemoTileProvider extends GenericTileProvider {
                 hasFreshData.set(true);
             }
 
+            metrics.setQueueDepth(0);
             Log.d(Utils.LOG_TAG,"Queue processing finished normally");
         }
     }
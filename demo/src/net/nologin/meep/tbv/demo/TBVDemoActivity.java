@@ -72,8 +72,13 @@ public class TBVDemoActivity extends Activity {
             }
         });
 
-        // register our 'demo' tile provider
-        demoProvider = new DemoTileProvider(this);
+        /* register our 'demo' tile provider.  It's kept across rotation (along with the tiles it has cached), so
+         * the view can carry on where it left off without reloading.  Since it outlives this activity, it gets the
+         * application context rather than the activity */
+        demoProvider = (DemoTileProvider) getLastNonConfigurationInstance();
+        if (demoProvider == null) {
+            demoProvider = new DemoTileProvider(getApplicationContext());
+        }
         tiledBitmapView.registerProvider(demoProvider);
         btnToggleProvider.setChecked(true);
 
@@ -115,6 +120,9 @@ public class TBVDemoActivity extends Activity {
 
     }
 
-}
-
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return demoProvider;
+    }
 
+}
@@ -0,0 +1,699 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A base class for providers that load their tile bitmaps in the background, taking care of the bookkeeping
+ * described in the {@link TileProvider} javadoc.  Subclasses just implement {@link #loadTileBitmap(Tile)}.
+ * <br/><br/>
+ * <b>Cache</b>: Loaded tiles are kept in a {@link TileCache}, keyed by {@link Tile#cacheKey}.  If the tile space
+ * wraps around (see {@link TileProvider#getConfigWrapPeriod()}), coordinates are normalised to the first period
+ * before lookups and requests, so the tiles passed to {@link #loadTileBitmap(Tile)} always have normalised IDs,
+ * and a repeating surface never holds more than one period's worth of tiles.  Tiles missing from the provider's
+ * {@link TileProvider#getConfigExistenceIndex() existence index} are never requested.  On every range change, tiles
+ * further than {@link #setCachePadding(int) cachePadding} tiles outside the new range are evicted (subclasses
+ * can hook {@link #onTileEvicted(Tile)}, called a range change later, to eg return the bitmap to a
+ * {@link BitmapPool}).
+ * <br/><br/>
+ * <b>Loading</b>: On every range change, the missing tiles in range are grouped into horizontal strips (runs of
+ * adjacent tiles in the same row), nearest the middle row first, and handed to a fixed pool of worker threads.
+ * Each strip is passed to {@link #loadStrip(List)}, which by default loads the tiles one at a time, but can be
+ * overridden by sources that can fetch a whole strip at once.  A tile request that's already queued or in progress
+ * is never duplicated, and requests for tiles that go out of range are dropped (any in-progress result for them
+ * is discarded, see {@link #onRequestCancelled(Tile)}).
+ * <br/><br/>
+ * <b>Progressive loading</b>: Subclasses with slow loads can also override {@link #loadTilePreview(Tile)} to
+ * provide a cheap low resolution preview of each tile (eg a heavily subsampled decode).  Each strip then gets a
+ * preview pass before the full loads, so the view has something to show for every tile in the strip long before
+ * the last full bitmap arrives.
+ * <br/><br/>
+ * <b>Invalidation</b>: When the source data changes, {@link #invalidate(TileRange)} or {@link #invalidateAll()}
+ * marks the cached tiles {@link Tile#isStale() stale} and requests fresh copies, but the stale tiles stay on screen
+ * until their replacements arrive (rather than blanking, as {@link #clearCache()} does).  Each invalidation starts a
+ * new cache epoch, and a load that started in an earlier epoch is published as stale and requested again.
+ * <br/><br/>
+ * <b>Sharing</b>: One provider can serve several views through a {@link SharedTileService}, in which case it's
+ * interested in several ranges at once - a tile stays cached while it's near any of them, a tile needed by more
+ * than one view is only requested once, and the strips for the most recently moved view are queued first.
+ * <br/><br/>
+ * The queue depth, cancellations and memory cache hits are recorded in the provider's {@link TileMetrics}.
+ */
+public abstract class AsyncTileProvider extends GenericTileProvider {
+
+    private static final String DEBUG_SUMMARY_FMT = "%s[cache=%d,q=%d]";
+
+    /**
+     * The cache tier that hits and misses of this class's in-memory tile cache are recorded under.
+     */
+    public static final String CACHE_TIER_MEMORY = "memory";
+
+    /* loaded and requested tiles, getTile and onTileIDRangeChange are invoked on different threads, both access
+     * this.  Evicted tiles are held until the next range change before onTileEvicted() is called, as the rendering
+     * thread may still be drawing a frame of the range they were evicted from */
+    private final TileCache tileCache = new TileCache();
+
+    // strips of pending tiles, waiting for a worker
+    private final Queue<List<Tile>> stripQueue = new ConcurrentLinkedQueue<List<Tile>>();
+
+    // used to let the hasFreshData call know when we've got something for it to render
+    private final AtomicBoolean hasFreshData = new AtomicBoolean(false);
+
+    private final int numThreads;
+    private ExecutorService executorService;
+
+    // the ranges of interest as of the last range change, the first being the most recently moved view's
+    private volatile List<TileRange> currentRanges = Collections.emptyList();
+
+    // the tile space's wrap periods (0 if not wrapping), as of the last range change
+    private volatile int wrapX, wrapY;
+    private volatile int cachePadding = 1;
+    private volatile boolean prepareToDraw = false;
+    private volatile TileHints tileHints;
+
+    // bumped by every invalidation, tiles whose load started before the epoch that invalidated them are stale
+    private final AtomicInteger epoch = new AtomicInteger();
+    private volatile int invalidAllEpoch;
+
+    /**
+     * @param ctx        The context
+     * @param numThreads The number of worker threads to load tiles on
+     */
+    protected AsyncTileProvider(Context ctx, int numThreads) {
+        super(ctx);
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Load the bitmap for the specified tile.  Invoked on a worker thread.  This may be invoked concurrently for
+     * different tiles, but never twice for the same request.
+     *
+     * @param tile The tile to load (the bitmap should be returned, not set on the tile)
+     * @return The bitmap, or <code>null</code> if there is no data for this tile.
+     * @throws IOException If the load failed.  The tile won't be retried until it's requested again.  Throw an
+     *                     <code>InterruptedIOException</code> if the load was abandoned because the request was
+     *                     cancelled (see {@link #onRequestCancelled(Tile)}), so it isn't logged as a failure.
+     */
+    protected abstract Bitmap loadTileBitmap(Tile tile) throws IOException;
+
+    /**
+     * Load a strip of horizontally adjacent tiles from the same row (in left to right order).  The default
+     * implementation loads each with {@link #loadTileBitmap(Tile)}.  Implementations that can fetch a strip in one
+     * go can override this, but must {@link #claimTile(Tile)} each tile before loading it, and then either
+     * {@link #publishTile(Tile, Bitmap)} or {@link #abandonTile(Tile)} it.
+     * <br/><br/>
+     * Invoked on a worker thread, and should return early if the thread is interrupted.
+     *
+     * @param strip The tiles to load
+     */
+    protected void loadStrip(List<Tile> strip) {
+
+        List<Tile> claimed = new ArrayList<Tile>(strip.size());
+        for (Tile t : strip) {
+            if (claimTile(t)) {
+                claimed.add(t);
+            }
+            // else no longer needed, or already being loaded
+        }
+
+        // first pass, previews for any tiles not already showing one
+        for (Tile t : claimed) {
+
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            // no point in a preview where a stale full bitmap is still being shown
+            Tile cached = tileCache.get(t.cacheKey);
+            if (t.getPreviewBmpData() == null && (cached == null || cached.getBmpData() == null)) {
+                try {
+                    loadTilePreview(t);
+                } catch (IOException e) {
+                    Log.w(Utils.LOG_TAG, "Failed to load preview of " + t, e); // the full load may still work
+                }
+            }
+        }
+
+        // second pass, the full bitmaps
+        for (int i = 0; i < claimed.size(); i++) {
+
+            Tile t = claimed.get(i);
+
+            if (Thread.currentThread().isInterrupted()) {
+                for (Tile unloaded : claimed.subList(i, claimed.size())) {
+                    abandonTile(unloaded);
+                }
+                return;
+            }
+
+            try {
+                publishTile(t, loadTileBitmap(t));
+            } catch (InterruptedIOException e) {
+                abandonTile(t); // cancelled, not a failure
+            } catch (IOException e) {
+                Log.w(Utils.LOG_TAG, "Failed to load " + t, e);
+                abandonTile(t);
+            } catch (RuntimeException e) {
+                for (Tile unloaded : claimed.subList(i, claimed.size())) {
+                    abandonTile(unloaded);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Load a low resolution preview of the specified tile, and hand it to
+     * {@link #publishPreview(Tile, Bitmap, int)}.  Invoked on a worker thread by {@link #loadStrip(List)}, for
+     * each tile in the strip before any of the full loads.  Does nothing by default.
+     * <br/><br/>
+     * A preview is only worth loading if it's much cheaper than the full bitmap, eg a decode with a large
+     * <code>inSampleSize</code>, or a thumbnail embedded in the source.
+     *
+     * @param tile The tile to load a preview of
+     * @throws IOException If the load failed (the full load still goes ahead)
+     */
+    protected void loadTilePreview(Tile tile) throws IOException {
+        // no previews by default
+    }
+
+    /**
+     * Claim a requested tile for loading, see {@link #loadStrip(List)}.
+     *
+     * @return <code>true</code> if the tile should be loaded by the caller, <code>false</code> if the request has
+     *         since been dropped, or the tile is already being loaded elsewhere.
+     */
+    protected final boolean claimTile(Tile t) {
+
+        return tileCache.claim(t, epoch.get());
+    }
+
+    /**
+     * Complete the load of a tile claimed with {@link #claimTile(Tile)}, making it available to the view.
+     *
+     * @param t   The tile
+     * @param bmp The loaded bitmap, may be <code>null</code> if there's no data for this tile.
+     * @return <code>true</code> if published, <code>false</code> if the request was dropped while loading (in which
+     *         case the bitmap is passed to {@link #onBitmapDiscarded(Bitmap)}).
+     */
+    protected final boolean publishTile(Tile t, Bitmap bmp) {
+
+        if (!tileCache.complete(t)) {
+            if (bmp != null) {
+                onBitmapDiscarded(bmp);
+            }
+            return false;
+        }
+
+        // get the first-draw work out of the way here on the worker, rather than in the middle of a frame
+        if (bmp != null && prepareToDraw) {
+            bmp.prepareToDraw();
+        }
+
+        // remembered after the tile is evicted, so scrolling back shows roughly the right colour straight away
+        TileHints hints = tileHints;
+        if (bmp != null && hints != null) {
+            hints.setColor(t.xId, t.yId, TileHints.averageColor(bmp));
+        }
+
+        // loaded from data that's been invalidated since, show it for now but load it again
+        boolean stale = t.loadEpoch < Math.max(invalidAllEpoch, t.invalidEpoch);
+
+        t.setBmpData(bmp);
+        t.setStale(stale);
+        // a stale tile superseded by this one isn't evicted: the view may still be drawing it until its next
+        // refresh, so its bitmap is left to the garbage collector rather than cleared or handed to a pool
+        tileCache.put(t);
+
+        updateQueueDepth();
+        TileTracer.get().tileReady(t.xId, t.yId);
+
+        TileMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.recordLatency(System.nanoTime() - t.requestNanos);
+        }
+
+        if (stale) {
+            requestReload(t);
+        }
+
+        // next time the provider polls hasFreshData(), it'll trigger a fresh set of getTiles()
+        hasFreshData.set(true);
+
+        return true;
+    }
+
+    /**
+     * Make a preview of a tile claimed with {@link #claimTile(Tile)} available to the view, until the full bitmap
+     * is published.  See {@link Tile#setPreviewBmpData(Bitmap, int)}.
+     *
+     * @param t       The tile
+     * @param preview The preview bitmap
+     * @param scale   The factor the preview is scaled up by when drawn
+     * @return <code>true</code> if published, <code>false</code> if the request has been dropped (or the tile's
+     *         stale full bitmap is still being shown).
+     */
+    protected final boolean publishPreview(Tile t, Bitmap preview, int scale) {
+
+        if (preview == null || !tileCache.isRequested(t)) {
+            return false;
+        }
+
+        // a stale full bitmap is better than a fresh preview
+        Tile cached = tileCache.get(t.cacheKey);
+        if (cached != null && cached != t && cached.getBmpData() != null) {
+            return false;
+        }
+
+        // cached while still pending, so the tile stays requested until the full bitmap arrives
+        t.setPreviewBmpData(preview, scale);
+        tileCache.put(t);
+
+        hasFreshData.set(true);
+
+        return true;
+    }
+
+    /**
+     * Give up on a tile claimed with {@link #claimTile(Tile)}, eg because loading failed.  The tile won't be
+     * retried until the next range change that includes it.
+     */
+    protected final void abandonTile(Tile t) {
+        tileCache.abandon(t);
+        updateQueueDepth();
+    }
+
+    // the metrics are optional (see TileProvider.getMetrics()), a subclass may have opted out
+    private void updateQueueDepth() {
+        TileMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.setQueueDepth(tileCache.numRequests());
+        }
+    }
+
+    /**
+     * Called for a tile evicted from the cache.  The tile won't be used by the provider again.  By default, this
+     * clears the tile's bitmap.
+     * <br/><br/>
+     * The view's rendering thread may still be drawing a frame of the old range when the UI thread changes the
+     * range and the tile is evicted, so this isn't called straight away, but on the following range change (or
+     * when the surface is destroyed), by which time the view has had a chance to draw the new range.  The bitmap
+     * can then be returned to a pool for reuse.  It shouldn't be recycled, though, as there's no hard guarantee
+     * that the view has stopped drawing it (eg after a burst of range changes faster than the frame rate).
+     */
+    protected void onTileEvicted(Tile t) {
+        t.clearBmpData();
+    }
+
+    /**
+     * Called when a bitmap loaded for a tile can't be used, because the request was dropped during the load.
+     * Does nothing by default, subclasses can return the bitmap to a pool.
+     */
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        // nothing to do by default
+    }
+
+    /**
+     * Called (on the UI thread) when a request is dropped because the tile has gone out of range.  The tile may
+     * still be loading on a worker thread, in which case the result will be discarded, but implementations with
+     * interruptible loads (eg network requests) can use this to abort early.
+     */
+    protected void onRequestCancelled(Tile t) {
+        // nothing to do by default
+    }
+
+    /**
+     * @param padding The number of tiles beyond the visible range in each direction that stay cached after a
+     *                range change (default 1).
+     */
+    public void setCachePadding(int padding) {
+        this.cachePadding = Math.max(0, padding);
+    }
+
+    /**
+     * @param prepareToDraw <code>true</code> to call {@link Bitmap#prepareToDraw()} on each tile bitmap as it's
+     *                      published, on the worker thread, so the first draw of the tile doesn't have to do that
+     *                      work on the rendering thread (default <code>false</code>).
+     */
+    public void setPrepareToDraw(boolean prepareToDraw) {
+        this.prepareToDraw = prepareToDraw;
+    }
+
+    /**
+     * Record each tile's average colour in the specified hints as it loads, and return them from
+     * {@link #getConfigTileHints()}, so tiles that have been seen before show a colour hint while they reload.
+     * The cost is sampling 64 pixels of each loaded tile, on the worker thread.
+     *
+     * @param hints The hints to populate (covering normalised coordinates, in a wrapping tile space), or
+     *              <code>null</code> to stop
+     */
+    public void setTileHints(TileHints hints) {
+        this.tileHints = hints;
+    }
+
+    @Override
+    public TileHints getConfigTileHints() {
+        return tileHints;
+    }
+
+    /**
+     * @return The range as of the last call to {@link #onTileIDRangeChange(TileRange)}, may be <code>null</code>.
+     *         If the provider is shared between views, this is the range of the view that moved most recently.
+     */
+    protected TileRange getCurrentRange() {
+        List<TileRange> ranges = currentRanges;
+        return ranges.isEmpty() ? null : ranges.get(0);
+    }
+
+    /**
+     * @return <code>true</code> if the specified tile is in (or within the cache padding of) the current range, or
+     *         any of the current ranges if the provider is shared between views.  In a wrapping tile space, the
+     *         coordinates are those of the tile (ie normalised).
+     */
+    protected boolean isTileInRange(int x, int y) {
+        return TileCache.isInRanges(currentRanges, x, y, cachePadding, wrapX, wrapY);
+    }
+
+    /**
+     * Drop all cached tiles and outstanding requests, eg because the source data has changed.  The view won't
+     * show the new data until the next range change, so follow this with
+     * {@link TiledBitmapView#requestSurfaceRefresh(boolean) requestSurfaceRefresh(true)}.  To refresh the tiles
+     * without blanking the view in the meantime, use {@link #invalidateAll()} instead.
+     */
+    public void clearCache() {
+
+        cancelRequests(null);
+        tileCache.evictAll(); // may still be on screen, released on the next range change
+
+        hasFreshData.set(true);
+    }
+
+    /**
+     * Mark the cached tiles in the specified range as stale, and request fresh copies of those in the current range.
+     * The stale tiles are still shown until their replacements arrive, and any loads already in progress for the
+     * range are published as stale and loaded again.  Call on the UI thread, like
+     * {@link #onTileIDRangeChange(TileRange)}.
+     *
+     * @param range The range of tile IDs (normalised, in a wrapping tile space) whose data has changed
+     */
+    public void invalidate(TileRange range) {
+
+        tileCache.markStale(range, epoch.incrementAndGet());
+        reloadStaleTiles();
+    }
+
+    /**
+     * As {@link #invalidate(TileRange)}, for every tile, eg when a new version of the source data is published.
+     * Unlike {@link #clearCache()}, the view keeps showing the old tiles until the new ones arrive.
+     */
+    public void invalidateAll() {
+
+        invalidAllEpoch = epoch.incrementAndGet();
+        tileCache.markAllStale();
+        reloadStaleTiles();
+    }
+
+    /**
+     * @return The current cache epoch, incremented by every call to {@link #invalidate(TileRange)} or
+     *         {@link #invalidateAll()}
+     */
+    public int getEpoch() {
+        return epoch.get();
+    }
+
+    /* rebuild the requests for the current ranges, which now treat the stale tiles as missing */
+    private void reloadStaleTiles() {
+
+        hasFreshData.set(true); // so the stale markers get drawn
+
+        List<TileRange> ranges = currentRanges;
+        if (!ranges.isEmpty()) {
+            onTileIDRangesChange(ranges);
+        }
+    }
+
+    /* re-request a tile published as stale, unless there's already a newer request for it */
+    private void requestReload(Tile stale) {
+
+        if (!isTileInRange(stale.xId, stale.yId)) {
+            return;
+        }
+
+        Tile t = new Tile(stale.xId, stale.yId, getConfigTileSize());
+        t.requestNanos = System.nanoTime();
+        if (!tileCache.request(t)) {
+            return;
+        }
+        updateQueueDepth();
+
+        List<Tile> strip = new ArrayList<Tile>(1);
+        strip.add(t);
+        stripQueue.add(strip);
+
+        ExecutorService executor = executorService;
+        if (executor != null && !executor.isShutdown()) {
+            try {
+                executor.submit(new QueueWorker());
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime, requests are rebuilt on the next range change
+            }
+        }
+    }
+
+    @Override
+    public Tile getTile(int x, int y) {
+
+        /* as the TileProvider docs say, return empty tiles here if necessary, we use 'hasFreshData'
+         * to get the provider to do another pull of tiles later. */
+        return tileCache.get(Tile.createCacheKey(Tile.wrapId(x, wrapX), Tile.wrapId(y, wrapY)));
+    }
+
+    @Override
+    public boolean hasFreshData() {
+        return hasFreshData.getAndSet(false);
+    }
+
+    @Override
+    public void onTileIDRangeChange(TileRange newRange) {
+        onTileIDRangesChange(Collections.singletonList(newRange));
+    }
+
+    /* As onTileIDRangeChange(), but for several views' ranges at once (see SharedTileService).  Tiles are kept
+     * and requested if they're in any of the ranges, with the first range's strips queued first. */
+    void onTileIDRangesChange(List<TileRange> ranges) {
+
+        // pick up the wrap period here, the only place the tile space is laid out
+        Integer[] wrap = getConfigWrapPeriod();
+        int wrapX = Utils.getWrapPeriod(wrap, 0);
+        int wrapY = Utils.getWrapPeriod(wrap, 1);
+        this.wrapX = wrapX;
+        this.wrapY = wrapY;
+
+        // tiles missing from the index are never requested
+        TileExistenceIndex existenceIndex = getConfigExistenceIndex();
+
+        currentRanges = ranges;
+
+        // the tiles evicted last time round are off screen by now
+        releaseEvictedTiles();
+
+        // clear out any off-screen cached tiles, so we don't gobble up heap
+        tileCache.evict(ranges, cachePadding, wrapX, wrapY);
+
+        // drop requests for tiles no longer in range, the queued strips get rebuilt below
+        cancelRequests(ranges);
+
+        List<List<Tile>> strips = new ArrayList<List<Tile>>();
+
+        // where ranges overlap, a tile only goes in the strips of the first range it's seen in
+        Set<Long> seen = ranges.size() > 1 ? new HashSet<Long>() : null;
+        for (TileRange range : ranges) {
+            addStrips(range, strips, seen, existenceIndex);
+        }
+
+        updateQueueDepth();
+
+        if (strips.isEmpty()) {
+            return;
+        }
+        stripQueue.addAll(strips);
+
+        // init the executor
+        if (executorService == null || executorService.isShutdown()) {
+            executorService = Executors.newFixedThreadPool(numThreads);
+        }
+
+        // surplus workers just find the queue empty and finish
+        for (int i = 0; i < Math.min(numThreads, strips.size()); i++) {
+            executorService.submit(new QueueWorker());
+        }
+
+    }
+
+    /* Build strips of the range's missing tiles, reusing existing requests where there are any.  The middle rows
+     * are most likely to be looked at, so rows are visited from the middle out (middle, above, below, ...), and
+     * the strips queued in that order.  In a wrapping tile space, coordinates are normalised, so a range wider
+     * than the period may list the same tile twice - claimTile ensures it's only loaded once. */
+    private void addStrips(TileRange newRange, List<List<Tile>> strips, Set<Long> seen,
+                           TileExistenceIndex existenceIndex) {
+
+        int tileSize = getConfigTileSize();
+        int wrapX = this.wrapX, wrapY = this.wrapY;
+
+        TileTracer tracer = TileTracer.get();
+        TileMetrics metrics = getMetrics();
+
+        int numRows = newRange.numTilesVertical();
+        int midRow = newRange.top + numRows / 2;
+
+        for (int i = 0; i < numRows * 2; i++) {
+
+            int rawY = midRow + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+            if (rawY < newRange.top || rawY > newRange.bottom) {
+                continue;
+            }
+            int y = Tile.wrapId(rawY, wrapY);
+            if (existenceIndex != null && !existenceIndex.rowHasTiles(y)) {
+                continue;
+            }
+
+            List<Tile> strip = null;
+
+            for (int rawX = newRange.left; rawX <= newRange.right; rawX++) {
+
+                int x = Tile.wrapId(rawX, wrapX);
+                if (existenceIndex != null && !existenceIndex.exists(x, y)) {
+                    strip = null; // breaks the run of adjacent missing tiles
+                    continue;
+                }
+
+                long key = Tile.createCacheKey(x, y);
+                if (seen != null && !seen.add(key)) {
+                    strip = null; // already in another range's strips
+                    continue;
+                }
+
+                // tiles with only a preview (or stale data) still need their full load, so count as missing
+                Tile cached = tileCache.get(key);
+                if (cached != null && !cached.isPreview() && !cached.isStale()) {
+                    if (metrics != null) {
+                        metrics.recordCacheHit(CACHE_TIER_MEMORY);
+                    }
+                    strip = null; // breaks the run of adjacent missing tiles
+                    continue;
+                }
+                if (metrics != null) {
+                    metrics.recordCacheMiss(CACHE_TIER_MEMORY);
+                }
+
+                Tile t = tileCache.getRequest(key);
+                if (t == null) {
+                    /* re-request a preview tile (whose earlier load failed or was dropped) as is, keeping its preview.
+                     * A stale tile stays cached and on screen, its replacement is a new tile */
+                    t = cached != null && !cached.isStale() ? cached : new Tile(x, y, tileSize);
+                    t.requestNanos = System.nanoTime();
+                    tileCache.request(t);
+                    tracer.tileRequested(x, y);
+                }
+
+                if (strip == null) {
+                    strip = new ArrayList<Tile>();
+                    strips.add(strip);
+                }
+                strip.add(t);
+            }
+        }
+    }
+
+    /* Drop queued strips, and any requests for tiles outside the ranges (or all, if the ranges are null) */
+    private void cancelRequests(List<TileRange> ranges) {
+
+        stripQueue.clear();
+
+        List<Tile> cancelled = tileCache.cancel(ranges, cachePadding, wrapX, wrapY);
+        for (Tile t : cancelled) {
+            onRequestCancelled(t);
+        }
+
+        TileMetrics metrics = getMetrics();
+        if (metrics != null && !cancelled.isEmpty()) {
+            metrics.recordCancelled(cancelled.size());
+        }
+        updateQueueDepth();
+    }
+
+    /**
+     * Takes strips off the queue until it's empty
+     */
+    class QueueWorker implements Runnable {
+
+        @Override
+        public void run() {
+
+            // don't compete with the UI or rendering threads
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            List<Tile> strip;
+            while ((strip = stripQueue.poll()) != null) {
+
+                // always keep checking to see if the view has requested that we stop
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+
+                loadStrip(strip);
+            }
+        }
+    }
+
+    @Override
+    public void onSurfaceDestroyed() {
+
+        // ensure we don't leave any hanging threads, requests will be rebuilt on the next range change
+        cancelRequests(null);
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+
+        // nothing's being drawn any more
+        releaseEvictedTiles();
+    }
+
+    private void releaseEvictedTiles() {
+        Tile t;
+        while ((t = tileCache.pollEvicted()) != null) {
+            onTileEvicted(t);
+        }
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format(DEBUG_SUMMARY_FMT, getClass().getSimpleName(), tileCache.size(), tileCache.numRequests());
+    }
+
+}
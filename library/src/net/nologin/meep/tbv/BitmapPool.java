@@ -0,0 +1,210 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.LinkedList;
+
+/**
+ * A pool of same-sized mutable bitmaps, so that providers can reuse the bitmaps of evicted tiles rather than
+ * allocating (and garbage collecting) a new bitmap for every tile.  Thread-safe.
+ * <br/><br/>
+ * Bitmaps in the pool can either be drawn into directly, or decoded into on API levels that support
+ * <code>BitmapFactory.Options.inBitmap</code> (see {@link #decode(BitmapFactory.Options, boolean, Decoder)}).
+ */
+public class BitmapPool {
+
+    /**
+     * A pool size that suits most tile providers - enough for a couple of screens worth of tiles.
+     */
+    public static final int DEFAULT_MAX_SIZE = 48;
+
+    // inBitmap arrived in API 11, but the library targets API 10, so look it up rather than referencing it
+    private static final Field FIELD_INBITMAP = findInBitmapField();
+
+    private final int width, height;
+    private final Bitmap.Config config;
+    private final int maxSize;
+
+    private final LinkedList<Bitmap> pool = new LinkedList<Bitmap>();
+
+    /**
+     * @param width   The width of the pooled bitmaps
+     * @param height  The height of the pooled bitmaps
+     * @param config  The config of the pooled bitmaps
+     * @param maxSize The maximum number of bitmaps kept in the pool, any more released are left for the GC
+     */
+    public BitmapPool(int width, int height, Bitmap.Config config, int maxSize) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return A bitmap from the pool, or a newly created one if the pool is empty.  The content is undefined.
+     */
+    public Bitmap acquire() {
+
+        Bitmap bmp = poll();
+        if (bmp == null) {
+            bmp = Bitmap.createBitmap(width, height, config);
+        }
+        return bmp;
+    }
+
+    /**
+     * @return A bitmap from the pool, or <code>null</code> if the pool is empty.  The content is undefined.
+     */
+    public synchronized Bitmap poll() {
+        return pool.isEmpty() ? null : pool.removeFirst();
+    }
+
+    /**
+     * Return a bitmap to the pool.  Bitmaps that don't match the pool's size and config (or that are immutable or
+     * recycled) are ignored, so it's safe to release any tile bitmap here.
+     *
+     * @param bmp The bitmap, which must no longer be used by the caller.
+     */
+    public void release(Bitmap bmp) {
+
+        if (bmp == null || bmp.isRecycled() || !bmp.isMutable()
+                || bmp.getWidth() != width || bmp.getHeight() != height || bmp.getConfig() != config) {
+            return;
+        }
+
+        synchronized (this) {
+            if (pool.size() < maxSize && !pool.contains(bmp)) {
+                pool.addFirst(bmp);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bitmaps currently in the pool
+     */
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    /**
+     * Empty the pool
+     */
+    public synchronized void clear() {
+        pool.clear();
+    }
+
+    /**
+     * Set <code>inBitmap</code> on the decode options, if the running platform supports it.  Note that support for
+     * decoding into a reused bitmap varies - eg region decoding needs API 16, and before API 19 the decoded size
+     * must match the reused bitmap exactly (so no <code>inSampleSize</code> other than 1).  It's up to the caller
+     * to check such restrictions.
+     *
+     * @param opts The options to set
+     * @param bmp  The bitmap to decode into
+     * @return <code>true</code> if set, <code>false</code> if not supported.
+     */
+    public static boolean setInBitmap(BitmapFactory.Options opts, Bitmap bmp) {
+
+        if (FIELD_INBITMAP == null) {
+            return false;
+        }
+        try {
+            FIELD_INBITMAP.set(opts, bmp);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes a bitmap with the supplied options, see {@link BitmapPool#decode(BitmapFactory.Options, boolean,
+     * Decoder)}.  May be called a second time if decoding into a pooled bitmap fails, so a decoder reading from a
+     * stream should open a new one for each call.
+     */
+    public interface Decoder {
+
+        /**
+         * @param opts The options to decode with
+         * @return The decoded bitmap, or <code>null</code> if the data couldn't be decoded
+         * @throws IOException If the data couldn't be read
+         */
+        Bitmap decode(BitmapFactory.Options opts) throws IOException;
+    }
+
+    /**
+     * Decode a bitmap, into a bitmap from this pool if possible.  Should the pooled bitmap turn out to be unsuitable
+     * (eg, the decoded image is a different size), the decode is retried without it.  The pooled bitmap is returned
+     * to the pool if it doesn't end up holding the result.
+     *
+     * @param opts    The options to decode with, <code>inBitmap</code> is set on these
+     * @param reuse   <code>false</code> to skip the pool and just decode, eg when the platform doesn't support
+     *                decoding into the caller's kind of reused bitmap (see
+     *                {@link #setInBitmap(BitmapFactory.Options, Bitmap)})
+     * @param decoder Does the actual decoding
+     * @return The decoded bitmap, or <code>null</code> if the decoder returned <code>null</code>
+     * @throws IOException If the decoder fails to read the data
+     */
+    public Bitmap decode(BitmapFactory.Options opts, boolean reuse, Decoder decoder) throws IOException {
+
+        Bitmap pooled = null;
+        if (reuse) {
+            pooled = acquire();
+            if (!setInBitmap(opts, pooled)) {
+                release(pooled);
+                pooled = null;
+            }
+        }
+
+        Bitmap bmp = null;
+        try {
+            bmp = decoder.decode(opts);
+
+        } catch (IllegalArgumentException e) {
+
+            // the pooled bitmap couldn't be reused after all (eg, an odd-sized tile), decode without
+            if (pooled == null) {
+                throw e;
+            }
+            setInBitmap(opts, null);
+            release(pooled);
+            pooled = null;
+            bmp = decoder.decode(opts);
+
+        } finally {
+            // nothing decoded into it (a failed read, or undecodable data), so it's free for the next decode
+            if (pooled != null && bmp != pooled) {
+                release(pooled);
+            }
+        }
+
+        return bmp;
+    }
+
+    private static Field findInBitmapField() {
+        try {
+            return BitmapFactory.Options.class.getField("inBitmap");
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+}
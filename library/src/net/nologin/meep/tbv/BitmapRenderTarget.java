@@ -0,0 +1,89 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * An offscreen {@link RenderTarget}, where frames are drawn into a {@link Bitmap} rather than onto a surface.
+ * Since nothing here needs a display (or a GPU), this allows the view's drawing code to be run headless, eg for
+ * measuring draw throughput on a plain JVM under Robolectric, or to render the tile grid out to an image.
+ * <br/><br/>
+ * Not thread-safe, expected to be drawn to by one thread at a time.
+ */
+public class BitmapRenderTarget implements RenderTarget {
+
+    private final Bitmap bitmap;
+    private final Canvas canvas;
+
+    // number of frames posted since creation, handy when measuring throughput
+    private long framesPosted = 0;
+
+    /**
+     * Create a target backed by a new ARGB_8888 bitmap of the specified size
+     *
+     * @param width  The target width (px)
+     * @param height The target height (px)
+     */
+    public BitmapRenderTarget(int width, int height) {
+        this(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Create a target that draws into an existing bitmap
+     *
+     * @param bitmap The bitmap to draw into, must be mutable
+     */
+    public BitmapRenderTarget(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.canvas = new Canvas(bitmap);
+    }
+
+    /**
+     * @return The bitmap frames are drawn into.  Contains the last posted frame.
+     */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @return The number of frames posted to this target
+     */
+    public long getFramesPosted() {
+        return framesPosted;
+    }
+
+    @Override
+    public Canvas lockCanvas(Rect dirty) {
+
+        // mirror the surface behaviour of clipping drawing to the dirty area
+        canvas.save();
+        if (dirty != null) {
+            canvas.clipRect(dirty);
+        }
+        return canvas;
+    }
+
+    @Override
+    public void unlockCanvasAndPost(Canvas canvas) {
+        canvas.restore();
+        framesPosted++;
+    }
+
+}
@@ -42,6 +42,8 @@ public class GenericTileProvider implements TileProvider {
 
     private Bitmap sharedTileBmp = null;
 
+    private final TileMetrics metrics = new TileMetrics();
+
     public GenericTileProvider(Context ctx) {
 
         this.ctx = ctx;
@@ -112,6 +114,24 @@ public class GenericTileProvider implements TileProvider {
         return t;
     }
 
+    @Override
+    public Integer[] getConfigWrapPeriod() {
+        // no wrapping
+        return null;
+    }
+
+    @Override
+    public TileExistenceIndex getConfigExistenceIndex() {
+        // every tile exists
+        return null;
+    }
+
+    @Override
+    public TileHints getConfigTileHints() {
+        // no hints
+        return null;
+    }
+
     @Override
     public GridAnchor getConfigGridAnchor() {
         // put (0,0) in the middle of the screen
@@ -147,6 +167,11 @@ public class GenericTileProvider implements TileProvider {
         return "GenericProv[¯\\(°_o)/¯]";
     }
 
+    @Override
+    public TileMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void onSurfaceDestroyed() {
         // if we were performing async processing, we'd
@@ -0,0 +1,223 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.*;
+
+/**
+ * A recording of the scroll and zoom gestures received by a {@link TiledBitmapView}.  Start recording with
+ * {@link TiledBitmapView#startGestureTrace()}, and once finished, the trace can be saved with
+ * {@link #writeTo(OutputStream)} and later fed back through a {@link GestureTraceReplayer} to reproduce the same
+ * sequence of view changes, eg as a repeatable benchmark input.
+ * <br/><br/>
+ * Events are kept in primitive arrays (no per-event objects), and the binary format is compact - a small header,
+ * then 13 bytes per event: the event type, the time since the previous event (in microseconds), and two floats.
+ * For scroll events the floats are the distances as reported to <code>onScroll</code>, for zoom events the first
+ * is the scale factor reported to <code>onScale</code> (the second is unused).
+ * <br/><br/>
+ * Recording is done on the UI thread, but all public methods are synchronized so the trace can be safely read from
+ * elsewhere.
+ */
+public class GestureTrace {
+
+    public static final byte EVENT_SCROLL = 1;
+    public static final byte EVENT_SCALE = 2;
+
+    // 'TBVG', followed by a version number, in case the format ever needs to change
+    private static final int FILE_MAGIC = 0x54425647;
+    private static final int FILE_VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY]; // nanos, relative to the first event
+    private float[] valuesA = new float[INITIAL_CAPACITY];
+    private float[] valuesB = new float[INITIAL_CAPACITY];
+
+    private int size = 0;
+    private long startNanos = -1;
+
+    /**
+     * Record a scroll event
+     *
+     * @param timeNanos The time of the event, as per {@link System#nanoTime()}
+     * @param distanceX The x distance, as passed to <code>GestureDetector.OnGestureListener.onScroll</code>
+     * @param distanceY The y distance, as passed to <code>GestureDetector.OnGestureListener.onScroll</code>
+     */
+    public synchronized void recordScroll(long timeNanos, float distanceX, float distanceY) {
+        record(EVENT_SCROLL, timeNanos, distanceX, distanceY);
+    }
+
+    /**
+     * Record a zoom event
+     *
+     * @param timeNanos   The time of the event, as per {@link System#nanoTime()}
+     * @param scaleFactor The scale factor, as reported by the <code>ScaleGestureDetector</code>
+     */
+    public synchronized void recordScale(long timeNanos, float scaleFactor) {
+        record(EVENT_SCALE, timeNanos, scaleFactor, 0);
+    }
+
+    private void record(byte type, long timeNanos, float a, float b) {
+
+        if (startNanos < 0) {
+            startNanos = timeNanos;
+        }
+
+        if (size == types.length) {
+            grow();
+        }
+
+        types[size] = type;
+        times[size] = timeNanos - startNanos;
+        valuesA[size] = a;
+        valuesB[size] = b;
+        size++;
+    }
+
+    private void grow() {
+
+        int newCapacity = types.length * 2;
+
+        byte[] newTypes = new byte[newCapacity];
+        long[] newTimes = new long[newCapacity];
+        float[] newValuesA = new float[newCapacity];
+        float[] newValuesB = new float[newCapacity];
+
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(times, 0, newTimes, 0, size);
+        System.arraycopy(valuesA, 0, newValuesA, 0, size);
+        System.arraycopy(valuesB, 0, newValuesB, 0, size);
+
+        types = newTypes;
+        times = newTimes;
+        valuesA = newValuesA;
+        valuesB = newValuesB;
+    }
+
+    /**
+     * @return The number of recorded events
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The type of the event at index <code>i</code>, either {@link #EVENT_SCROLL} or {@link #EVENT_SCALE}
+     */
+    public synchronized byte getType(int i) {
+        checkIndex(i);
+        return types[i];
+    }
+
+    /**
+     * @return The time of the event at index <code>i</code>, in nanoseconds since the first event
+     */
+    public synchronized long getTimeNanos(int i) {
+        checkIndex(i);
+        return times[i];
+    }
+
+    /**
+     * @return The scroll x-distance, or scale factor, of the event at index <code>i</code>
+     */
+    public synchronized float getValueA(int i) {
+        checkIndex(i);
+        return valuesA[i];
+    }
+
+    /**
+     * @return The scroll y-distance of the event at index <code>i</code> (unused for zoom events)
+     */
+    public synchronized float getValueB(int i) {
+        checkIndex(i);
+        return valuesB[i];
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Event " + i + " requested, trace has " + size);
+        }
+    }
+
+    /**
+     * Write this trace in its binary format.  The stream is not closed.
+     *
+     * @param os The stream to write to
+     * @throws IOException If the underlying stream fails
+     */
+    public synchronized void writeTo(OutputStream os) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(size);
+
+        long prevNanos = 0;
+        for (int i = 0; i < size; i++) {
+
+            // gaps over ~35 minutes would overflow, which isn't a realistic gap between gestures
+            long deltaMicros = Math.min((times[i] - prevNanos) / 1000, Integer.MAX_VALUE);
+            prevNanos = times[i];
+
+            out.writeByte(types[i]);
+            out.writeInt((int) deltaMicros);
+            out.writeFloat(valuesA[i]);
+            out.writeFloat(valuesB[i]);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Read a trace previously written with {@link #writeTo(OutputStream)}.  The stream is not closed.
+     *
+     * @param is The stream to read from
+     * @return The trace
+     * @throws IOException If the stream fails, or doesn't contain a trace
+     */
+    public static GestureTrace readFrom(InputStream is) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a gesture trace");
+        }
+        int version = in.readInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported gesture trace version " + version);
+        }
+
+        int count = in.readInt();
+        GestureTrace trace = new GestureTrace();
+
+        long timeNanos = 0;
+        for (int i = 0; i < count; i++) {
+
+            byte type = in.readByte();
+            timeNanos += in.readInt() * 1000L;
+            float a = in.readFloat();
+            float b = in.readFloat();
+
+            trace.record(type, timeNanos, a, b);
+        }
+
+        return trace;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+/**
+ * Feeds a recorded {@link GestureTrace} back through a {@link ViewState} and {@link TileProvider}, in the same way
+ * the {@link TiledBitmapView} would have handled the original gestures, and reports how the provider coped.  The
+ * view itself isn't needed, so this can run headless, eg as a benchmark for provider and caching changes.
+ * <br/><br/>
+ * Every event is treated as a frame: the provider is notified of any range or zoom change, and then every tile in
+ * the visible range is fetched with {@link TileProvider#getTile(int, int)}.  A tile with bitmap data counts as a
+ * hit, and one without as a miss (tiles missing from the provider's existence index are skipped, as the view
+ * would).  Optionally, a {@link TileRenderer} and {@link RenderTarget} can be supplied so that the frames are
+ * actually drawn too (eg to a {@link BitmapRenderTarget}).
+ */
+public class GestureTraceReplayer {
+
+    private final ViewState state;
+    private final TileProvider provider;
+
+    private TileRenderer renderer;
+    private RenderTarget target;
+
+    /**
+     * @param state    The state to replay the gestures against.  Its offset will be changed by the replay, so
+     *                 this shouldn't be the state of a live view.
+     * @param provider The provider to fetch tiles from
+     */
+    public GestureTraceReplayer(ViewState state, TileProvider provider) {
+        this.state = state;
+        this.provider = provider;
+    }
+
+    /**
+     * Draw each frame during replay.  Pass <code>null</code>s to only fetch the tiles (the default).
+     *
+     * @param renderer The renderer to draw the frames with
+     * @param target   The target to draw the frames to
+     */
+    public void setRenderer(TileRenderer renderer, RenderTarget target) {
+        this.renderer = renderer;
+        this.target = target;
+    }
+
+    /**
+     * Replay the trace.  This blocks until the whole trace has been replayed (or the thread is interrupted).
+     *
+     * @param trace    The trace to replay
+     * @param realTime If <code>true</code>, events are replayed with the same timings as they were recorded,
+     *                 otherwise they're replayed as fast as possible.
+     * @return The results of the replay
+     */
+    public Result replay(GestureTrace trace, boolean realTime) {
+
+        Result result = new Result();
+
+        // state not set up with an offset yet, start at the origin (this is the first range the provider sees)
+        if (state.getVisibleTileRange() == null) {
+            state.applySurfaceOffset(0, 0);
+            notifyRangeChange(result);
+        }
+
+        long startNanos = System.nanoTime();
+        int numEvents = trace.size();
+
+        for (int i = 0; i < numEvents; i++) {
+
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            if (realTime) {
+                waitUntil(startNanos + trace.getTimeNanos(i));
+            }
+
+            // same handling as the view's gesture listeners
+            switch (trace.getType(i)) {
+
+                case GestureTrace.EVENT_SCROLL:
+                    int newOffX = -(int) trace.getValueA(i);
+                    int newOffY = -(int) trace.getValueB(i);
+                    if (state.applySurfaceOffsetRelative(newOffX, newOffY)) {
+                        notifyRangeChange(result);
+                    }
+                    break;
+
+                case GestureTrace.EVENT_SCALE:
+                    float newZoomFactor = state.updateZoomFactor(trace.getValueA(i));
+                    provider.onZoomFactorChange(newZoomFactor);
+                    break;
+
+                default:
+                    continue;
+            }
+
+            doFrame(result);
+        }
+
+        result.elapsedNanos = System.nanoTime() - startNanos;
+
+        return result;
+    }
+
+    private void notifyRangeChange(Result result) {
+        provider.onTileIDRangeChange(state.getVisibleTileRange());
+        result.rangeChanges++;
+    }
+
+    private void doFrame(Result result) {
+
+        ViewState.Snapshot snapshot = state.getUpdatedSnapshot();
+        TileRange range = snapshot.visibleTileIdRange;
+
+        if (provider.hasFreshData()) {
+            result.freshDataPolls++;
+        }
+
+        TileExistenceIndex existenceIndex = provider.getConfigExistenceIndex();
+        Integer[] wrap = provider.getConfigWrapPeriod();
+        int wrapX = Utils.getWrapPeriod(wrap, 0);
+        int wrapY = Utils.getWrapPeriod(wrap, 1);
+
+        for (int y = range.top; y <= range.bottom; y++) {
+            for (int x = range.left; x <= range.right; x++) {
+
+                if (existenceIndex != null
+                        && !existenceIndex.exists(Tile.wrapId(x, wrapX), Tile.wrapId(y, wrapY))) {
+                    continue;
+                }
+
+                Tile t = provider.getTile(x, y);
+                result.providerCalls++;
+
+                if (t != null && t.getBmpData() != null) {
+                    result.tileHits++;
+                } else {
+                    result.tileMisses++;
+                }
+            }
+        }
+
+        if (renderer != null && target != null) {
+            renderer.refreshTiles(provider, state, range);
+            renderer.renderFrame(target, state, snapshot, provider);
+        }
+
+        result.frames++;
+    }
+
+    private static void waitUntil(long targetNanos) {
+
+        long waitNanos = targetNanos - System.nanoTime();
+        if (waitNanos <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // let the replay loop see it
+        }
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+
+        public int frames, rangeChanges, freshDataPolls;
+        public long providerCalls, tileHits, tileMisses;
+        public long elapsedNanos;
+
+        /**
+         * @return The ratio of fetched tiles that had bitmap data, from 0 to 1
+         */
+        public double getHitRate() {
+            long total = tileHits + tileMisses;
+            return total == 0 ? 0 : (double) tileHits / total;
+        }
+
+        public String toString() {
+            return String.format("Replay[frames=%d,ranges=%d,fresh=%d,calls=%d,hit=%1.3f,ms=%d]",
+                    frames, rangeChanges, freshDataPolls, providerCalls, getHitRate(), elapsedNanos / 1000000);
+        }
+    }
+
+}
@@ -0,0 +1,447 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches tile images over HTTP for {@link HttpTileProvider}, with a revalidating disk cache.  Kept free of
+ * Android classes so it can be exercised against a local HTTP server off-device.  Thread-safe.
+ * <br/><br/>
+ * <b>Connections</b>: Uses <code>HttpURLConnection</code>, whose keep-alive pool reuses a connection once its
+ * response has been read to the end and closed.  Every response (including errors) is fully drained for this
+ * reason, and connections are only ever disconnected when a request is cancelled.  The number of simultaneous
+ * requests to each host is capped, so several worker threads (or several providers sharing a fetcher) can't
+ * overwhelm one server.
+ * <br/><br/>
+ * <b>Disk cache</b>: Each response is stored along with its <code>ETag</code> and <code>Last-Modified</code>
+ * validators.  A cached entry younger than {@link #setMaxAge(long) maxAge} is used as is, otherwise it's
+ * revalidated with a conditional request (<code>If-None-Match</code> / <code>If-Modified-Since</code>), so an
+ * unchanged tile costs a round trip but no body.  If the server can't be reached (including a connect or read
+ * timeout), a cached entry is used however old it is.
+ * <br/><br/>
+ * <b>Cancellation</b>: Each fetch is tagged by the caller, and {@link #cancel(Object)} aborts it from another
+ * thread, whether it's still waiting for a connection slot or already transferring.  Only a cancelled (or
+ * interrupted) fetch throws an <code>InterruptedIOException</code>, any other failure is a plain
+ * <code>IOException</code>.
+ */
+public class HttpTileFetcher {
+
+    /**
+     * The tile was downloaded
+     */
+    public static final int SOURCE_NETWORK = 0;
+
+    /**
+     * The cached tile was used without contacting the server, as it was younger than maxAge
+     */
+    public static final int SOURCE_CACHE = 1;
+
+    /**
+     * The cached tile was revalidated with the server (a <code>304 Not Modified</code> response)
+     */
+    public static final int SOURCE_REVALIDATED = 2;
+
+    /**
+     * The server couldn't be reached, so a cached tile of unknown freshness was used
+     */
+    public static final int SOURCE_STALE = 3;
+
+    private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+
+    private final File cacheDir;
+    private final int maxConnectionsPerHost;
+
+    private volatile int connectTimeout = 10000;
+    private volatile int readTimeout = 15000;
+    private volatile long maxAge = 0;
+
+    // requests in progress, mapped to the host's slots while waiting for one, and to their connection once they have it
+    private final ConcurrentHashMap<Object, Object> activeRequests = new ConcurrentHashMap<Object, Object>();
+
+    private final ConcurrentHashMap<String, HostSlots> hostSlots = new ConcurrentHashMap<String, HostSlots>();
+
+    private final AtomicLong numNetwork = new AtomicLong(), numCache = new AtomicLong(),
+            numRevalidated = new AtomicLong(), numStale = new AtomicLong();
+
+    /**
+     * The result of a successful fetch
+     */
+    public static class Result {
+
+        /**
+         * The tile image data
+         */
+        public final byte[] data;
+
+        /**
+         * Where the data came from, one of the <code>SOURCE_*</code> constants
+         */
+        public final int source;
+
+        Result(byte[] data, int source) {
+            this.data = data;
+            this.source = source;
+        }
+    }
+
+    /**
+     * @param cacheDir              The directory for cached tiles (created if necessary), or <code>null</code> for
+     *                              no disk cache.
+     * @param maxConnectionsPerHost The maximum number of simultaneous requests to any one host
+     */
+    public HttpTileFetcher(File cacheDir, int maxConnectionsPerHost) {
+        this.cacheDir = cacheDir;
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    /**
+     * @param connectTimeout The connect timeout (ms, default 10000)
+     * @param readTimeout    The read timeout (ms, default 15000)
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param maxAge How long (ms) a cached tile is used before being revalidated with the server.  The default of
+     *               0 revalidates on every fetch.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Fetch a tile, from the disk cache or the network.  Blocks while waiting for a connection slot to the host.
+     *
+     * @param url The tile URL
+     * @param tag Identifies this fetch for {@link #cancel(Object)}.  Must not be shared with another fetch in
+     *            progress.
+     * @return The result, or <code>null</code> if the server has no such tile (404)
+     * @throws InterruptedIOException If the fetch was cancelled, or the thread interrupted
+     * @throws IOException            If the fetch failed (eg timed out), and there's no cached copy to fall back on
+     */
+    public Result fetch(URL url, Object tag) throws IOException {
+
+        File cacheFile = getCacheFile(url);
+        CacheEntry cached = cacheFile == null ? null : CacheEntry.read(cacheFile);
+
+        if (cached != null && maxAge > 0 && System.currentTimeMillis() - cacheFile.lastModified() < maxAge) {
+            numCache.incrementAndGet();
+            return new Result(cached.data, SOURCE_CACHE);
+        }
+
+        HostSlots slots = getHostSlots(url);
+        activeRequests.put(tag, slots);
+        boolean slotTaken = false;
+        try {
+            slots.acquire(tag);
+            slotTaken = true;
+
+            return fetchFromNetwork(url, tag, slots, cacheFile, cached);
+
+        } catch (SocketTimeoutException e) {
+            // an InterruptedIOException too, but a network failure rather than a cancellation
+            return fallBackToCache(tag, cached, new IOException("Timed out fetching " + url, e));
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            return fallBackToCache(tag, cached, e);
+
+        } finally {
+            activeRequests.remove(tag);
+            if (slotTaken) {
+                slots.release();
+            }
+        }
+    }
+
+    private Result fallBackToCache(Object tag, CacheEntry cached, IOException failure) throws IOException {
+
+        if (!activeRequests.containsKey(tag)) {
+            // the failure was the cancellation disconnecting us
+            throw new InterruptedIOException("Cancelled");
+        }
+        if (cached == null) {
+            throw failure;
+        }
+        numStale.incrementAndGet();
+        return new Result(cached.data, SOURCE_STALE);
+    }
+
+    private Result fetchFromNetwork(URL url, Object tag, HostSlots slots, File cacheFile, CacheEntry cached)
+            throws IOException {
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false); // the disk cache here does the job
+
+        if (cached != null) {
+            if (cached.etag.length() > 0) {
+                conn.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified.length() > 0) {
+                conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        // publish the connection for cancel(), unless the request was cancelled while waiting
+        if (!activeRequests.replace(tag, slots, conn)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+
+        int status = conn.getResponseCode();
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            drain(conn.getInputStream());
+            if (!cacheFile.setLastModified(System.currentTimeMillis())) {
+                cacheFile.delete(); // can't track its age, so don't trust it next time
+            }
+            numRevalidated.incrementAndGet();
+            return new Result(cached.data, SOURCE_REVALIDATED);
+        }
+
+        if (status != HttpURLConnection.HTTP_OK) {
+            drain(conn.getErrorStream());
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                if (cacheFile != null) {
+                    cacheFile.delete();
+                }
+                return null;
+            }
+            throw new IOException("HTTP " + status + " fetching " + url);
+        }
+
+        byte[] data = readFully(conn.getInputStream(), conn.getContentLength());
+        numNetwork.incrementAndGet();
+
+        if (cacheFile != null) {
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            new CacheEntry(etag == null ? "" : etag, lastModified == null ? "" : lastModified, data).write(cacheFile);
+        }
+
+        return new Result(data, SOURCE_NETWORK);
+    }
+
+    /**
+     * Abort a fetch in progress.  The fetch will throw an <code>InterruptedIOException</code>.  Does nothing if
+     * there's no such fetch.
+     *
+     * @param tag The tag passed to {@link #fetch(URL, Object)}
+     */
+    public void cancel(Object tag) {
+
+        Object req = activeRequests.remove(tag);
+        if (req instanceof HttpURLConnection) {
+            ((HttpURLConnection) req).disconnect();
+        } else if (req instanceof HostSlots) {
+            ((HostSlots) req).wakeWaiters(); // so it notices it's been cancelled
+        }
+    }
+
+    /**
+     * @return A one-line summary of the fetch counts by source, for debug output
+     */
+    public String getSummary() {
+        return String.format("net=%d,cache=%d,304=%d,stale=%d", numNetwork.get(), numCache.get(),
+                numRevalidated.get(), numStale.get());
+    }
+
+    private HostSlots getHostSlots(URL url) {
+
+        String host = url.getHost() + ':' + url.getPort();
+        HostSlots slots = hostSlots.get(host);
+        if (slots == null) {
+            HostSlots created = new HostSlots();
+            slots = hostSlots.putIfAbsent(host, created);
+            if (slots == null) {
+                slots = created;
+            }
+        }
+        return slots;
+    }
+
+    private File getCacheFile(URL url) {
+
+        if (cacheDir == null || !(cacheDir.isDirectory() || cacheDir.mkdirs())) {
+            return null;
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.toString().getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(cacheDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            return null; // every platform has MD5, but don't fail the fetch over the cache
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /* Read (and discard) the rest of a response, so the connection can be kept alive */
+    private static void drain(InputStream is) throws IOException {
+
+        if (is == null) {
+            return;
+        }
+        try {
+            byte[] buf = new byte[DRAIN_BUFFER_SIZE];
+            while (is.read(buf) != -1) {
+                // discard
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream is, int contentLength) throws IOException {
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16 * 1024);
+            byte[] buf = new byte[DRAIN_BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * The connection slots for one host, handed out first come first served.  Like a fair semaphore, except that a
+     * fetch waiting for a slot gives up as soon as it's cancelled.
+     */
+    private class HostSlots {
+
+        private int inUse;
+        private final LinkedList<Object> waiting = new LinkedList<Object>();
+
+        synchronized void acquire(Object tag) throws InterruptedIOException {
+
+            waiting.addLast(tag);
+            try {
+                while (inUse >= maxConnectionsPerHost || waiting.getFirst() != tag) {
+                    if (!activeRequests.containsKey(tag)) {
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                    wait();
+                }
+                inUse++;
+
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for a connection");
+            } finally {
+                waiting.remove(tag);
+                notifyAll(); // whoever's next in line may be able to go now
+            }
+        }
+
+        synchronized void release() {
+            inUse--;
+            notifyAll();
+        }
+
+        synchronized void wakeWaiters() {
+            notifyAll();
+        }
+    }
+
+    /**
+     * A cached tile and its validators.  Stored as two UTF strings followed by the data, and written to a temporary
+     * file first so a partially written entry is never read.
+     */
+    private static class CacheEntry {
+
+        final String etag, lastModified;
+        final byte[] data;
+
+        CacheEntry(String etag, String lastModified, byte[] data) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+
+        static CacheEntry read(File f) {
+
+            if (!f.isFile()) {
+                return null;
+            }
+
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                String etag = in.readUTF();
+                String lastModified = in.readUTF();
+                byte[] data = readFully(in, (int) f.length());
+                return new CacheEntry(etag, lastModified, data);
+            } catch (IOException e) {
+                f.delete(); // corrupt, it'll be refetched
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        void write(File f) {
+
+            File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeUTF(etag);
+                out.writeUTF(lastModified);
+                out.write(data);
+                out.close();
+                out = null;
+                if (!tmp.renameTo(f)) {
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                tmp.delete(); // not worth failing the fetch over
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        private static void closeQuietly(Closeable c) {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    // nothing to be done
+                }
+            }
+        }
+    }
+
+}
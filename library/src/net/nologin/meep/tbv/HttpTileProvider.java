@@ -0,0 +1,231 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A provider that downloads its tiles from a tile server, with the HTTP work (connection reuse, the per-host
+ * concurrency cap, and the revalidating disk cache) done by an {@link HttpTileFetcher}.
+ * <br/><br/>
+ * Tile URLs come from a template, in which <code>{z}</code>, <code>{x}</code> and <code>{y}</code> are replaced
+ * with the current level (see {@link #setLevel(int)}) and the tile's x and y IDs, eg
+ * <code>http://tiles.example.com/{z}/{x}/{y}.png</code>.  A server response of 404 is treated as a tile with no
+ * data.  The tile ID limits and grid anchor are the {@link GenericTileProvider} defaults, override the
+ * <code>getConfig*</code> methods to suit the server's tile set.
+ * <br/><br/>
+ * Requests for tiles that leave the visible range are aborted, so fast scrolling doesn't leave the workers (or
+ * the server) busy with tiles that will never be drawn.
+ */
+public class HttpTileProvider extends AsyncTileProvider {
+
+    private static final int DEFAULT_NUM_THREADS = 4;
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static final String CACHE_DIR_NAME = "tbv-http";
+
+    /**
+     * The cache tier that hits and misses of the disk cache are recorded under in the provider's
+     * {@link TileMetrics}.  Revalidated tiles count as hits.
+     */
+    public static final String CACHE_TIER_DISK = "disk";
+
+    private static final String[] PLACEHOLDERS = {"{z}", "{x}", "{y}"};
+
+    // the template split around its placeholders, see buildUrl
+    private final List<String> templateParts = new ArrayList<String>();
+    private final List<Integer> templateFields = new ArrayList<Integer>();
+
+    private final HttpTileFetcher fetcher;
+    private final BitmapPool bitmapPool;
+
+    private volatile int level = 0;
+
+    /**
+     * Convenience constructor for a provider with 4 worker threads, at most 4 connections per host, and a disk
+     * cache in the application's cache directory.
+     */
+    public HttpTileProvider(Context ctx, String urlTemplate) {
+        this(ctx, urlTemplate, new HttpTileFetcher(new File(ctx.getCacheDir(), CACHE_DIR_NAME),
+                DEFAULT_MAX_CONNECTIONS_PER_HOST), DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param ctx         The context
+     * @param urlTemplate The tile URL template, see the class docs
+     * @param fetcher     The fetcher to download with, which may be shared with other providers (the connection
+     *                    cap then applies to them all)
+     * @param numThreads  The number of worker threads
+     */
+    public HttpTileProvider(Context ctx, String urlTemplate, HttpTileFetcher fetcher, int numThreads) {
+
+        super(ctx, numThreads);
+
+        this.fetcher = fetcher;
+        parseTemplate(urlTemplate);
+
+        int tileSize = getConfigTileSize();
+        bitmapPool = new BitmapPool(tileSize, tileSize, Bitmap.Config.ARGB_8888, BitmapPool.DEFAULT_MAX_SIZE);
+    }
+
+    private void parseTemplate(String template) {
+
+        int pos = 0;
+        while (true) {
+
+            // find the next placeholder
+            int next = -1, field = -1;
+            for (int i = 0; i < PLACEHOLDERS.length; i++) {
+                int idx = template.indexOf(PLACEHOLDERS[i], pos);
+                if (idx >= 0 && (next < 0 || idx < next)) {
+                    next = idx;
+                    field = i;
+                }
+            }
+
+            if (next < 0) {
+                templateParts.add(template.substring(pos));
+                return;
+            }
+
+            templateParts.add(template.substring(pos, next));
+            templateFields.add(field);
+            pos = next + PLACEHOLDERS[field].length();
+        }
+    }
+
+    /**
+     * @return The URL of the specified tile at the specified level.  Override for URL schemes the template can't
+     *         express.
+     */
+    protected URL buildUrl(int level, int x, int y) throws IOException {
+
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < templateFields.size(); i++) {
+            sb.append(templateParts.get(i));
+            int field = templateFields.get(i);
+            sb.append(field == 0 ? level : (field == 1 ? x : y));
+        }
+        sb.append(templateParts.get(templateParts.size() - 1));
+
+        return new URL(sb.toString());
+    }
+
+    /**
+     * @return The level substituted for <code>{z}</code> in the URL template
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Change the level substituted for <code>{z}</code> in the URL template.  This drops all cached tiles.  If the
+     * tile ID limits depend on the level, re-register the provider with
+     * {@link TiledBitmapView#registerProvider(TileProvider)} so the view picks up the new config.
+     */
+    public void setLevel(int level) {
+
+        if (level != this.level) {
+            this.level = level;
+            clearCache();
+        }
+    }
+
+    /**
+     * @return The fetcher, eg to set its timeouts or cache max age
+     */
+    public HttpTileFetcher getFetcher() {
+        return fetcher;
+    }
+
+    @Override
+    protected Bitmap loadTileBitmap(Tile tile) throws IOException {
+
+        // may have been cancelled while queued
+        if (!isTileInRange(tile.xId, tile.yId)) {
+            throw new InterruptedIOException("Cancelled");
+        }
+
+        // a cancellation throws InterruptedIOException, any other failure IOException, neither is cached as no data
+        HttpTileFetcher.Result result = fetcher.fetch(buildUrl(level, tile.xId, tile.yId), tile);
+
+        if (result == null) {
+            return null; // no such tile
+        }
+
+        TileMetrics metrics = getMetrics();
+        if (metrics != null && result.source == HttpTileFetcher.SOURCE_NETWORK) {
+            metrics.recordCacheMiss(CACHE_TIER_DISK);
+        } else if (metrics != null) {
+            metrics.recordCacheHit(CACHE_TIER_DISK);
+        }
+
+        return decodeTile(result.data);
+    }
+
+    private Bitmap decodeTile(final byte[] data) throws IOException {
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // decoding into a reused bitmap needs API 11 (and tiles of the same size, which they should all be)
+        Bitmap bmp = bitmapPool.decode(opts, Build.VERSION.SDK_INT >= 11, new BitmapPool.Decoder() {
+            public Bitmap decode(BitmapFactory.Options opts) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            }
+        });
+
+        if (bmp == null) {
+            throw new IOException("Undecodable tile image (" + data.length + " bytes)");
+        }
+        return bmp;
+    }
+
+    @Override
+    protected void onRequestCancelled(Tile t) {
+        fetcher.cancel(t);
+    }
+
+    @Override
+    protected void onTileEvicted(Tile t) {
+        Bitmap bmp = t.getBmpData();
+        super.onTileEvicted(t);
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format("HttpProv[Z%d,%s,%s]", level, fetcher.getSummary(), super.getDebugSummary());
+    }
+
+}
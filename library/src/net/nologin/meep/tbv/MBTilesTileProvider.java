@@ -0,0 +1,405 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A provider serving tiles from an <a href="https://github.com/mapbox/mbtiles-spec">MBTiles</a> database (an SQLite
+ * file with a <code>tiles</code> table of PNG or JPEG tile images, keyed by zoom level, column and row).
+ * <br/><br/>
+ * MBTiles rows are numbered from the bottom (TMS), while the view's tile IDs go down the screen, so tile
+ * <code>(x, y)</code> at zoom <code>z</code> is read from row <code>(2<sup>z</sup> - 1) - y</code>, with tile
+ * <code>(0,0)</code> at the top-left.  The provider serves one zoom level at a time (see
+ * {@link #setZoomLevel(int)}), limiting scrolling to the bounds of the tiles at that level.
+ * <br/><br/>
+ * Rather than a query per tile, each strip of adjacent missing tiles is fetched with a single range query.  Each
+ * worker thread gets its own read-only connection from a small pool (one per thread at most), so workers don't
+ * contend for a connection lock, and since every strip runs the same SQL, each connection compiles the query once
+ * and then reuses it from its statement cache.
+ */
+public class MBTilesTileProvider extends AsyncTileProvider {
+
+    private static final int DEFAULT_NUM_THREADS = 2;
+
+    private static final String ZOOM_RANGE_QUERY = "SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles";
+
+    private static final String BOUNDS_QUERY = "SELECT MIN(tile_column), MAX(tile_column), MIN(tile_row), "
+            + "MAX(tile_row) FROM tiles WHERE zoom_level = ?";
+
+    private static final String TILE_QUERY = "SELECT tile_data FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String STRIP_QUERY = "SELECT tile_column, tile_data FROM tiles "
+            + "WHERE zoom_level = ? AND tile_row = ? AND tile_column BETWEEN ? AND ?";
+
+    private final String dbPath;
+    private final int tileSize;
+    private final int numThreads;
+    private final int minZoom, maxZoom;
+
+    private volatile int zoom;
+    private volatile Integer[] tileIdLimits;
+
+    // connections not currently in use by a worker, and a count of all connections opened
+    private final LinkedList<SQLiteDatabase> idleConnections = new LinkedList<SQLiteDatabase>();
+    private int numConnections = 0;
+    private boolean released = false;
+
+    private final BitmapPool bitmapPool;
+
+    /**
+     * Convenience constructor for a provider with 256px tiles and 2 worker threads, starting at the database's
+     * lowest zoom level.
+     */
+    public MBTilesTileProvider(Context ctx, File dbFile) throws IOException {
+        this(ctx, dbFile, Tile.DEFAULT_TILE_SIZE, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param ctx        The context
+     * @param dbFile     The MBTiles file
+     * @param tileSize   The size of the tile images (the MBTiles format doesn't record it, but it's almost always
+     *                   256px)
+     * @param numThreads The number of worker threads (and so, connections) to use
+     * @throws IOException If the database can't be opened, or has no tiles
+     */
+    public MBTilesTileProvider(Context ctx, File dbFile, int tileSize, int numThreads) throws IOException {
+
+        super(ctx, numThreads);
+
+        this.dbPath = dbFile.getAbsolutePath();
+        this.tileSize = tileSize;
+        this.numThreads = Math.max(1, numThreads);
+
+        SQLiteDatabase db = acquireConnection();
+        try {
+            Cursor c = db.rawQuery(ZOOM_RANGE_QUERY, null);
+            try {
+                if (!c.moveToNext() || c.isNull(0)) {
+                    throw new IOException("No tiles in " + dbPath);
+                }
+                minZoom = c.getInt(0);
+                maxZoom = c.getInt(1);
+            } finally {
+                c.close();
+            }
+
+            zoom = minZoom;
+            tileIdLimits = queryTileIdLimits(db, zoom);
+
+        } catch (SQLiteException e) {
+            throw new IOException("Can't read " + dbPath + ": " + e.getMessage());
+        } finally {
+            releaseConnection(db);
+        }
+
+        bitmapPool = new BitmapPool(tileSize, tileSize, Bitmap.Config.ARGB_8888, BitmapPool.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @return The zoom level currently being served
+     */
+    public int getZoomLevel() {
+        return zoom;
+    }
+
+    /**
+     * @return The lowest zoom level in the database
+     */
+    public int getMinZoomLevel() {
+        return minZoom;
+    }
+
+    /**
+     * @return The highest zoom level in the database
+     */
+    public int getMaxZoomLevel() {
+        return maxZoom;
+    }
+
+    /**
+     * Change the zoom level.  This drops all cached tiles, and since the tile ID limits change, the view will need
+     * to pick up the new config - re-register the provider with
+     * {@link TiledBitmapView#registerProvider(TileProvider)} to do this.
+     *
+     * @param zoom The zoom level, out of range values are clamped to those in the database.
+     * @throws IOException If the bounds of the new level can't be read
+     */
+    public void setZoomLevel(int zoom) throws IOException {
+
+        zoom = Math.max(minZoom, Math.min(zoom, maxZoom));
+        if (zoom == this.zoom) {
+            return;
+        }
+
+        SQLiteDatabase db = acquireConnection();
+        try {
+            tileIdLimits = queryTileIdLimits(db, zoom);
+        } catch (SQLiteException e) {
+            throw new IOException("Can't read bounds of zoom level " + zoom + ": " + e.getMessage());
+        } finally {
+            releaseConnection(db);
+        }
+
+        this.zoom = zoom;
+        clearCache();
+    }
+
+    /* The bounds of the tiles at the specified zoom, converted from TMS rows to tile IDs */
+    private static Integer[] queryTileIdLimits(SQLiteDatabase db, int zoom) {
+
+        Cursor c = db.rawQuery(BOUNDS_QUERY, new String[]{Integer.toString(zoom)});
+        try {
+            int lastRow = (1 << zoom) - 1;
+            if (!c.moveToNext() || c.isNull(0)) {
+                // no tiles at this level, allow the whole grid
+                return new Integer[]{0, 0, lastRow, lastRow};
+            }
+            return new Integer[]{c.getInt(0), lastRow - c.getInt(3), c.getInt(1), lastRow - c.getInt(2)};
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public int getConfigTileSize() {
+        // the superclass constructor calls this before our tile size is set
+        return tileSize > 0 ? tileSize : Tile.DEFAULT_TILE_SIZE;
+    }
+
+    @Override
+    public Integer[] getConfigTileIDLimits() {
+        return tileIdLimits;
+    }
+
+    @Override
+    public GridAnchor getConfigGridAnchor() {
+        // tile (0,0) is the top-left of the map
+        return GridAnchor.TopLeft;
+    }
+
+    @Override
+    protected Bitmap loadTileBitmap(Tile tile) throws IOException {
+
+        int zoom = this.zoom;
+        String[] args = {Integer.toString(zoom), Integer.toString(tile.xId),
+                Integer.toString((1 << zoom) - 1 - tile.yId)};
+
+        SQLiteDatabase db = acquireConnection();
+        try {
+            Cursor c = db.rawQuery(TILE_QUERY, args);
+            try {
+                return c.moveToNext() ? decodeTile(c.getBlob(0)) : null;
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Failed to read " + tile + ": " + e.getMessage());
+        } finally {
+            releaseConnection(db);
+        }
+    }
+
+    /**
+     * Loads the whole strip with one range query on the row, publishing each tile as its row arrives.  Tiles with
+     * no row in the database are published with no data.
+     */
+    @Override
+    protected void loadStrip(List<Tile> strip) {
+
+        // claim what's still wanted, keyed by column
+        Map<Integer, Tile> claimed = new HashMap<Integer, Tile>();
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        for (Tile t : strip) {
+            if (claimTile(t)) {
+                claimed.put(t.xId, t);
+                minX = Math.min(minX, t.xId);
+                maxX = Math.max(maxX, t.xId);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+
+        int zoom = this.zoom;
+        int tmsRow = (1 << zoom) - 1 - strip.get(0).yId;
+        String[] args = {Integer.toString(zoom), Integer.toString(tmsRow), Integer.toString(minX),
+                Integer.toString(maxX)};
+
+        SQLiteDatabase db = null;
+        Cursor c = null;
+        try {
+            db = acquireConnection();
+            c = db.rawQuery(STRIP_QUERY, args);
+
+            while (c.moveToNext()) {
+
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+
+                Tile t = claimed.remove(c.getInt(0));
+                if (t == null) {
+                    continue;
+                }
+
+                // a bad tile image shouldn't cost the rest of the strip
+                try {
+                    publishTile(t, decodeTile(c.getBlob(1)));
+                } catch (IOException e) {
+                    Log.w(Utils.LOG_TAG, "Failed to load " + t, e);
+                    abandonTile(t);
+                }
+            }
+
+            // whatever's left has no data (unless interrupted, in which case the rest are abandoned below)
+            if (!Thread.currentThread().isInterrupted()) {
+                for (Tile t : claimed.values()) {
+                    publishTile(t, null);
+                }
+                claimed.clear();
+            }
+
+        } catch (IOException e) {
+            Log.w(Utils.LOG_TAG, "Failed to load strip of " + strip.size() + " tiles from row " + tmsRow, e);
+        } catch (SQLiteException e) {
+            Log.w(Utils.LOG_TAG, "Failed to load strip of " + strip.size() + " tiles from row " + tmsRow, e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            if (db != null) {
+                releaseConnection(db);
+            }
+            for (Tile t : claimed.values()) {
+                abandonTile(t);
+            }
+        }
+    }
+
+    private Bitmap decodeTile(final byte[] data) throws IOException {
+
+        if (data == null) {
+            return null;
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // decoding into a reused bitmap needs API 11 (and tiles of the same size, which they should all be)
+        Bitmap bmp = bitmapPool.decode(opts, Build.VERSION.SDK_INT >= 11, new BitmapPool.Decoder() {
+            public Bitmap decode(BitmapFactory.Options opts) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            }
+        });
+
+        if (bmp == null) {
+            throw new IOException("Undecodable tile image (" + data.length + " bytes)");
+        }
+        return bmp;
+    }
+
+    private SQLiteDatabase acquireConnection() throws IOException {
+
+        synchronized (idleConnections) {
+
+            if (released) {
+                throw new IOException("Provider released");
+            }
+            if (!idleConnections.isEmpty()) {
+                return idleConnections.removeFirst();
+            }
+            // there's at most one connection per worker thread (plus the UI thread's), so this can't grow unbounded
+            numConnections++;
+        }
+
+        try {
+            return SQLiteDatabase.openDatabase(dbPath, null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        } catch (SQLiteException e) {
+            synchronized (idleConnections) {
+                numConnections--;
+            }
+            throw new IOException("Can't open " + dbPath + ": " + e.getMessage());
+        }
+    }
+
+    private void releaseConnection(SQLiteDatabase db) {
+
+        synchronized (idleConnections) {
+            if (released) {
+                db.close();
+            } else {
+                idleConnections.addFirst(db);
+            }
+        }
+    }
+
+    @Override
+    protected void onTileEvicted(Tile t) {
+        Bitmap bmp = t.getBmpData();
+        super.onTileEvicted(t);
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    /**
+     * Close the database connections and free the pooled bitmaps.  The provider can't be used afterwards.
+     */
+    public void release() {
+
+        onSurfaceDestroyed();
+
+        List<SQLiteDatabase> toClose;
+        synchronized (idleConnections) {
+            released = true;
+            toClose = new LinkedList<SQLiteDatabase>(idleConnections);
+            idleConnections.clear();
+        }
+        for (SQLiteDatabase db : toClose) {
+            db.close();
+        }
+
+        bitmapPool.clear();
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format("MBTilesProv[Z%d,conn=%d/%d,%s]", zoom, numConnections, numThreads,
+                super.getDebugSummary());
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a 24-bit RGB PNG a row at a time, so images far too big to hold in memory can be encoded (see
+ * {@link TileRegionExporter}).  Rows are compressed as they arrive and written out in IDAT chunks, so only a
+ * chunk's worth of compressed data is buffered.  Pure Java, with no Android dependencies.
+ * <br/><br/>
+ * Not thread-safe.
+ */
+final class PngStreamWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // PNG 'Sub' filter, each byte stored as the difference from the same channel of the pixel to its left
+    private static final int FILTER_SUB = 1;
+
+    private final DataOutputStream out;
+    private final int width, height;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+
+    // a filtered scanline (filter type byte first), and the compressed data not yet written as a chunk
+    private final byte[] scanline;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength = 0;
+
+    private int rowsWritten = 0;
+
+    /**
+     * Write the PNG header.  The stream isn't closed by this class.
+     *
+     * @param os     The stream to write the PNG to
+     * @param width  Image width (px)
+     * @param height Image height (px), the number of rows that must be written before {@link #finish()}
+     */
+    PngStreamWriter(OutputStream os, int width, int height) throws IOException {
+
+        if (width <= 0 || height <= 0 || width > (Integer.MAX_VALUE - 1) / 3) {
+            throw new IllegalArgumentException("Invalid PNG size " + width + "x" + height);
+        }
+
+        this.out = new DataOutputStream(os);
+        this.width = width;
+        this.height = height;
+        this.scanline = new byte[1 + width * 3];
+
+        out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;  // bits per channel
+        ihdr[9] = 2;  // colour type, RGB
+        ihdr[10] = 0; // deflate
+        ihdr[11] = 0; // adaptive filtering
+        ihdr[12] = 0; // no interlace
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    /**
+     * Add rows to the image, in top to bottom order.
+     *
+     * @param pixels  ARGB pixels (as from <code>Bitmap.getPixels</code>), alpha is ignored
+     * @param offset  Index of the first pixel of the first row
+     * @param stride  Number of pixels between the starts of consecutive rows
+     * @param numRows Number of rows to add
+     */
+    void writeRows(int[] pixels, int offset, int stride, int numRows) throws IOException {
+
+        if (rowsWritten + numRows > height) {
+            throw new IllegalStateException("Writing " + numRows + " rows would exceed the image height " + height);
+        }
+
+        for (int row = 0; row < numRows; row++) {
+
+            scanline[0] = FILTER_SUB;
+
+            int prevR = 0, prevG = 0, prevB = 0;
+            int p = offset + row * stride;
+            int i = 1;
+            for (int x = 0; x < width; x++) {
+                int argb = pixels[p++];
+                int r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+                scanline[i++] = (byte) (r - prevR);
+                scanline[i++] = (byte) (g - prevG);
+                scanline[i++] = (byte) (b - prevB);
+                prevR = r;
+                prevG = g;
+                prevB = b;
+            }
+
+            deflater.setInput(scanline);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        rowsWritten += numRows;
+    }
+
+    /**
+     * Flush the remaining compressed data and write the PNG trailer.  The underlying stream is flushed, not closed.
+     *
+     * @throws IllegalStateException if fewer rows than the image height have been written
+     */
+    void finish() throws IOException {
+
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (chunkLength > 0) {
+            writeChunk("IDAT", chunk, chunkLength);
+        }
+        deflater.end();
+
+        writeChunk("IEND", chunk, 0);
+        out.flush();
+    }
+
+    /* compress into the chunk buffer, writing it out as an IDAT chunk whenever it fills */
+    private void deflate() throws IOException {
+
+        chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+        if (chunkLength == chunk.length) {
+            writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+}
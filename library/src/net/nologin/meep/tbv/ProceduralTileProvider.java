@@ -0,0 +1,315 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A base class for providers that generate their tiles procedurally (fractals, heatmaps, etc), rendering each
+ * tile in parallel rather than on a single thread.  Subclasses implement
+ * {@link #renderBlock(Tile, int[], int, int, int, int, int, int, BlockScratch)}.
+ * <br/><br/>
+ * Each tile is split into square blocks (see {@link #ProceduralTileProvider(Context, int, int)}), which are
+ * rendered straight into a pixel buffer for the whole tile.  The thread loading the tile renders blocks itself,
+ * while helper threads from a shared pool (one per core) take the rest, so a tile finishes as quickly as the
+ * available cores allow, and never waits on a busy pool.  The finished pixels are then written with a single
+ * <code>setPixels</code> into a pooled bitmap.
+ * <br/><br/>
+ * Nothing is allocated per block: the tile pixel buffer is per loading thread, and each thread renders with its own
+ * reusable {@link BlockScratch}, holding a scratch pixel buffer and a <code>Canvas</code> and <code>Paint</code>
+ * for subclasses that draw with the canvas API rather than computing pixels directly.
+ */
+public abstract class ProceduralTileProvider extends AsyncTileProvider {
+
+    private static final int DEFAULT_NUM_THREADS = 2;
+
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private final int blockSize;
+    private final int parallelism;
+
+    private final BitmapPool bitmapPool;
+
+    private ExecutorService blockExecutor;
+
+    private final ThreadLocal<int[]> tilePixels = new ThreadLocal<int[]>();
+    private final ThreadLocal<BlockScratch> scratch = new ThreadLocal<BlockScratch>();
+
+    /**
+     * Per-thread scratch space for rendering blocks, reused for every block the thread renders.
+     */
+    public static class BlockScratch {
+
+        /**
+         * A scratch pixel buffer, large enough for one block (<code>blockSize * blockSize</code>)
+         */
+        public final int[] buffer;
+
+        /**
+         * A paint for drawing on {@link #getCanvas()}.  Its state is left as the last block rendered on this thread
+         * left it.
+         */
+        public final Paint paint = new Paint();
+
+        private final int blockSize;
+        private Bitmap canvasBitmap;
+        private Canvas canvas;
+
+        BlockScratch(int blockSize) {
+            this.blockSize = blockSize;
+            this.buffer = new int[blockSize * blockSize];
+        }
+
+        /**
+         * @return A canvas drawing onto a block-sized bitmap (created on first use).  Its content is left as the
+         *         last block rendered on this thread left it.  Copy the drawn result into the tile with
+         *         {@link #copyCanvasTo(int[], int, int, int, int)}.
+         */
+        public Canvas getCanvas() {
+            if (canvas == null) {
+                canvasBitmap = Bitmap.createBitmap(blockSize, blockSize, Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(canvasBitmap);
+            }
+            return canvas;
+        }
+
+        /**
+         * Copy the top-left of the canvas bitmap into a pixel buffer.
+         *
+         * @param pixels The destination, usually the tile pixels passed to <code>renderBlock</code>
+         * @param offset The index of the first destination pixel
+         * @param stride The row length of the destination
+         * @param width  The width to copy
+         * @param height The height to copy
+         */
+        public void copyCanvasTo(int[] pixels, int offset, int stride, int width, int height) {
+            getCanvas();
+            canvasBitmap.getPixels(pixels, offset, stride, 0, 0, width, height);
+        }
+    }
+
+    /**
+     * Convenience constructor for a provider with 2 tile loading threads and 64px blocks.
+     */
+    protected ProceduralTileProvider(Context ctx) {
+        this(ctx, DEFAULT_NUM_THREADS, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param ctx        The context
+     * @param numThreads The number of tiles loaded at once.  Each is rendered in parallel anyway, so a couple is
+     *                   plenty.
+     * @param blockSize  The side length of the blocks tiles are split into (px).  Smaller blocks balance the load
+     *                   across cores better, larger blocks have less per-block overhead.
+     */
+    protected ProceduralTileProvider(Context ctx, int numThreads, int blockSize) {
+
+        super(ctx, numThreads);
+
+        int tileSize = getConfigTileSize();
+        this.blockSize = Math.max(1, Math.min(blockSize, tileSize));
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+
+        bitmapPool = new BitmapPool(tileSize, tileSize, Bitmap.Config.ARGB_8888, BitmapPool.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Render one block of a tile.  Invoked concurrently on several threads, for different blocks of the same tile
+     * (and of different tiles), so implementations must be thread-safe, and should only write to their own block
+     * of the pixel buffer.
+     *
+     * @param tile        The tile being rendered
+     * @param pixels      The tile's pixel buffer (ARGB), uninitialised.  Pixel <code>(x,y)</code> of the tile is
+     *                    at <code>pixels[offset + (y - blockTop) * stride + (x - blockLeft)]</code>.
+     * @param offset      The index of the block's top-left pixel
+     * @param stride      The row length of the pixel buffer
+     * @param blockLeft   The x coordinate of the block in the tile
+     * @param blockTop    The y coordinate of the block in the tile
+     * @param blockWidth  The block width (less than the block size at the tile's right edge, if the tile size isn't
+     *                    a multiple of it)
+     * @param blockHeight The block height (as for the width)
+     * @param scratch     This thread's scratch space
+     */
+    protected abstract void renderBlock(Tile tile, int[] pixels, int offset, int stride, int blockLeft, int blockTop,
+                                        int blockWidth, int blockHeight, BlockScratch scratch);
+
+    @Override
+    protected Bitmap loadTileBitmap(Tile tile) throws IOException {
+
+        int size = tile.size;
+
+        int[] pixels = tilePixels.get();
+        if (pixels == null || pixels.length != size * size) {
+            pixels = new int[size * size];
+            tilePixels.set(pixels);
+        }
+
+        TileJob job = new TileJob(tile, pixels);
+
+        // helpers take blocks alongside this thread, any that start after the blocks run out just finish
+        int numHelpers = Math.min(parallelism - 1, job.numBlocks - 1);
+        if (numHelpers > 0) {
+            ExecutorService executor = getBlockExecutor();
+            try {
+                for (int i = 0; i < numHelpers; i++) {
+                    executor.execute(job);
+                }
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime, this thread will just do the rest itself
+            }
+        }
+
+        job.run();
+
+        try {
+            job.blocksDone.await();
+        } catch (InterruptedException e) {
+            job.abort();
+            tilePixels.remove(); // helpers may still be finishing their blocks in it
+            Thread.currentThread().interrupt(); // let the worker see it
+            throw new InterruptedIOException("Interrupted rendering " + tile);
+        }
+
+        if (job.failure != null) {
+            throw job.failure;
+        }
+        if (job.aborted) {
+            // went out of range, a cancellation rather than no data
+            throw new InterruptedIOException("Cancelled rendering " + tile);
+        }
+
+        Bitmap bmp = bitmapPool.acquire();
+        bmp.setPixels(pixels, 0, size, 0, 0, size, size);
+        return bmp;
+    }
+
+    private synchronized ExecutorService getBlockExecutor() {
+
+        if (blockExecutor == null || blockExecutor.isShutdown()) {
+            blockExecutor = Executors.newFixedThreadPool(Math.max(1, parallelism - 1));
+        }
+        return blockExecutor;
+    }
+
+    /**
+     * The blocks of one tile, claimed in order by whichever threads are running this job.
+     */
+    private class TileJob implements Runnable {
+
+        final Tile tile;
+        final int[] pixels;
+        final int numBlocksX, numBlocks;
+
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final CountDownLatch blocksDone;
+
+        volatile boolean aborted;
+        volatile RuntimeException failure;
+
+        TileJob(Tile tile, int[] pixels) {
+            this.tile = tile;
+            this.pixels = pixels;
+            this.numBlocksX = (tile.size + blockSize - 1) / blockSize;
+            this.numBlocks = numBlocksX * numBlocksX;
+            this.blocksDone = new CountDownLatch(numBlocks);
+        }
+
+        /* Skip the remaining blocks (each still counts down, so waiting threads are released) */
+        void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void run() {
+
+            // don't compete with the UI or rendering threads
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            BlockScratch s = scratch.get();
+            if (s == null || s.blockSize != blockSize) {
+                s = new BlockScratch(blockSize);
+                scratch.set(s);
+            }
+
+            int block;
+            while ((block = nextBlock.getAndIncrement()) < numBlocks) {
+
+                try {
+                    // stop early if the tile has gone out of range, or another block failed
+                    if (aborted || failure != null || !isTileInRange(tile.xId, tile.yId)) {
+                        aborted = true;
+                        continue;
+                    }
+
+                    int left = (block % numBlocksX) * blockSize;
+                    int top = (block / numBlocksX) * blockSize;
+                    int width = Math.min(blockSize, tile.size - left);
+                    int height = Math.min(blockSize, tile.size - top);
+
+                    renderBlock(tile, pixels, top * tile.size + left, tile.size, left, top, width, height, s);
+
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    blocksDone.countDown();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onTileEvicted(Tile t) {
+        Bitmap bmp = t.getBmpData();
+        super.onTileEvicted(t);
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    public void onSurfaceDestroyed() {
+
+        super.onSurfaceDestroyed();
+
+        synchronized (this) {
+            if (blockExecutor != null) {
+                blockExecutor.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format("ProcProv[%dx%dpx blocks,%s]", blockSize, blockSize, super.getDebugSummary());
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A provider that serves tiles straight out of one large JPEG or PNG image, with no slicing into tile files
+ * beforehand.  Only the image header is read on construction, so even very large images open immediately, and
+ * each tile's region is then decoded on demand with a {@link BitmapRegionDecoder}.
+ * <br/><br/>
+ * A region decoder only decodes one region at a time, so each worker thread gets a decoder from a small pool
+ * (one per thread at most).  Tile bitmaps are pooled too, and decoded into directly where the platform allows.
+ * <br/><br/>
+ * The image can be viewed at several levels of detail - at level <code>n</code>, each tile covers
+ * <code>tileSize * 2<sup>n</sup></code> source pixels, decoded with an <code>inSampleSize</code> of
+ * <code>2<sup>n</sup></code>.  The tile grid starts with tile <code>(0,0)</code> at the top-left of the image,
+ * and scrolling is limited to the image bounds at the current level.
+ * <br/><br/>
+ * Tiles are loaded progressively - each strip of tiles is first decoded at a fraction of the resolution (see
+ * {@link #setPreviewSampleSize(int)}), which the view shows scaled up until the full decodes arrive.
+ */
+public class RegionDecoderTileProvider extends AsyncTileProvider {
+
+    private static final int DEFAULT_NUM_THREADS = 2;
+
+    private static final int DEFAULT_PREVIEW_SAMPLE_SIZE = 8;
+
+    private final String imagePath;
+    private final int imageWidth, imageHeight;
+    private final int maxLevel;
+    private final int numThreads;
+
+    private volatile int level = 0;
+    private volatile int previewSampleSize = DEFAULT_PREVIEW_SAMPLE_SIZE;
+
+    // decoders not currently in use by a worker, and a count of all decoders created
+    private final LinkedList<BitmapRegionDecoder> idleDecoders = new LinkedList<BitmapRegionDecoder>();
+    private int numDecoders = 0;
+    private boolean released = false;
+
+    private final BitmapPool bitmapPool;
+
+    /**
+     * Convenience constructor for a provider with 2 worker threads.
+     * See {@link #RegionDecoderTileProvider(Context, String, int)}.
+     */
+    public RegionDecoderTileProvider(Context ctx, String imagePath) throws IOException {
+        this(ctx, imagePath, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param ctx        The context
+     * @param imagePath  Path to the JPEG or PNG image file
+     * @param numThreads The number of worker threads (and so, decoders) to use.  Unless the device has plenty of
+     *                   cores and memory, 2 is usually enough.
+     * @throws IOException If the image's dimensions can't be read
+     */
+    public RegionDecoderTileProvider(Context ctx, String imagePath, int numThreads) throws IOException {
+
+        super(ctx, numThreads);
+
+        this.imagePath = imagePath;
+        this.numThreads = Math.max(1, numThreads);
+
+        // only the header is read here, this is quick regardless of image size
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            throw new IOException("Can't read image dimensions of " + imagePath);
+        }
+        imageWidth = opts.outWidth;
+        imageHeight = opts.outHeight;
+
+        // the level where the whole image fits in one tile is as far out as it's worth going
+        int tileSize = getConfigTileSize();
+        int level = 0;
+        while ((tileSize << level) < Math.max(imageWidth, imageHeight)) {
+            level++;
+        }
+        maxLevel = level;
+
+        bitmapPool = new BitmapPool(tileSize, tileSize, Bitmap.Config.ARGB_8888, BitmapPool.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @return The source image width (px)
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    /**
+     * @return The source image height (px)
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * @return The current level of detail, 0 being full resolution
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The highest level, at which the whole image fits in a single tile
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Change the level of detail.  This drops all cached tiles, and since the tile ID limits change, the view
+     * will need to pick up the new config - re-register the provider with
+     * {@link TiledBitmapView#registerProvider(TileProvider)} to do this.
+     *
+     * @param level 0 for full resolution, up to {@link #getMaxLevel()}.  Out of range values are clamped.
+     */
+    public void setLevel(int level) {
+
+        level = Math.max(0, Math.min(level, maxLevel));
+        if (level != this.level) {
+            this.level = level;
+            clearCache();
+        }
+    }
+
+    /**
+     * @return The factor by which tile previews are subsampled, 1 if previews are disabled
+     */
+    public int getPreviewSampleSize() {
+        return previewSampleSize;
+    }
+
+    /**
+     * Set the resolution of the tile previews, shown while the full resolution tiles are decoded.  The default of
+     * 8 decodes previews with 1/64th of the pixels, which is quick enough to fill the screen almost immediately.
+     *
+     * @param sampleSize The factor by which previews are subsampled (rounded down to a power of 2, as decoders do),
+     *                   or 1 to disable previews.
+     */
+    public void setPreviewSampleSize(int sampleSize) {
+        this.previewSampleSize = Integer.highestOneBit(Math.max(1, sampleSize));
+    }
+
+    @Override
+    public Integer[] getConfigTileIDLimits() {
+
+        int span = getConfigTileSize() << level;
+
+        // tiles are IDed from 0 at the top-left, round up so partial tiles at the right/bottom are included
+        int lastX = (imageWidth + span - 1) / span - 1;
+        int lastY = (imageHeight + span - 1) / span - 1;
+
+        return new Integer[]{0, 0, lastX, lastY};
+    }
+
+    @Override
+    public GridAnchor getConfigGridAnchor() {
+        // tile (0,0) is the top-left of the image
+        return GridAnchor.TopLeft;
+    }
+
+    @Override
+    protected Bitmap loadTileBitmap(Tile tile) throws IOException {
+
+        int level = this.level;
+        int span = getConfigTileSize() << level;
+
+        final Rect region = new Rect(tile.xId * span, tile.yId * span, (tile.xId + 1) * span, (tile.yId + 1) * span);
+        if (!region.intersect(0, 0, imageWidth, imageHeight)) {
+            return null; // outside the image
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1 << level;
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        /* region decoding into a reused bitmap needs API 16, and the partial tiles at the right/bottom edge
+         * won't fill one, so only full tiles are decoded into pooled bitmaps */
+        boolean reuse = Build.VERSION.SDK_INT >= 16 && region.width() == span && region.height() == span;
+
+        final BitmapRegionDecoder decoder = acquireDecoder();
+        try {
+            return bitmapPool.decode(opts, reuse, new BitmapPool.Decoder() {
+                public Bitmap decode(BitmapFactory.Options opts) {
+                    return decoder.decodeRegion(region, opts);
+                }
+            });
+
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    @Override
+    protected void loadTilePreview(Tile tile) throws IOException {
+
+        int previewSampleSize = this.previewSampleSize;
+        if (previewSampleSize <= 1) {
+            return;
+        }
+
+        int level = this.level;
+        int span = getConfigTileSize() << level;
+
+        Rect region = new Rect(tile.xId * span, tile.yId * span, (tile.xId + 1) * span, (tile.yId + 1) * span);
+        if (!region.intersect(0, 0, imageWidth, imageHeight)) {
+            return; // outside the image
+        }
+
+        // previews are small and short-lived, so not worth pooling
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = previewSampleSize << level;
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        BitmapRegionDecoder decoder = acquireDecoder();
+        try {
+            publishPreview(tile, decoder.decodeRegion(region, opts), previewSampleSize);
+        } finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    private BitmapRegionDecoder acquireDecoder() throws IOException {
+
+        synchronized (idleDecoders) {
+
+            if (released) {
+                throw new IOException("Provider released");
+            }
+            if (!idleDecoders.isEmpty()) {
+                return idleDecoders.removeFirst();
+            }
+            // there's at most one decoder per worker thread, so this can't grow unbounded
+            numDecoders++;
+        }
+
+        try {
+            return BitmapRegionDecoder.newInstance(imagePath, false);
+        } catch (IOException e) {
+            synchronized (idleDecoders) {
+                numDecoders--;
+            }
+            throw e;
+        }
+    }
+
+    private void releaseDecoder(BitmapRegionDecoder decoder) {
+
+        synchronized (idleDecoders) {
+            if (released) {
+                decoder.recycle();
+            } else {
+                idleDecoders.addFirst(decoder);
+            }
+        }
+    }
+
+    @Override
+    protected void onTileEvicted(Tile t) {
+        Bitmap bmp = t.getBmpData();
+        super.onTileEvicted(t);
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    /**
+     * Free the decoders and pooled bitmaps.  The provider can't be used afterwards.  Decoders hold on to
+     * native memory, so call this when the provider is no longer needed (eg in the Activity's
+     * <code>onDestroy</code>) rather than waiting for the GC.
+     */
+    public void release() {
+
+        onSurfaceDestroyed();
+
+        List<BitmapRegionDecoder> toRecycle;
+        synchronized (idleDecoders) {
+            released = true;
+            toRecycle = new LinkedList<BitmapRegionDecoder>(idleDecoders);
+            idleDecoders.clear();
+        }
+        for (BitmapRegionDecoder decoder : toRecycle) {
+            decoder.recycle();
+        }
+
+        bitmapPool.clear();
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format("RegionProv[L%d,%dx%d,dec=%d/%d]", level, imageWidth, imageHeight,
+                numDecoders, numThreads);
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * Something the {@link TileRenderer} can draw a frame onto.  The {@link TiledBitmapView} renders to its
+ * surface (see {@link SurfaceRenderTarget}), but the same drawing code can also be pointed at an offscreen
+ * bitmap (see {@link BitmapRenderTarget}), which is useful for measuring draw throughput without a display, or for
+ * rendering the tile grid to an image.
+ * <br/><br/>
+ * The contract mirrors that of {@link android.view.SurfaceHolder}: every successful {@link #lockCanvas(Rect)}
+ * must be followed by exactly one {@link #unlockCanvasAndPost(Canvas)} with the same canvas.
+ */
+public interface RenderTarget {
+
+    /**
+     * Start drawing a frame.
+     *
+     * @param dirty The area that will be redrawn, or <code>null</code> for the whole target.
+     * @return The canvas to draw on, or <code>null</code> if the target is not currently drawable (in which
+     *         case {@link #unlockCanvasAndPost(Canvas)} must not be called).
+     */
+    public Canvas lockCanvas(Rect dirty);
+
+    /**
+     * Finish drawing the frame started with {@link #lockCanvas(Rect)}, and publish it.
+     *
+     * @param canvas The canvas returned by {@link #lockCanvas(Rect)}
+     */
+    public void unlockCanvasAndPost(Canvas canvas);
+
+}
@@ -0,0 +1,257 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares one {@link AsyncTileProvider} (its cache, its worker threads and its loaded bitmaps) between several
+ * views of the same tiles, eg a main view and a linked overview.  Each view registers a client provider from
+ * {@link #acquire()}, rather than a provider of its own:
+ * <pre>
+ *     SharedTileService service = new SharedTileService(new MyAsyncProvider(ctx));
+ *     mainView.registerProvider(service.acquire());
+ *     overviewView.registerProvider(service.acquire());
+ * </pre>
+ * Each client passes its view's range on to the service, and the shared provider then works from all of the
+ * ranges at once - a tile stays cached while any view needs it, a tile visible in two views is only loaded once,
+ * and the view that moved most recently gets its tiles loaded first.  Memory use and loading work scale with the
+ * number of distinct tiles visible, not with the number of views.  Zoom changes are merged the same way: the
+ * provider is only told of the highest zoom factor of any view, when that changes.
+ * <br/><br/>
+ * The service is reference counted.  Once every client has been {@link Client#release() released}, the shared
+ * provider's background work is stopped, and the service can't hand out any more clients.  Releasing any other
+ * resources the provider holds (eg its <code>release()</code> method) is still up to the owner.
+ */
+public class SharedTileService {
+
+    private final AsyncTileProvider provider;
+
+    // all access synchronized on this
+    private final List<Client> clients = new ArrayList<Client>();
+    private boolean released = false;
+    private float mergedZoom = 1f;
+
+    /* bumped whenever the provider has fresh data, each client compares it with the value it last saw.  Polled by
+     * every view's rendering thread, so it's kept clear of the lock the UI thread holds during range changes */
+    private final AtomicInteger freshDataGeneration = new AtomicInteger();
+
+    /**
+     * @param provider The provider to share.  It shouldn't be registered with any view directly.
+     */
+    public SharedTileService(AsyncTileProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @return The shared provider
+     */
+    public AsyncTileProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * Get a new client provider for a view to register, adding a reference to the service.
+     *
+     * @throws IllegalStateException if every earlier client has already been released
+     */
+    public synchronized Client acquire() {
+
+        if (released) {
+            throw new IllegalStateException("Service released");
+        }
+        Client client = new Client();
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * @return The number of clients acquired and not yet released
+     */
+    public synchronized int getClientCount() {
+        return clients.size();
+    }
+
+    /* A client's range has changed (or gone, if null) - hand the provider every live range, newest first */
+    private synchronized void onClientRangeChange(Client changed) {
+
+        List<TileRange> ranges = new ArrayList<TileRange>(clients.size());
+        if (changed.range != null) {
+            ranges.add(changed.range);
+        }
+        for (Client c : clients) {
+            if (c != changed && c.range != null) {
+                ranges.add(c.range);
+            }
+        }
+
+        if (ranges.isEmpty()) {
+            // nobody's looking, stop loading (requests are rebuilt on the next range change)
+            provider.onSurfaceDestroyed();
+        } else {
+            provider.onTileIDRangesChange(ranges);
+        }
+    }
+
+    /* A client's zoom has changed (or it's been released) - tell the provider if the highest zoom of any view has */
+    private synchronized void onClientZoomChange() {
+
+        float zoom = 0;
+        for (Client c : clients) {
+            zoom = Math.max(zoom, c.zoom);
+        }
+        if (zoom > 0 && zoom != mergedZoom) {
+            mergedZoom = zoom;
+            provider.onZoomFactorChange(zoom);
+        }
+    }
+
+    /* the provider's fresh data flag is reset when read, so it's fanned out to every client as a new generation */
+    private int pollFreshData() {
+
+        if (provider.hasFreshData()) {
+            return freshDataGeneration.incrementAndGet();
+        }
+        return freshDataGeneration.get();
+    }
+
+    private synchronized void release(Client client) {
+
+        if (!clients.remove(client)) {
+            return;
+        }
+        if (clients.isEmpty()) {
+            released = true;
+            provider.onSurfaceDestroyed();
+        } else {
+            client.range = null;
+            onClientRangeChange(client);
+            onClientZoomChange();
+        }
+    }
+
+    /**
+     * A view's handle on the shared provider.  Tile lookups and config go straight to the shared provider, while
+     * range changes and surface destruction only affect this view's share of it.
+     */
+    public class Client implements TileProvider {
+
+        // only accessed while synchronized on the service
+        private TileRange range;
+        private float zoom = 1f;
+
+        // the fresh data generation last seen, only accessed by this client's view's rendering thread
+        private int seenGeneration = freshDataGeneration.get();
+
+        private Client() {
+        }
+
+        /**
+         * Drop this client's reference to the service.  The view shouldn't use this client afterwards.
+         */
+        public void release() {
+            SharedTileService.this.release(this);
+        }
+
+        @Override
+        public int getConfigTileSize() {
+            return provider.getConfigTileSize();
+        }
+
+        @Override
+        public Integer[] getConfigTileIDLimits() {
+            return provider.getConfigTileIDLimits();
+        }
+
+        @Override
+        public Integer[] getConfigWrapPeriod() {
+            return provider.getConfigWrapPeriod();
+        }
+
+        @Override
+        public TileExistenceIndex getConfigExistenceIndex() {
+            return provider.getConfigExistenceIndex();
+        }
+
+        @Override
+        public TileHints getConfigTileHints() {
+            return provider.getConfigTileHints();
+        }
+
+        @Override
+        public GridAnchor getConfigGridAnchor() {
+            return provider.getConfigGridAnchor();
+        }
+
+        @Override
+        public Tile getTile(int x, int y) {
+            return provider.getTile(x, y);
+        }
+
+        @Override
+        public boolean hasFreshData() {
+
+            int generation = pollFreshData();
+            if (generation == seenGeneration) {
+                return false;
+            }
+            seenGeneration = generation;
+            return true;
+        }
+
+        @Override
+        public void onTileIDRangeChange(TileRange newRange) {
+            synchronized (SharedTileService.this) {
+                if (!clients.contains(this)) {
+                    return; // released
+                }
+                range = newRange;
+                onClientRangeChange(this);
+            }
+        }
+
+        @Override
+        public void onZoomFactorChange(float newZoom) {
+            synchronized (SharedTileService.this) {
+                if (!clients.contains(this)) {
+                    return; // released
+                }
+                zoom = newZoom;
+                onClientZoomChange();
+            }
+        }
+
+        @Override
+        public void onSurfaceDestroyed() {
+            // only this view has gone, the others may still be using the provider
+            onTileIDRangeChange(null);
+        }
+
+        @Override
+        public String getDebugSummary() {
+            return provider.getDebugSummary() + "x" + getClientCount();
+        }
+
+        @Override
+        public TileMetrics getMetrics() {
+            return provider.getMetrics();
+        }
+    }
+
+}
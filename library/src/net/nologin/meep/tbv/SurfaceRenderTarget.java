@@ -0,0 +1,47 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
+
+/**
+ * The {@link RenderTarget} used by the {@link TiledBitmapView} itself, drawing onto the view's surface.
+ */
+public class SurfaceRenderTarget implements RenderTarget {
+
+    private final SurfaceHolder holder;
+
+    /**
+     * @param holder The holder of the surface to draw onto
+     */
+    public SurfaceRenderTarget(SurfaceHolder holder) {
+        this.holder = holder;
+    }
+
+    @Override
+    public Canvas lockCanvas(Rect dirty) {
+        return holder.lockCanvas(dirty);
+    }
+
+    @Override
+    public void unlockCanvasAndPost(Canvas canvas) {
+        holder.unlockCanvasAndPost(canvas);
+    }
+
+}
@@ -67,8 +67,24 @@ public class Tile {
 
     /* The only mutable fields in this class, the bitmap data is set by the provider, and can
      * be cleared as well (usually when the provider detects that the tile has gone out of
-     * range to prevent the heap memory from being gobbled up) */
-    private Bitmap bmpData;
+     * range to prevent the heap memory from being gobbled up).  Volatile, as the second pass of
+     * a progressive load replaces the bitmap of a tile the rendering thread may already be drawing */
+    private volatile Bitmap bmpData;
+
+    /* A low resolution stand-in for bmpData, drawn scaled up until bmpData is set. The scale is
+     * always written before the bitmap, and the renderer reads them in the opposite order */
+    private volatile Bitmap previewBmpData;
+    private volatile int previewScale = 1;
+
+    // set when the tile's data has been invalidated, but is still shown until the replacement arrives
+    private volatile boolean stale;
+
+    /* Cache epochs (see AsyncTileProvider.invalidate), the epoch in which the load of this tile's data started,
+     * and the epoch in which it was last invalidated.  Only touched by the provider. */
+    volatile int loadEpoch, invalidEpoch;
+
+    // when the provider queued the request for this tile's data (System.nanoTime()), for TileMetrics latency
+    volatile long requestNanos;
 
     /**
      * Create a tile with side length {@link #DEFAULT_TILE_SIZE}, IDed by the x and y
@@ -110,6 +126,25 @@ public class Tile {
         return (long) x << 32 | y & 0xFFFFFFFFL;
     }
 
+    /**
+     * Normalise a tile coordinate on an axis that wraps around (see {@link TileProvider#getConfigWrapPeriod()}),
+     * to a value in the range <code>[0, period)</code>.  Negative coordinates wrap too, eg with a period of 5, -1
+     * becomes 4.
+     *
+     * @param id     The x or y coordinate
+     * @param period The period of the axis, or <code>0</code> if the axis doesn't wrap
+     * @return The normalised coordinate, or <code>id</code> unchanged if the axis doesn't wrap.
+     */
+    public static int wrapId(int id, int period) {
+
+        if (period <= 0) {
+            return id;
+        }
+        // http://stackoverflow.com/a/4412200/276183 for handling negative mod in java
+        int wrapped = id % period;
+        return wrapped < 0 ? wrapped + period : wrapped;
+    }
+
     /**
      * Convenience method to create a Rect of this tile's size at the specified coordinates
      *
@@ -129,21 +164,76 @@ public class Tile {
     }
 
     /**
-     * Set the bitmap
+     * Set the bitmap.  Setting a bitmap leaves any preview in place (it's no longer drawn, but a renderer may
+     * still be using it), while setting <code>null</code> clears the preview too.
      *
      * @param bmpData The bitmap data, may be <code>null</code>.
      */
     public void setBmpData(Bitmap bmpData) {
         this.bmpData = bmpData;
+        if (bmpData == null) {
+            previewBmpData = null;
+        }
     }
 
     /**
-     * Convenience method to set to contained bitmap to <code>null</code>
+     * Convenience method to set to contained bitmap (and any preview) to <code>null</code>
      */
     public void clearBmpData() {
         setBmpData(null);
     }
 
+    /**
+     * Set a low resolution preview of the tile's content, for progressive loading.  Until the full bitmap is set
+     * with {@link #setBmpData(Bitmap)}, the preview is drawn in its place, scaled up.
+     *
+     * @param preview The preview bitmap, may be <code>null</code>.
+     * @param scale   The factor the preview is scaled up by when drawn, eg 4 for a preview decoded with an
+     *                <code>inSampleSize</code> of 4.
+     */
+    public void setPreviewBmpData(Bitmap preview, int scale) {
+        this.previewScale = Math.max(1, scale);
+        this.previewBmpData = preview;
+    }
+
+    /**
+     * @return The preview bitmap, may be <code>null</code>.  Note that this isn't cleared when the full bitmap is
+     *         set, check {@link #getBmpData()} first.
+     */
+    public Bitmap getPreviewBmpData() {
+        return previewBmpData;
+    }
+
+    /**
+     * @return The factor the preview bitmap is scaled up by when drawn
+     */
+    public int getPreviewScale() {
+        return previewScale;
+    }
+
+    /**
+     * @return <code>true</code> if the tile only has a preview so far, and is still waiting for its full bitmap
+     */
+    public boolean isPreview() {
+        return bmpData == null && previewBmpData != null;
+    }
+
+    /**
+     * @return <code>true</code> if the tile's data is out of date, and is only being shown until a fresh copy
+     *         has loaded
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Mark the tile's data as out of date (or not), see {@link #isStale()}.  The view marks stale tiles when
+     * drawing debug information.
+     */
+    public void setStale(boolean stale) {
+        this.stale = stale;
+    }
+
     /**
      * This method is used by the rendering thread to detect a change in bitmap data.  Bitmap hashcodes might
      * be sufficient here, while a bit-by-bit comparison might be expensive.  Regardless of implementation,
@@ -154,7 +244,16 @@ public class Tile {
      */
     public int getBitmapContentHash() {
         // if we switch to something a bit more intensive than hashCode, consider caching the value on setBmpData
-        return bmpData == null ? 0 : bmpData.hashCode();
+        Bitmap bmp = bmpData;
+        if (bmp == null) {
+            bmp = previewBmpData; // so the switch from preview to full bitmap is detected
+        }
+        if (bmp == null) {
+            return 0;
+        }
+        // a change in staleness counts as a change in content, so the view redraws the stale marker
+        int hash = bmp.hashCode();
+        return stale ? (hash * 31 + 1 == 0 ? 1 : hash * 31 + 1) : hash;
     }
 
 
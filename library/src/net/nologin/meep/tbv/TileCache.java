@@ -0,0 +1,261 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The tile bookkeeping behind {@link AsyncTileProvider}, keyed by {@link Tile#cacheKey}: the loaded tiles, the
+ * requests waiting to be (or being) loaded, and the tiles evicted from the cache that may still be on screen.  It
+ * has no Android dependencies, so it can be exercised on a plain JVM.
+ * <br/><br/>
+ * A tile is {@link #request(Tile) requested} on a range change, {@link #claim(Tile, int) claimed} by the worker
+ * that loads it, and then either {@link #complete(Tile) completed} and {@link #put(Tile) cached}, or
+ * {@link #abandon(Tile) abandoned}.  Range changes {@link #evict(List, int, int, int) evict} the cached tiles and
+ * {@link #cancel(List, int, int, int) cancel} the requests that are no longer in range.
+ * <br/><br/>
+ * Lookups, claims and completions may come from any thread.  Requests, evictions and cancellations are made on the
+ * UI thread, one range change at a time.
+ */
+public class TileCache {
+
+    // loaded tiles (and pending tiles with a preview), read by the rendering thread while the UI thread evicts
+    private final Map<Long, Tile> cached = new ConcurrentHashMap<Long, Tile>();
+
+    // requested tiles that haven't been loaded yet, and the subset of those currently being loaded
+    private final ConcurrentHashMap<Long, Tile> pending = new ConcurrentHashMap<Long, Tile>();
+    private final ConcurrentHashMap<Long, Tile> inFlight = new ConcurrentHashMap<Long, Tile>();
+
+    // evicted tiles, held until polled, as the rendering thread may still be drawing the range they were evicted from
+    private final Queue<Tile> evicted = new ConcurrentLinkedQueue<Tile>();
+
+    /**
+     * @return The cached tile with the specified key, or <code>null</code>
+     */
+    public Tile get(long cacheKey) {
+        return cached.get(cacheKey);
+    }
+
+    /**
+     * Cache a tile, replacing any cached tile with the same key (which isn't evicted).
+     */
+    public void put(Tile t) {
+        cached.put(t.cacheKey, t);
+    }
+
+    /**
+     * @return The requested tile with the specified key, or <code>null</code> if there's no request for it
+     */
+    public Tile getRequest(long cacheKey) {
+        return pending.get(cacheKey);
+    }
+
+    /**
+     * Request a tile's data.
+     *
+     * @return <code>true</code> if requested, <code>false</code> if there's already a request for a tile with the
+     *         same key.
+     */
+    public boolean request(Tile t) {
+        return pending.putIfAbsent(t.cacheKey, t) == null;
+    }
+
+    /**
+     * @return <code>true</code> if the request for the tile is still outstanding.
+     */
+    public boolean isRequested(Tile t) {
+        return pending.get(t.cacheKey) == t;
+    }
+
+    /**
+     * Claim a requested tile for loading.
+     *
+     * @param t     The tile
+     * @param epoch The cache epoch the load starts in, recorded on the tile
+     * @return <code>true</code> if the tile should be loaded by the caller, <code>false</code> if the request has
+     *         since been dropped, or the tile is already being loaded elsewhere.
+     */
+    public boolean claim(Tile t, int epoch) {
+
+        if (pending.get(t.cacheKey) != t) {
+            return false;
+        }
+
+        // an earlier (since dropped) request for the same tile may still be finishing, its result will be discarded
+        Tile existing = inFlight.putIfAbsent(t.cacheKey, t);
+        if (existing == null || (existing != t && inFlight.replace(t.cacheKey, existing, t))) {
+            t.loadEpoch = epoch;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Complete the load of a claimed tile, removing its request.  The caller should then {@link #put(Tile)} it.
+     *
+     * @return <code>true</code> if the request was still outstanding, <code>false</code> if it was dropped while
+     *         the tile was loading (in which case the result should be discarded).
+     */
+    public boolean complete(Tile t) {
+        inFlight.remove(t.cacheKey, t);
+        return pending.remove(t.cacheKey, t);
+    }
+
+    /**
+     * Give up on a claimed tile, removing its request.
+     */
+    public void abandon(Tile t) {
+        inFlight.remove(t.cacheKey, t);
+        pending.remove(t.cacheKey, t);
+    }
+
+    /**
+     * Evict the cached tiles that aren't within the padding of any of the ranges.  The evicted tiles are held
+     * until they're taken with {@link #pollEvicted()}.
+     *
+     * @param ranges  The ranges of interest
+     * @param padding The number of tiles beyond each range that stay cached
+     * @param wrapX   The tile space's horizontal wrap period, 0 if it doesn't wrap
+     * @param wrapY   The tile space's vertical wrap period, 0 if it doesn't wrap
+     * @return The number of tiles evicted
+     */
+    public int evict(List<TileRange> ranges, int padding, int wrapX, int wrapY) {
+
+        TileTracer tracer = TileTracer.get();
+
+        int numEvicted = 0;
+        Iterator<Tile> it = cached.values().iterator();
+        while (it.hasNext()) {
+            Tile t = it.next();
+            if (!isInRanges(ranges, t.xId, t.yId, padding, wrapX, wrapY)) {
+                it.remove();
+                evicted.add(t);
+                tracer.tileEvicted(t.xId, t.yId);
+                numEvicted++;
+            }
+        }
+        return numEvicted;
+    }
+
+    /**
+     * Evict every cached tile, see {@link #evict(List, int, int, int)}.
+     */
+    public void evictAll() {
+
+        Iterator<Tile> it = cached.values().iterator();
+        while (it.hasNext()) {
+            Tile t = it.next();
+            it.remove();
+            evicted.add(t);
+        }
+    }
+
+    /**
+     * @return The next of the evicted tiles not yet polled, or <code>null</code> if there are none
+     */
+    public Tile pollEvicted() {
+        return evicted.poll();
+    }
+
+    /**
+     * Drop the requests for tiles that aren't within the padding of any of the ranges.
+     *
+     * @param ranges  The ranges of interest, or <code>null</code> to drop every request
+     * @param padding The number of tiles beyond each range whose requests are kept
+     * @param wrapX   The tile space's horizontal wrap period, 0 if it doesn't wrap
+     * @param wrapY   The tile space's vertical wrap period, 0 if it doesn't wrap
+     * @return The tiles whose requests were dropped (some may still be loading)
+     */
+    public List<Tile> cancel(List<TileRange> ranges, int padding, int wrapX, int wrapY) {
+
+        List<Tile> cancelled = null;
+        Iterator<Tile> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Tile t = it.next();
+            if (ranges == null || !isInRanges(ranges, t.xId, t.yId, padding, wrapX, wrapY)) {
+                it.remove();
+                if (cancelled == null) {
+                    cancelled = new ArrayList<Tile>();
+                }
+                cancelled.add(t);
+            }
+        }
+        return cancelled != null ? cancelled : Collections.<Tile>emptyList();
+    }
+
+    /**
+     * Mark the cached tiles in the specified range as {@link Tile#isStale() stale} as of the specified epoch, and
+     * the tiles being loaded in it as invalidated, so they're published as stale.
+     *
+     * @param range The range of tile IDs (normalised, in a wrapping tile space)
+     * @param epoch The epoch of the invalidation
+     */
+    public void markStale(TileRange range, int epoch) {
+
+        for (Tile t : cached.values()) {
+            if (coversTile(range, t.xId, t.yId)) {
+                t.invalidEpoch = epoch;
+                t.setStale(true);
+            }
+        }
+        for (Tile t : inFlight.values()) {
+            if (coversTile(range, t.xId, t.yId)) {
+                t.invalidEpoch = epoch;
+            }
+        }
+    }
+
+    /**
+     * Mark every cached tile as {@link Tile#isStale() stale}.
+     */
+    public void markAllStale() {
+        for (Tile t : cached.values()) {
+            t.setStale(true);
+        }
+    }
+
+    /**
+     * @return The number of cached tiles
+     */
+    public int size() {
+        return cached.size();
+    }
+
+    /**
+     * @return The number of outstanding requests, including those being loaded
+     */
+    public int numRequests() {
+        return pending.size();
+    }
+
+    // not TileRange.contains(), which treats a single row or column as empty
+    private static boolean coversTile(TileRange range, int x, int y) {
+        return x >= range.left && x <= range.right && y >= range.top && y <= range.bottom;
+    }
+
+    static boolean isInRanges(List<TileRange> ranges, int x, int y, int padding, int wrapX, int wrapY) {
+        for (TileRange range : ranges) {
+            if (range.contains(x, y, padding, wrapX, wrapY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.util.BitSet;
+
+/**
+ * A compact record of which tiles in a sparse tile space actually have content, for providers to return from
+ * {@link TileProvider#getConfigExistenceIndex()}.  Tiles missing from the index are never requested from the
+ * provider (or loaded by an {@link AsyncTileProvider}), and the view just draws a flat fill in their place.
+ * <br/><br/>
+ * The index covers a bounding box of tile IDs, and holds one bit per tile of each row that has any tiles at all
+ * (a row's bits only extend as far as its rightmost tile), so a million-tile box with a few thousand tiles in it
+ * takes a few KB.
+ * <br/><br/>
+ * Populate the index before handing it to the view; once in use, it's read concurrently by the rendering and
+ * loading threads, and must not be modified.
+ */
+public class TileExistenceIndex {
+
+    private final int minX, minY, maxX, maxY;
+
+    // one bitset per row (null for rows with no tiles), bit n is the tile at minX + n
+    private final BitSet[] rows;
+
+    private int numTiles = 0;
+
+    /**
+     * Create an empty index covering the specified bounding box of tile IDs (inclusive).
+     */
+    public TileExistenceIndex(int minX, int minY, int maxX, int maxY) {
+
+        if (maxX < minX || maxY < minY) {
+            throw new IllegalArgumentException("Empty bounds: " + minX + "," + minY + " to " + maxX + "," + maxY);
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.rows = new BitSet[maxY - minY + 1];
+    }
+
+    /**
+     * Mark a tile as existing.
+     *
+     * @throws IllegalArgumentException If the tile is outside the index's bounds
+     */
+    public void add(int x, int y) {
+        addRun(y, x, x);
+    }
+
+    /**
+     * Mark a run of horizontally adjacent tiles as existing.
+     *
+     * @param y     The row
+     * @param fromX The first tile of the run
+     * @param toX   The last tile of the run (inclusive)
+     * @throws IllegalArgumentException If the run is outside the index's bounds
+     */
+    public void addRun(int y, int fromX, int toX) {
+
+        if (y < minY || y > maxY || fromX < minX || toX > maxX || toX < fromX) {
+            throw new IllegalArgumentException("Run (" + fromX + "-" + toX + "," + y + ") outside index bounds");
+        }
+
+        BitSet row = rows[y - minY];
+        if (row == null) {
+            row = new BitSet();
+            rows[y - minY] = row;
+        }
+
+        // count only the newly set bits, without scanning the whole row
+        int from = fromX - minX, to = toX - minX + 1;
+        numTiles += (to - from) - row.get(from, to).cardinality();
+        row.set(from, to);
+    }
+
+    /**
+     * @return <code>true</code> if the specified tile has content
+     */
+    public boolean exists(int x, int y) {
+
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        BitSet row = rows[y - minY];
+        return row != null && row.get(x - minX);
+    }
+
+    /**
+     * @return <code>true</code> if any tile in the specified row has content
+     */
+    public boolean rowHasTiles(int y) {
+        return y >= minY && y <= maxY && rows[y - minY] != null;
+    }
+
+    /**
+     * @return The number of tiles with content
+     */
+    public int getNumTiles() {
+        return numTiles;
+    }
+
+    /**
+     * @return The index's bounding box, as a 4-element array suitable for returning from
+     *         {@link TileProvider#getConfigTileIDLimits()}
+     */
+    public Integer[] getBounds() {
+        return new Integer[]{minX, minY, maxX, maxY};
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileExistenceIndex[x=%d to %d,y=%d to %d,n=%d]", minX, maxX, minY, maxY, numTiles);
+    }
+
+}
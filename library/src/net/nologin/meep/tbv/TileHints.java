@@ -0,0 +1,167 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.BitSet;
+
+/**
+ * A tiny colour hint per tile, drawn by the view in place of tiles that haven't loaded yet (and have no preview),
+ * so fast pans show a rough impression of the content rather than a flat background.  Providers return these
+ * from {@link TileProvider#getConfigTileHints()}, either populated up front (eg from metadata stored with the
+ * tiles), or as tiles load (see {@link AsyncTileProvider#setTileHints(TileHints)}).
+ * <br/><br/>
+ * Hints cover a bounding box of tile IDs, and are stored as one RGB565 colour per tile in a flat
+ * <code>short</code> array, so a million-tile box takes about 2MB.
+ * <br/><br/>
+ * Hints may be set from any thread while the view is reading them - a hint read mid-update is just a slightly
+ * out of date colour, which is harmless.
+ */
+public class TileHints {
+
+    // how many pixels along each side are sampled by averageColor()
+    private static final int SAMPLES_PER_SIDE = 8;
+
+    private final int minX, minY, maxX, maxY;
+    private final int width;
+
+    private final short[] colors;
+    private final BitSet present;
+
+    /**
+     * Create an empty set of hints covering the specified bounding box of tile IDs (inclusive).
+     */
+    public TileHints(int minX, int minY, int maxX, int maxY) {
+
+        if (maxX < minX || maxY < minY) {
+            throw new IllegalArgumentException("Empty bounds: " + minX + "," + minY + " to " + maxX + "," + maxY);
+        }
+
+        long numTiles = ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+        if (numTiles > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bounds cover too many tiles: " + numTiles);
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.width = maxX - minX + 1;
+
+        colors = new short[(int) numTiles];
+        present = new BitSet((int) numTiles);
+    }
+
+    /**
+     * Set the hint colour of a tile.  Tiles outside the bounds are ignored.
+     *
+     * @param color The colour (alpha is ignored, and the precision is reduced to RGB565)
+     */
+    public void setColor(int x, int y, int color) {
+
+        int i = index(x, y);
+        if (i < 0) {
+            return;
+        }
+
+        int r = Color.red(color), g = Color.green(color), b = Color.blue(color);
+        colors[i] = (short) (((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3));
+
+        synchronized (present) {
+            present.set(i);
+        }
+    }
+
+    /**
+     * @return The hint colour of the tile (opaque), or <code>0</code> if it has no hint
+     */
+    public int getColor(int x, int y) {
+
+        int i = index(x, y);
+        if (i < 0) {
+            return 0;
+        }
+        synchronized (present) {
+            if (!present.get(i)) {
+                return 0;
+            }
+        }
+
+        int c = colors[i] & 0xFFFF;
+        int r = (c >> 11) & 0x1F, g = (c >> 5) & 0x3F, b = c & 0x1F;
+
+        // scale back up to 8 bits, so that eg full white comes back as full white
+        return Color.rgb((r << 3) | (r >> 2), (g << 2) | (g >> 4), (b << 3) | (b >> 2));
+    }
+
+    /**
+     * Remove all hints
+     */
+    public void clear() {
+        synchronized (present) {
+            present.clear();
+        }
+    }
+
+    private int index(int x, int y) {
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return -1;
+        }
+        return (y - minY) * width + (x - minX);
+    }
+
+    /**
+     * Work out a tile bitmap's average colour cheaply, by averaging an 8x8 grid of sampled pixels.
+     *
+     * @return The average colour (opaque)
+     */
+    public static int averageColor(Bitmap bmp) {
+
+        int w = bmp.getWidth(), h = bmp.getHeight();
+        if (w <= 0 || h <= 0) {
+            return Color.BLACK;
+        }
+
+        long r = 0, g = 0, b = 0;
+        int n = 0;
+        for (int sy = 0; sy < SAMPLES_PER_SIDE; sy++) {
+            int y = (sy * 2 + 1) * h / (SAMPLES_PER_SIDE * 2);
+            for (int sx = 0; sx < SAMPLES_PER_SIDE; sx++) {
+                int x = (sx * 2 + 1) * w / (SAMPLES_PER_SIDE * 2);
+                int c = bmp.getPixel(x, y);
+                r += Color.red(c);
+                g += Color.green(c);
+                b += Color.blue(c);
+                n++;
+            }
+        }
+
+        return Color.rgb((int) (r / n), (int) (g / n), (int) (b / n));
+    }
+
+    @Override
+    public String toString() {
+        int numHints;
+        synchronized (present) {
+            numHints = present.cardinality();
+        }
+        return String.format("TileHints[(%d,%d)-(%d,%d),hints=%d]", minX, minY, maxX, maxY, numHints);
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * An overlay drawn over the view's main provider, such as annotations on top of base imagery.  Each layer has its
+ * own {@link TileProvider} (and so its own cache), and its own opacity.  Layers are added with
+ * {@link TiledBitmapView#addLayer(TileProvider, float)}, and drawn in the order they were added.
+ * <br/><br/>
+ * Layers share the main provider's tile grid, so the layer provider's tile size must match.  Each layer's tiles
+ * are only re-fetched when its own provider reports fresh data (or the view moves), so a sparse overlay can be
+ * updated without the main provider regenerating anything.  Layer tiles with no bitmap (or missing from the
+ * layer's existence index) are simply left transparent.
+ */
+public class TileLayer {
+
+    final TileProvider provider;
+
+    private volatile float opacity;
+
+    // the paints are only touched by the rendering thread, the opacity gets applied to them before each draw
+    private final Paint paint_tile = new Paint();
+    private final Paint paint_preview = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // this layer's tile references and content hashes, see TileRenderer.refreshTiles()
+    private Tile[][] visibleTiles;
+    private int[][] oldTileHashcodes;
+
+    TileLayer(TileProvider provider, float opacity) {
+        this.provider = provider;
+        setOpacity(opacity);
+    }
+
+    /**
+     * @return The provider for this layer's tiles
+     */
+    public TileProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * @return The opacity this layer is drawn with, from 0 (invisible) to 1 (opaque)
+     */
+    public float getOpacity() {
+        return opacity;
+    }
+
+    /* see TiledBitmapView.setLayerOpacity(), which also requests a redraw */
+    void setOpacity(float opacity) {
+        this.opacity = Math.max(0f, Math.min(opacity, 1f));
+    }
+
+    /**
+     * Updates this layer's tile references, as per
+     * {@link TileRenderer#refreshTiles(TileProvider, ViewState, TileRange)}
+     *
+     * @return <code>true</code> if some bitmap data in this layer has changed since the last call
+     */
+    boolean refreshTiles(ViewState state, TileRange visibleRange) {
+
+        if (visibleTiles == null ||
+                visibleTiles.length != state.tilesVert || visibleTiles[0].length != state.tilesHoriz) {
+            visibleTiles = new Tile[state.tilesVert][state.tilesHoriz];
+            oldTileHashcodes = new int[state.tilesVert][state.tilesHoriz];
+        }
+
+        boolean bmpChangeDetected = false;
+
+        TileExistenceIndex existenceIndex = provider.getConfigExistenceIndex();
+        int wrapX = 0, wrapY = 0;
+        if (existenceIndex != null) {
+            Integer[] wrap = provider.getConfigWrapPeriod();
+            wrapX = Utils.getWrapPeriod(wrap, 0);
+            wrapY = Utils.getWrapPeriod(wrap, 1);
+        }
+
+        int xId, yId, newTileHash;
+
+        for (int y = 0; y < state.tilesVert; y++) {
+
+            for (int x = 0; x < state.tilesHoriz; x++) {
+
+                yId = y + visibleRange.top;
+                xId = x + visibleRange.left;
+
+                if (existenceIndex != null
+                        && !existenceIndex.exists(Tile.wrapId(xId, wrapX), Tile.wrapId(yId, wrapY))) {
+                    visibleTiles[y][x] = null;
+                    newTileHash = TileRenderer.ABSENT_TILE_HASH;
+                } else {
+                    // unlike the main provider, a null tile is fine here, there's just nothing to draw
+                    visibleTiles[y][x] = provider.getTile(xId, yId);
+                    newTileHash = visibleTiles[y][x] == null ? 0 : visibleTiles[y][x].getBitmapContentHash();
+                }
+
+                if (newTileHash != oldTileHashcodes[y][x]) {
+                    bmpChangeDetected = true;
+                }
+                oldTileHashcodes[y][x] = newTileHash;
+            }
+        }
+
+        return bmpChangeDetected;
+    }
+
+    /* draws the tiles from the last refresh, the canvas already being translated to the grid origin */
+    void draw(Canvas canvas, ViewState state, Rect previewDst) {
+
+        int alpha = Math.round(opacity * 255);
+        if (visibleTiles == null || alpha == 0) {
+            return;
+        }
+        paint_tile.setAlpha(alpha);
+        paint_preview.setAlpha(alpha);
+
+        int curTileTop = 0;
+
+        for (Tile[] tileRow : visibleTiles) {
+
+            int curTileLeft = 0;
+
+            for (Tile t : tileRow) {
+
+                if (t != null) {
+
+                    Bitmap bmp = t.getBmpData();
+                    if (bmp != null) {
+                        canvas.drawBitmap(bmp, curTileLeft, curTileTop, paint_tile);
+                    } else {
+                        Bitmap preview = t.getPreviewBmpData();
+                        if (preview != null) {
+                            int scale = t.getPreviewScale();
+                            previewDst.set(curTileLeft, curTileTop,
+                                    curTileLeft + preview.getWidth() * scale, curTileTop + preview.getHeight() * scale);
+                            canvas.drawBitmap(preview, null, previewDst, paint_preview);
+                        }
+                    }
+                }
+
+                curTileLeft += state.tileWidth;
+            }
+
+            curTileTop += state.tileWidth;
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance metrics for a {@link TileProvider}, to help work out whether blank tiles on screen are down to slow
+ * tile generation or to poor caching.  Each provider has an instance (see {@link TileProvider#getMetrics()}), and
+ * part of it is filled in automatically by the view as it renders:
+ * <ul>
+ * <li><b>Empty frames</b>: the number of frames each tile was drawn empty before its bitmap data arrived, and the
+ * total number of empty tiles drawn over all frames.</li>
+ * <li><b>Visible tier</b>: a cache hit/miss for every visible tile fetched with bitmap data/without.</li>
+ * </ul>
+ * The rest is up to the provider, which knows about its own requests, caches and queues - see
+ * {@link #recordLatency(long)}, {@link #recordCacheHit(String)}, {@link #recordCacheMiss(String)},
+ * {@link #setQueueDepth(int)} and {@link #recordCancelled(int)}.  {@link AsyncTileProvider} fills all of these in,
+ * the <b>latency</b> it records being the time from a tile's request being queued to its load being published, as
+ * a histogram with power-of-two millisecond buckets.
+ * <br/><br/>
+ * The counters can be read from any thread.  A one-line summary is included in the view's debug box.
+ */
+public class TileMetrics {
+
+    /**
+     * The cache tier recorded automatically by the view, one entry for each visible tile fetched from the provider.
+     */
+    public static final String TIER_VISIBLE = "visible";
+
+    /**
+     * Number of latency histogram buckets. Bucket 0 counts latencies under 1ms, bucket <code>i</code> counts those
+     * from 2<sup>i-1</sup> up to 2<sup>i</sup> ms, and the last bucket counts everything beyond.
+     */
+    public static final int NUM_LATENCY_BUCKETS = 16;
+
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(NUM_LATENCY_BUCKETS);
+    private final AtomicLong framesDrawn = new AtomicLong();
+    private final AtomicLong emptyTileFrames = new AtomicLong();
+    private final AtomicLong readyTiles = new AtomicLong();
+    private final AtomicLong readyTileEmptyFrames = new AtomicLong();
+    private final AtomicLong cancelledRequests = new AtomicLong();
+    private volatile int queueDepth;
+
+    // hits at index 0, misses at index 1
+    private final ConcurrentHashMap<String, AtomicLong[]> cacheTiers = new ConcurrentHashMap<String, AtomicLong[]>();
+
+    /**
+     * Record a cache hit in the specified tier
+     *
+     * @param tier The name of the cache tier (eg "memory", "disk"), chosen by the provider.
+     */
+    public void recordCacheHit(String tier) {
+        getTierCounters(tier)[0].incrementAndGet();
+    }
+
+    /**
+     * Record a cache miss in the specified tier
+     *
+     * @param tier The name of the cache tier (eg "memory", "disk"), chosen by the provider.
+     */
+    public void recordCacheMiss(String tier) {
+        getTierCounters(tier)[1].incrementAndGet();
+    }
+
+    private AtomicLong[] getTierCounters(String tier) {
+
+        AtomicLong[] counters = cacheTiers.get(tier);
+        if (counters == null) {
+            // another thread may be adding the same tier, whichever gets there first is the one kept
+            AtomicLong[] created = new AtomicLong[]{new AtomicLong(), new AtomicLong()};
+            counters = cacheTiers.putIfAbsent(tier, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * @param depth The number of tile requests currently queued by the provider
+     */
+    public void setQueueDepth(int depth) {
+        this.queueDepth = depth;
+    }
+
+    /**
+     * @param numRequests The number of queued/in-progress tile requests that the provider has just abandoned
+     *                    (eg, because the tiles are no longer in range)
+     */
+    public void recordCancelled(int numRequests) {
+        cancelledRequests.addAndGet(numRequests);
+    }
+
+    /**
+     * Record a request-to-ready latency measurement
+     *
+     * @param latencyNanos The time from the tile's request being queued to its data being ready for the view
+     */
+    public void recordLatency(long latencyNanos) {
+
+        long millis = latencyNanos / 1000000;
+
+        // bucket = number of bits needed for the millis value (0 -> 0, 1 -> 1, 2-3 -> 2, 4-7 -> 3, etc)
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        latencyBuckets.incrementAndGet(Math.min(bucket, NUM_LATENCY_BUCKETS - 1));
+    }
+
+    /* Called by the rendering thread for each visible tile */
+    void onVisibleTile(boolean hasBitmap) {
+
+        if (hasBitmap) {
+            recordCacheHit(TIER_VISIBLE);
+        } else {
+            recordCacheMiss(TIER_VISIBLE);
+        }
+    }
+
+    /* Called by the rendering thread when a tile that's been drawn empty is drawn with its bitmap.  Each view
+     * tracks its own empty tiles, as several views may share a provider (and so its metrics) */
+    void recordReadyTile(long emptyFrames) {
+        readyTiles.incrementAndGet();
+        readyTileEmptyFrames.addAndGet(emptyFrames);
+    }
+
+    /* Called by the rendering thread after each frame is drawn */
+    void onFrameDrawn(int numEmptyTiles) {
+        framesDrawn.incrementAndGet();
+        emptyTileFrames.addAndGet(numEmptyTiles);
+    }
+
+    /**
+     * @return A copy of the latency histogram, see {@link #NUM_LATENCY_BUCKETS}
+     */
+    public long[] getLatencyHistogram() {
+
+        long[] copy = new long[NUM_LATENCY_BUCKETS];
+        for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+            copy[i] = latencyBuckets.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param percentile A value from 0 to 100
+     * @return The upper bound (ms) of the histogram bucket containing the given latency percentile, or
+     *         <code>-1</code> if nothing has been recorded.
+     */
+    public long getLatencyPercentileMillis(double percentile) {
+
+        long[] histogram = getLatencyHistogram();
+
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+
+        long threshold = (long) Math.ceil(total * Math.max(0, Math.min(percentile, 100)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= threshold && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 1L << (NUM_LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * @return The number of frames drawn
+     */
+    public long getFramesDrawn() {
+        return framesDrawn.get();
+    }
+
+    /**
+     * @return The total number of empty visible tiles over all frames drawn (eg, 3 frames each with 2 empty tiles
+     *         gives 6)
+     */
+    public long getEmptyTileFrames() {
+        return emptyTileFrames.get();
+    }
+
+    /**
+     * @return The average number of frames a tile was drawn empty before its bitmap data arrived (only counts
+     *         tiles that were drawn empty at least once).
+     */
+    public double getMeanEmptyFramesPerTile() {
+        long tiles = readyTiles.get();
+        return tiles == 0 ? 0 : (double) readyTileEmptyFrames.get() / tiles;
+    }
+
+    /**
+     * @return The queue depth, as last set by the provider
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The number of requests cancelled by the provider
+     */
+    public long getCancelledRequests() {
+        return cancelledRequests.get();
+    }
+
+    /**
+     * @return The names of the cache tiers recorded so far
+     */
+    public Set<String> getCacheTiers() {
+        return Collections.unmodifiableSet(cacheTiers.keySet());
+    }
+
+    /**
+     * @return The number of hits recorded in the specified tier
+     */
+    public long getCacheHits(String tier) {
+        AtomicLong[] counters = cacheTiers.get(tier);
+        return counters == null ? 0 : counters[0].get();
+    }
+
+    /**
+     * @return The number of misses recorded in the specified tier
+     */
+    public long getCacheMisses(String tier) {
+        AtomicLong[] counters = cacheTiers.get(tier);
+        return counters == null ? 0 : counters[1].get();
+    }
+
+    /**
+     * @return The ratio of hits to lookups in the specified tier, from 0 to 1 (0 if nothing recorded)
+     */
+    public double getCacheHitRatio(String tier) {
+        long hits = getCacheHits(tier);
+        long total = hits + getCacheMisses(tier);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Reset all counters.  Can be called from any thread, though a count being recorded at the time may be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+            latencyBuckets.set(i, 0);
+        }
+        framesDrawn.set(0);
+        emptyTileFrames.set(0);
+        readyTiles.set(0);
+        readyTileEmptyFrames.set(0);
+        cancelledRequests.set(0);
+        cacheTiers.clear();
+    }
+
+    /**
+     * @return A short summary for the debug box, eg "p50=16 p90=128ms hit=0.93 q=4 x=12 ef=2.5"
+     */
+    public String getSummary() {
+        return String.format("p50=%d p90=%dms hit=%1.2f q=%d x=%d ef=%1.1f",
+                getLatencyPercentileMillis(50), getLatencyPercentileMillis(90), getCacheHitRatio(TIER_VISIBLE),
+                queueDepth, cancelledRequests.get(), getMeanEmptyFramesPerTile());
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a tile pack - a single file archive holding the encoded (eg PNG or JPEG) tile images of one or more levels
+ * of detail, as written by {@link TilePackWriter}.  The file is memory mapped, so opening a pack is near-instant
+ * regardless of its size, there are no per-tile file opens, and each lookup is a binary search of the mapped
+ * index.  The tile data is returned as a view of the mapped buffer, and can be decoded straight from there.
+ * <br/><br/>
+ * <b>Format</b> (all values big-endian):
+ * <pre>
+ * header:  int magic ('TBVK'), int version, int tileSize, int numLevels, int numEntries
+ * levels:  numLevels * { int level, int minX, int minY, int maxX, int maxY, int firstEntry, int numEntries }
+ *          (sorted by level)
+ * index:   numEntries * { long cacheKey, long offset, int length }
+ *          (grouped by level, in the order of the level table, and sorted by cacheKey within each level)
+ * data:    the encoded tile images, at the absolute file offsets given in the index
+ * </pre>
+ * Cache keys are as per {@link Tile#createCacheKey(int, int)}.  Level 0 is full resolution, each level up is half
+ * the resolution of the level below.
+ * <br/><br/>
+ * Pure Java (no Android dependencies), and thread-safe.
+ */
+public class TilePackReader {
+
+    static final int MAGIC = 0x5442564B; // 'TBVK'
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 20;
+    static final int LEVEL_ENTRY_SIZE = 28;
+    static final int INDEX_ENTRY_SIZE = 20;
+
+    /**
+     * The largest encoded tile the format allows.  Data is mapped in segments which overlap by this much, so that
+     * any tile can be read from a single segment.
+     */
+    public static final int MAX_TILE_DATA_SIZE = 16 * 1024 * 1024;
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private final int tileSize;
+    private final int[] levels, minX, minY, maxX, maxY, firstEntry, numEntries;
+
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Open a pack.  Only the header and level table are read, the index and data are mapped.
+     *
+     * @param packFile The pack file
+     * @throws IOException If the file can't be read, or isn't a tile pack
+     */
+    public TilePackReader(File packFile) throws IOException {
+
+        file = new RandomAccessFile(packFile, "r");
+        try {
+
+            channel = file.getChannel();
+            fileSize = channel.size();
+
+            if (file.readInt() != MAGIC) {
+                throw new IOException("Not a tile pack: " + packFile);
+            }
+            int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported tile pack version " + version + ": " + packFile);
+            }
+
+            tileSize = file.readInt();
+            int numLevels = file.readInt();
+            int totalEntries = file.readInt();
+
+            levels = new int[numLevels];
+            minX = new int[numLevels];
+            minY = new int[numLevels];
+            maxX = new int[numLevels];
+            maxY = new int[numLevels];
+            firstEntry = new int[numLevels];
+            numEntries = new int[numLevels];
+
+            for (int i = 0; i < numLevels; i++) {
+                levels[i] = file.readInt();
+                minX[i] = file.readInt();
+                minY[i] = file.readInt();
+                maxX[i] = file.readInt();
+                maxY[i] = file.readInt();
+                firstEntry[i] = file.readInt();
+                numEntries[i] = file.readInt();
+            }
+
+            long indexStart = HEADER_SIZE + (long) numLevels * LEVEL_ENTRY_SIZE;
+            long indexSize = (long) totalEntries * INDEX_ENTRY_SIZE;
+            if (indexStart + indexSize > fileSize || indexSize > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt tile pack index: " + packFile);
+            }
+            index = channel.map(FileChannel.MapMode.READ_ONLY, indexStart, indexSize);
+
+            // data segments are mapped on first use
+            segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The side length (px) of the tiles in this pack
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return The levels contained in this pack, lowest first.  Don't modify.
+     */
+    public int[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return The tile ID bounds of the specified level, as a 4-element array (left, top, right, bottom, in the
+     *         same style as {@link TileProvider#getConfigTileIDLimits()}), or <code>null</code> if the pack doesn't
+     *         contain the level.
+     */
+    public Integer[] getLevelBounds(int level) {
+
+        int i = findLevel(level);
+        if (i < 0) {
+            return null;
+        }
+        return new Integer[]{minX[i], minY[i], maxX[i], maxY[i]};
+    }
+
+    /**
+     * @return The keys of all tiles in the specified level, in ascending order (empty if the pack doesn't contain
+     *         the level).  Each key packs a tile's coordinates as <code>(long) x &lt;&lt; 32 | (y &amp;
+     *         0xFFFFFFFF)</code>, the same as {@link Tile#createCacheKey(int, int)}.
+     */
+    public long[] getTileKeys(int level) {
+
+        int i = findLevel(level);
+        if (i < 0) {
+            return new long[0];
+        }
+
+        long[] keys = new long[numEntries[i]];
+        for (int e = 0; e < keys.length; e++) {
+            keys[e] = index.getLong((firstEntry[i] + e) * INDEX_ENTRY_SIZE);
+        }
+        return keys;
+    }
+
+    /**
+     * Look up the encoded data for a tile.
+     *
+     * @return A read-only buffer of the tile's data (positioned at 0, limited to the data length), or
+     *         <code>null</code> if the pack doesn't contain the tile.
+     * @throws IOException If the data segment couldn't be mapped
+     */
+    public ByteBuffer getTileData(int level, int x, int y) throws IOException {
+
+        int i = findLevel(level);
+        if (i < 0) {
+            return null;
+        }
+
+        long key = createKey(x, y);
+
+        // binary search this level's slice of the index, reading straight from the mapped buffer
+        int lo = firstEntry[i], hi = firstEntry[i] + numEntries[i] - 1;
+        while (lo <= hi) {
+
+            int mid = (lo + hi) >>> 1;
+            int pos = mid * INDEX_ENTRY_SIZE;
+            long midKey = index.getLong(pos);
+
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return sliceData(index.getLong(pos + 8), index.getInt(pos + 16));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return An input stream over the tile's data (see {@link #getTileData(int, int, int)}), or <code>null</code>
+     *         if the pack doesn't contain the tile.
+     * @throws IOException If the data segment couldn't be mapped
+     */
+    public InputStream openTileStream(int level, int x, int y) throws IOException {
+
+        ByteBuffer data = getTileData(level, x, y);
+        return data == null ? null : new ByteBufferInputStream(data);
+    }
+
+    /* Same packing as Tile.createCacheKey, which isn't used directly so that this class (and the writer) don't
+     * pull in Tile's Android dependencies when used by offline tools */
+    static long createKey(int x, int y) {
+        return (long) x << 32 | y & 0xFFFFFFFFL;
+    }
+
+    private int findLevel(int level) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] == level) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer sliceData(long offset, int length) throws IOException {
+
+        if (length < 0 || length > MAX_TILE_DATA_SIZE || offset < 0 || offset + length > fileSize) {
+            throw new IOException("Corrupt tile pack entry at offset " + offset);
+        }
+
+        int seg = (int) (offset / SEGMENT_SIZE);
+        ByteBuffer data = getSegment(seg).duplicate();
+
+        int start = (int) (offset - seg * SEGMENT_SIZE);
+        data.position(start);
+        data.limit(start + length);
+
+        return data.slice().asReadOnlyBuffer();
+    }
+
+    private synchronized MappedByteBuffer getSegment(int seg) throws IOException {
+
+        if (segments[seg] == null) {
+            long start = seg * SEGMENT_SIZE;
+            long size = Math.min(fileSize - start, SEGMENT_SIZE + MAX_TILE_DATA_SIZE);
+            segments[seg] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        return segments[seg];
+    }
+
+    /**
+     * Close the file.  The mappings stay valid until garbage collected, but no further lookups should be made.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads from a buffer without copying it first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+}
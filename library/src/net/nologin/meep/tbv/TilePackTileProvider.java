@@ -0,0 +1,198 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A provider serving tiles from a tile pack file (see {@link TilePackReader} for the format, and
+ * {@link TilePackWriter} to create one).  The pack is memory mapped, so startup is near-instant however many tiles
+ * it holds, and each tile is decoded directly from the mapped data.
+ * <br/><br/>
+ * Packs may hold several levels of detail; the provider serves one level at a time (see {@link #setLevel(int)}),
+ * and limits scrolling to the bounds of the tiles in that level.  Packs of sparse tile sets needn't hold every
+ * tile in those bounds - the gaps are reported through {@link #getConfigExistenceIndex()}, so they're never
+ * requested.
+ */
+public class TilePackTileProvider extends AsyncTileProvider {
+
+    private static final int DEFAULT_NUM_THREADS = 2;
+
+    private final TilePackReader reader;
+    private final BitmapPool bitmapPool;
+
+    private volatile int level;
+
+    // built from the pack's index on first use of each level
+    private final Map<Integer, TileExistenceIndex> existenceIndexes = new HashMap<Integer, TileExistenceIndex>();
+
+    /**
+     * Convenience constructor for a provider with 2 worker threads, starting at the pack's lowest level.
+     */
+    public TilePackTileProvider(Context ctx, File packFile) throws IOException {
+        this(ctx, new TilePackReader(packFile), DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param ctx        The context
+     * @param reader     The opened pack
+     * @param numThreads The number of worker threads to decode tiles on
+     */
+    public TilePackTileProvider(Context ctx, TilePackReader reader, int numThreads) {
+
+        super(ctx, numThreads);
+
+        this.reader = reader;
+
+        int[] levels = reader.getLevels();
+        level = levels.length == 0 ? 0 : levels[0];
+
+        int tileSize = reader.getTileSize();
+        bitmapPool = new BitmapPool(tileSize, tileSize, Bitmap.Config.ARGB_8888, BitmapPool.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @return The level of detail currently being served
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The levels contained in the pack, lowest first
+     */
+    public int[] getLevels() {
+        return reader.getLevels().clone();
+    }
+
+    /**
+     * Change the level of detail.  This drops all cached tiles, and since the tile ID limits change, the view
+     * will need to pick up the new config - re-register the provider with
+     * {@link TiledBitmapView#registerProvider(TileProvider)} to do this.
+     *
+     * @param level One of the levels in the pack, other values are ignored.
+     */
+    public void setLevel(int level) {
+
+        if (level != this.level && reader.getLevelBounds(level) != null) {
+            this.level = level;
+            clearCache();
+        }
+    }
+
+    @Override
+    public int getConfigTileSize() {
+        // the superclass constructor calls this before our reader is set
+        return reader == null ? Tile.DEFAULT_TILE_SIZE : reader.getTileSize();
+    }
+
+    @Override
+    public Integer[] getConfigTileIDLimits() {
+        return reader.getLevelBounds(level);
+    }
+
+    @Override
+    public TileExistenceIndex getConfigExistenceIndex() {
+
+        // called for every frame, so the result (even if null) is cached
+        int level = this.level;
+        synchronized (existenceIndexes) {
+
+            if (existenceIndexes.containsKey(level)) {
+                return existenceIndexes.get(level);
+            }
+
+            TileExistenceIndex index = null;
+
+            Integer[] bounds = reader.getLevelBounds(level);
+            long[] keys = reader.getTileKeys(level);
+
+            // a full level gains nothing from an index
+            if (bounds != null && keys.length < (long) (bounds[2] - bounds[0] + 1) * (bounds[3] - bounds[1] + 1)) {
+                index = new TileExistenceIndex(bounds[0], bounds[1], bounds[2], bounds[3]);
+                for (long key : keys) {
+                    index.add((int) (key >> 32), (int) key);
+                }
+            }
+
+            existenceIndexes.put(level, index);
+            return index;
+        }
+    }
+
+    @Override
+    protected Bitmap loadTileBitmap(final Tile tile) throws IOException {
+
+        final int level = this.level;
+        final InputStream is = reader.openTileStream(level, tile.xId, tile.yId);
+        if (is == null) {
+            return null; // no tile here
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // decoding into a reused bitmap needs API 11 (the pack's tiles are all tileSize, so the size will match)
+        return bitmapPool.decode(opts, Build.VERSION.SDK_INT >= 11, new BitmapPool.Decoder() {
+
+            private InputStream unread = is;
+
+            public Bitmap decode(BitmapFactory.Options opts) throws IOException {
+                // a retry needs a fresh stream
+                InputStream in = unread != null ? unread : reader.openTileStream(level, tile.xId, tile.yId);
+                unread = null;
+                return BitmapFactory.decodeStream(in, null, opts);
+            }
+        });
+    }
+
+    @Override
+    protected void onTileEvicted(Tile t) {
+        Bitmap bmp = t.getBmpData();
+        super.onTileEvicted(t);
+        bitmapPool.release(bmp);
+    }
+
+    @Override
+    protected void onBitmapDiscarded(Bitmap bmp) {
+        bitmapPool.release(bmp);
+    }
+
+    /**
+     * Close the pack and free the pooled bitmaps.  The provider can't be used afterwards.
+     */
+    public void release() throws IOException {
+        onSurfaceDestroyed();
+        bitmapPool.clear();
+        reader.close();
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return String.format("PackProv[L%d,%s]", level, super.getDebugSummary());
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes a tile pack, see {@link TilePackReader} for the format.  Tiles can be added in any order (and from
+ * several threads), as the encoded data is spooled to a temporary file next to the output as it arrives, and only
+ * the index (20 bytes per tile) is held in memory.  On {@link #finish()}, the index is sorted and the pack is
+ * assembled.
+ * <br/><br/>
+ * Pure Java (no Android dependencies), so it can be used both on a device and by offline tools.
+ */
+public class TilePackWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File outFile, spoolFile;
+    private final int tileSize;
+
+    private DataOutputStream spool;
+    private long spoolSize = 0;
+
+    // the index, in order of arrival
+    private int numEntries = 0;
+    private int[] levels = new int[INITIAL_CAPACITY];
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY]; // into the spool file until finish()
+    private int[] lengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * @param outFile  The pack file to write (will be overwritten)
+     * @param tileSize The side length (px) of the tiles
+     * @throws IOException If the spool file can't be created
+     */
+    public TilePackWriter(File outFile, int tileSize) throws IOException {
+
+        this.outFile = outFile;
+        this.tileSize = tileSize;
+        this.spoolFile = new File(outFile.getPath() + ".spool");
+
+        spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile), 64 * 1024));
+    }
+
+    /**
+     * Add a tile.  Each (level, x, y) should only be added once.
+     *
+     * @param level The level of detail (0 for full resolution)
+     * @param x     The tile's x coordinate
+     * @param y     The tile's y coordinate
+     * @param data  The encoded tile image, at most {@link TilePackReader#MAX_TILE_DATA_SIZE} bytes
+     * @param off   The offset of the image in <code>data</code>
+     * @param len   The length of the image
+     * @throws IOException If writing to the spool file fails
+     */
+    public synchronized void addTile(int level, int x, int y, byte[] data, int off, int len) throws IOException {
+
+        if (spool == null) {
+            throw new IllegalStateException("Pack already finished");
+        }
+        if (len > TilePackReader.MAX_TILE_DATA_SIZE) {
+            throw new IOException("Tile " + x + "," + y + " (level " + level + ") too large at " + len + " bytes");
+        }
+
+        if (numEntries == keys.length) {
+            grow();
+        }
+
+        levels[numEntries] = level;
+        keys[numEntries] = TilePackReader.createKey(x, y);
+        offsets[numEntries] = spoolSize;
+        lengths[numEntries] = len;
+        numEntries++;
+
+        spool.write(data, off, len);
+        spoolSize += len;
+    }
+
+    private void grow() {
+
+        int newCapacity = keys.length * 2;
+
+        levels = Arrays.copyOf(levels, newCapacity);
+        keys = Arrays.copyOf(keys, newCapacity);
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+    }
+
+    /**
+     * @return The number of tiles added so far
+     */
+    public synchronized int getNumTiles() {
+        return numEntries;
+    }
+
+    /**
+     * Sort the index and write the pack.  The writer can't be used afterwards.
+     *
+     * @throws IOException If writing fails
+     */
+    public synchronized void finish() throws IOException {
+
+        if (spool == null) {
+            throw new IllegalStateException("Pack already finished");
+        }
+        spool.close();
+        spool = null;
+
+        Integer[] order = sortedOrder();
+
+        // build the level table from the sorted order
+        List<int[]> levelTable = new ArrayList<int[]>();
+        int[] cur = null;
+        for (int i = 0; i < numEntries; i++) {
+
+            int e = order[i];
+            int x = (int) (keys[e] >> 32), y = (int) keys[e];
+
+            if (cur == null || cur[0] != levels[e]) {
+                // level, minX, minY, maxX, maxY, firstEntry, numEntries
+                cur = new int[]{levels[e], x, y, x, y, i, 0};
+                levelTable.add(cur);
+            }
+            cur[1] = Math.min(cur[1], x);
+            cur[2] = Math.min(cur[2], y);
+            cur[3] = Math.max(cur[3], x);
+            cur[4] = Math.max(cur[4], y);
+            cur[6]++;
+        }
+
+        long dataStart = TilePackReader.HEADER_SIZE
+                + (long) levelTable.size() * TilePackReader.LEVEL_ENTRY_SIZE
+                + (long) numEntries * TilePackReader.INDEX_ENTRY_SIZE;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 64 * 1024));
+        try {
+
+            out.writeInt(TilePackReader.MAGIC);
+            out.writeInt(TilePackReader.VERSION);
+            out.writeInt(tileSize);
+            out.writeInt(levelTable.size());
+            out.writeInt(numEntries);
+
+            for (int[] level : levelTable) {
+                for (int v : level) {
+                    out.writeInt(v);
+                }
+            }
+
+            // data is copied in sorted order too, so tiles that are near each other in a level are near in the file
+            long dataOffset = dataStart;
+            for (int i = 0; i < numEntries; i++) {
+                int e = order[i];
+                out.writeLong(keys[e]);
+                out.writeLong(dataOffset);
+                out.writeInt(lengths[e]);
+                dataOffset += lengths[e];
+            }
+
+            copySpooledData(order, out);
+
+        } finally {
+            out.close();
+            if (!spoolFile.delete()) {
+                spoolFile.deleteOnExit();
+            }
+        }
+    }
+
+    private Integer[] sortedOrder() {
+
+        Integer[] order = new Integer[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (levels[a] != levels[b]) {
+                    return levels[a] < levels[b] ? -1 : 1;
+                }
+                return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+            }
+        });
+
+        return order;
+    }
+
+    private void copySpooledData(Integer[] order, OutputStream out) throws IOException {
+
+        RandomAccessFile in = new RandomAccessFile(spoolFile, "r");
+        try {
+            byte[] buf = new byte[64 * 1024];
+            for (Integer e : order) {
+
+                in.seek(offsets[e]);
+
+                int remaining = lengths[e];
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, Math.min(buf.length, remaining));
+                    if (n < 0) {
+                        throw new EOFException("Spool file truncated");
+                    }
+                    out.write(buf, 0, n);
+                    remaining -= n;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -104,6 +104,48 @@ public interface TileProvider {
      */
     public Integer[] getConfigTileIDLimits();
 
+    /**
+     * If specified, the tile space wraps around (is toroidal) on one or both axes, ie the content of tile
+     * <code>(x, y)</code> is the same as that of <code>(x + periodX, y)</code> and <code>(x, y + periodY)</code>.
+     * This lets an infinitely repeating surface be served from one period's worth of tiles - see
+     * {@link Tile#wrapId(int, int)} for normalising coordinates, which {@link AsyncTileProvider} does for its cache
+     * lookups and requests.
+     * <br/><br/>
+     * <b>Thread: Any - the value should not change while the provider is registered, unless followed by a change
+     * of tile ID range</b>
+     *
+     * @return <code>null</code> if the tile space doesn't wrap.  Otherwise, a 2-element Integer array, specifying
+     *         the x and y periods (in tiles) respectively.  Either element can be <code>null</code> (or less than
+     *         1) if that axis doesn't wrap.
+     */
+    public Integer[] getConfigWrapPeriod();
+
+    /**
+     * If specified, only the tiles in the index have content.  The view never calls {@link #getTile(int, int)}
+     * for other tiles (drawing a flat fill in their place instead), and {@link AsyncTileProvider} never requests
+     * them, so sparse tile spaces cost nothing for their gaps.  Tiles outside the index's bounds count as missing.
+     * <br/>
+     * Providers with several levels of detail should return the index of the current level, and in a wrapping
+     * tile space (see {@link #getConfigWrapPeriod()}) the index covers normalised coordinates.
+     * <br/><br/>
+     * <b>Thread: Any - the returned index must not be modified afterwards (return a different instance instead)</b>
+     *
+     * @return <code>null</code> if every tile (within the {@link #getConfigTileIDLimits() limits}) may have
+     *         content, otherwise the index of those that do.
+     */
+    public TileExistenceIndex getConfigExistenceIndex();
+
+    /**
+     * If specified, the view fills each tile that has no bitmap yet (and no preview) with its hint colour, rather
+     * than the plain background, which gives a rough impression of the content during fast pans at next to no
+     * cost.  As with the existence index, the hints of a wrapping tile space cover normalised coordinates.
+     * <br/><br/>
+     * <b>Thread: Any</b>
+     *
+     * @return <code>null</code> for no hints, otherwise the hints to draw
+     */
+    public TileHints getConfigTileHints();
+
     /**
      * When one of the <code>moveTo*</code> methods in {@link TiledBitmapView} is called, the desired Tile will
      * be moved into view.  This {@link GridAnchor} value defines where exactly on the screen that Tile will end
@@ -182,5 +224,17 @@ public interface TileProvider {
      */
     public String getDebugSummary();
 
+    /**
+     * Get the metrics object for this provider.  The view fills in tile visibility and empty frame figures as it
+     * renders, and the provider can add its own latency, cache, queue and cancellation figures.  The metrics summary is
+     * displayed as part of the debug information (see {@link #getDebugSummary()}).
+     * <br/><br/>
+     * <b>Thread: Surface Renderer (Not UI) - See {@link TileProvider class javadoc}</b>
+     *
+     * @return This provider's metrics.  Should always return the same instance.  May be <code>null</code> if
+     *         the provider doesn't want metrics collected.
+     */
+    public TileMetrics getMetrics();
+
 
 }
\ No newline at end of file
@@ -77,14 +77,48 @@ public class TileRange {
 
         rangePadding = Math.max(0, rangePadding);
 
+        // (padding is applied as long, so ranges at the ends of the int range don't overflow)
         return
                 // check for empty first
                 left < right && top < bottom
                         // then containment (inclusive of all boundaries, unlike android.graphics.Rect)
-                        && x >= left - rangePadding
-                        && x <= right + rangePadding
-                        && y >= top - rangePadding
-                        && y <= bottom + rangePadding;
+                        && x >= (long) left - rangePadding
+                        && x <= (long) right + rangePadding
+                        && y >= (long) top - rangePadding
+                        && y <= (long) bottom + rangePadding;
+    }
+
+    /**
+     * As {@link #contains(int, int, int)}, but for a tile space that wraps around (see
+     * {@link TileProvider#getConfigWrapPeriod()}), where (x,y) is contained if any of its repeats is.
+     *
+     * @param periodX The x period, or <code>0</code> if the x axis doesn't wrap
+     * @param periodY The y period, or <code>0</code> if the y axis doesn't wrap
+     */
+    public boolean contains(int x, int y, int rangePadding, int periodX, int periodY) {
+
+        if (periodX <= 0 && periodY <= 0) {
+            return contains(x, y, rangePadding);
+        }
+
+        rangePadding = Math.max(0, rangePadding);
+
+        return left < right && top < bottom
+                && axisContains(x, (long) left - rangePadding, (long) right + rangePadding, periodX)
+                && axisContains(y, (long) top - rangePadding, (long) bottom + rangePadding, periodY);
+    }
+
+    private static boolean axisContains(int id, long min, long max, int period) {
+
+        if (period <= 0) {
+            return id >= min && id <= max;
+        }
+        // a span of a whole period or more contains every repeat, otherwise measure from min to the next repeat
+        long dist = (id - min) % period;
+        if (dist < 0) {
+            dist += period;
+        }
+        return max - min + 1 >= period || dist <= max - min;
     }
 
 
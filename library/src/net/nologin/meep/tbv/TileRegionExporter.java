@@ -0,0 +1,220 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import java.io.*;
+
+/**
+ * Exports a range of tiles to a PNG image of any size, without ever holding the whole image in memory.  The tiles
+ * are fetched through the provider a row at a time (with a few rows requested ahead, so the provider's workers
+ * stay busy), each row is drawn with the same {@link TileRenderer} code the view uses, and the pixels are encoded
+ * and streamed out before the next row is drawn.  Peak memory is a few rows of tiles, however many rows are
+ * exported.
+ * <br/><br/>
+ * Exporting blocks until the image is written, so run it on a background thread.  The provider receives range
+ * changes from the exporter just as it would from a view, so use an instance that isn't registered with a view
+ * (eg a second instance of the view's provider class).  Only {@link AsyncTileProvider}s are supported, as they
+ * only return a tile without a bitmap once its load has completed with no data (rather than while it's still
+ * loading), so the exporter can tell when a row is done.  A tile is drawn once the provider returns it with its
+ * full bitmap (or with no bitmap at all) - tiles that still haven't loaded after
+ * {@link #setTileTimeout(long) the timeout} are left empty.
+ * <br/><br/>
+ * To export at a lower level of detail, either set the provider's own level (eg
+ * {@link RegionDecoderTileProvider#setLevel(int)}) before exporting, or downsample the tiles as they're drawn with
+ * {@link #setSampleSize(int)}.
+ */
+public class TileRegionExporter {
+
+    private static final int DEFAULT_ROWS_AHEAD = 2;
+    private static final long DEFAULT_TILE_TIMEOUT_MS = 30000;
+
+    // how often to poll the provider while waiting on a row, and to re-request tiles whose load may have failed
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final long RE_REQUEST_INTERVAL_MS = 2000;
+
+    private final AsyncTileProvider provider;
+    private final TileRenderer renderer;
+
+    private int sampleSize = 1;
+    private int rowsAhead = DEFAULT_ROWS_AHEAD;
+    private long tileTimeoutMs = DEFAULT_TILE_TIMEOUT_MS;
+
+    /**
+     * @param res      Resources from which to load the renderer's colours
+     * @param provider The provider to export tiles from, not registered with any view
+     */
+    public TileRegionExporter(Resources res, AsyncTileProvider provider) {
+        this.provider = provider;
+        this.renderer = new TileRenderer(res);
+    }
+
+    /**
+     * @param sampleSize Draw the tiles downsampled by this factor, a power of 2 which divides the tile size (default
+     *                   1, full size).
+     */
+    public void setSampleSize(int sampleSize) {
+
+        if (sampleSize < 1 || Integer.bitCount(sampleSize) != 1 || provider.getConfigTileSize() % sampleSize != 0) {
+            throw new IllegalArgumentException("Sample size " + sampleSize + " must be a power of 2 dividing the "
+                    + "tile size " + provider.getConfigTileSize());
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param rows The number of rows past the one being drawn that the provider is asked for (default 2).  More
+     *             keeps a provider with many workers busier, at the cost of memory.
+     */
+    public void setRowsAhead(int rows) {
+        this.rowsAhead = Math.max(0, rows);
+    }
+
+    /**
+     * @param millis How long to wait for a row's tiles before drawing it with the missing tiles left empty
+     *               (default 30 seconds)
+     */
+    public void setTileTimeout(long millis) {
+        this.tileTimeoutMs = Math.max(0, millis);
+    }
+
+    /**
+     * Export the specified range to a PNG file, see {@link #export(TileRange, OutputStream)}.  A partially written
+     * file is deleted if the export fails.
+     */
+    public void export(TileRange range, File file) throws IOException, InterruptedException {
+
+        boolean done = false;
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            export(range, os);
+            done = true;
+        } finally {
+            os.close();
+            if (!done) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Export the specified range as a PNG image, of <code>(range width * tile size / sample size)</code> by
+     * <code>(range height * tile size / sample size)</code> pixels.  Blocks until the image has been written.
+     *
+     * @param range The tiles to export
+     * @param os    The stream to write the PNG to (not closed)
+     * @throws IOException          If the stream fails
+     * @throws InterruptedException If the thread is interrupted, the image will be incomplete
+     */
+    public void export(TileRange range, OutputStream os) throws IOException, InterruptedException {
+
+        int tileSize = provider.getConfigTileSize();
+        int cols = range.numTilesHorizontal();
+        int outTileSize = tileSize / sampleSize;
+        int outWidth = cols * outTileSize;
+        int outHeight = range.numTilesVertical() * outTileSize;
+
+        /* a state one tile row high, for the renderer to draw from.  It comes with an extra row and column for
+         * scrolling, which are fetched from the provider but fall outside the strip bitmap */
+        ViewState state = new ViewState(cols * tileSize, tileSize, tileSize, null);
+
+        Bitmap strip = Bitmap.createBitmap(outWidth, outTileSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(strip);
+        canvas.scale(1f / sampleSize, 1f / sampleSize);
+        int[] pixels = new int[outWidth * outTileSize];
+
+        PngStreamWriter png = new PngStreamWriter(os, outWidth, outHeight);
+
+        try {
+            for (int y = range.top; y <= range.bottom; y++) {
+
+                awaitRow(range, y);
+
+                state.applySurfaceOffset(-(long) range.left * tileSize, -(long) y * tileSize);
+                ViewState.Snapshot snapshot = state.getUpdatedSnapshot();
+                renderer.refreshTiles(provider, state, snapshot.visibleTileIdRange);
+                renderer.drawVisibleTiles(canvas, state, snapshot, provider);
+
+                strip.getPixels(pixels, 0, outWidth, 0, 0, outWidth, outTileSize);
+                png.writeRows(pixels, 0, outWidth, outTileSize);
+            }
+
+            png.finish();
+
+        } finally {
+            // nothing left to load for us
+            provider.onSurfaceDestroyed();
+            strip.recycle();
+        }
+    }
+
+    /* Request the row (and the next few), and wait until every tile in it has loaded, or the timeout expires */
+    private void awaitRow(TileRange range, int y) throws InterruptedException {
+
+        /* TileRange treats a single row or column as empty, so the window takes in (and loads) an extra one
+         * where it would otherwise be that thin, such as the last row */
+        int windowRight = Math.max(range.right, range.left + 1);
+        int windowBottom = Math.max(Math.min(y + rowsAhead, range.bottom), y + 1);
+        TileRange window = new TileRange(range.left, y, windowRight, windowBottom);
+        provider.onTileIDRangeChange(window);
+
+        TileExistenceIndex existenceIndex = provider.getConfigExistenceIndex();
+        Integer[] wrap = provider.getConfigWrapPeriod();
+        int wrapX = Utils.getWrapPeriod(wrap, 0);
+        int wrapY = Utils.getWrapPeriod(wrap, 1);
+
+        long start = System.currentTimeMillis();
+        long lastRequest = start;
+
+        for (int x = range.left; x <= range.right; x++) {
+
+            if (existenceIndex != null && !existenceIndex.exists(Tile.wrapId(x, wrapX), Tile.wrapId(y, wrapY))) {
+                continue; // nothing to wait for
+            }
+
+            while (!isLoaded(provider.getTile(x, y))) {
+
+                long now = System.currentTimeMillis();
+                if (now - start > tileTimeoutMs) {
+                    Log.w(Utils.LOG_TAG, "Timed out waiting for row " + y + " of the export, drawing it as is");
+                    return;
+                }
+
+                // loads that failed aren't retried until the tile is requested again
+                if (now - lastRequest > RE_REQUEST_INTERVAL_MS) {
+                    provider.onTileIDRangeChange(window);
+                    lastRequest = now;
+                }
+
+                if (!provider.hasFreshData()) {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+            }
+        }
+    }
+
+    /* an AsyncTileProvider only caches a tile once loaded (or with a preview while loading), so a tile with no
+     * bitmap at all has no data, as opposed to one still waiting for its full (or fresh) bitmap */
+    private static boolean isLoaded(Tile t) {
+        return t != null && !t.isPreview() && !t.isStale();
+    }
+
+}
@@ -0,0 +1,1073 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.content.res.Resources;
+import android.graphics.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Draws the visible grid of tiles (and the debug overlay, if enabled) for a {@link ViewState} onto a
+ * {@link RenderTarget}.  The {@link TiledBitmapView}'s rendering thread uses one of these to draw to its surface,
+ * but as the renderer has no dependency on the view itself, it can also be used to draw frames offscreen
+ * (see {@link BitmapRenderTarget}).
+ * <br/><br/>
+ * Rendering a frame is a two step process - {@link #refreshTiles(TileProvider, ViewState, TileRange)} fetches
+ * the tiles for the visible range from the provider (and reports whether their bitmap content has changed since
+ * the last call), and then {@link #renderFrame(RenderTarget, ViewState, ViewState.Snapshot, TileProvider)} draws
+ * them.  Any {@link TileLayer}s are refreshed separately with {@link #refreshLayers(ViewState, TileRange, boolean)},
+ * and drawn over the provider's tiles in order.  A renderer instance is not thread-safe, and should be used by one
+ * rendering thread only (although layers may be added and removed from any thread).
+ * <br/><br/>
+ * Tiles whose bitmaps are modified in place can have just the changed part redrawn - see
+ * {@link #invalidateTileRegion(int, int, Rect)} and {@link #renderDirtyRegion(RenderTarget, ViewState,
+ * ViewState.Snapshot, TileProvider)}.
+ * <br/><br/>
+ * When a provider delivers a big batch of tiles at once, drawing them all in one frame can cause a visible hitch.
+ * {@link #setNewTileBudget(int, float)} limits the number of newly arrived tiles drawn per frame (nearest the
+ * centre first), leaving the rest for the following frames.  With a great many small tiles on screen,
+ * {@link #setRowStripCaching(boolean)} draws the frame from cached per-row strips instead of tile by tile.
+ */
+public class TileRenderer {
+
+    final Paint paint_bg, paint_debugTileTxt, paint_debugGridLine, paint_debugStaleBorder,
+            paint_debugBoxBG, paint_debugBoxTxt, paint_debugBoxErrTxt, paint_preview, paint_absentFill,
+            paint_hint;
+
+    private volatile boolean debugEnabled;
+
+    // the actual tile references that will get drawn to the surface
+    private Tile[][] visibleTiles;
+
+    // the hashcodes of those tiles will be recorded and compared the next time round
+    private int[][] oldTileHashcodes;
+
+    /* with a new tile budget, tiles with new bitmaps aren't recorded in oldTileHashcodes until they're drawn,
+     * these mark them and hold their new hashcodes until then */
+    private boolean[][] newTiles;
+    private int[][] newTileHashcodes;
+
+    /* the cells drawn with their full bitmap in the last frame, and the tile IDs of its top left cell.  Only tiles
+     * that weren't are held back by the budget, so eg a stale tile being replaced is never blanked in the meantime */
+    private boolean[][] drawnFull;
+    private int drawnLeft, drawnTop;
+
+    // see setNewTileBudget(), 0 for no limit
+    private volatile int maxNewTilesPerFrame;
+    private volatile long maxNewTileNanosPerFrame;
+
+    // the cells of new tiles in the frame being drawn, encoded for sorting by distance from the centre
+    private long[] newTileOrder = new long[0];
+
+    // new tiles left over for the next frame by the budget
+    private int numDeferredTiles;
+
+    // used to let the provider's metrics know when the visible range has moved on
+    private TileRange lastRefreshedRange;
+
+    /* tiles that have been drawn empty, keyed by cache key, with the frame they were first drawn empty in.  For the
+     * provider's empty frame metrics, kept here as a provider shared between views has one set of metrics for all
+     * of them.  Only accessed by the rendering thread */
+    private final Map<Long, Long> emptyTilesSeen = new HashMap<Long, Long>();
+    private long framesDrawn;
+
+    // number of tiles without bitmap data in the last refresh (not counting those with no content at all)
+    private int numEmptyTiles;
+
+    // stands in for the hashcode of tiles missing from the provider's existence index, which are never fetched
+    static final int ABSENT_TILE_HASH = -1;
+
+    // overlays, drawn in order over the provider's tiles
+    private final List<TileLayer> layers = new CopyOnWriteArrayList<TileLayer>();
+
+    // reused destination for scaled up tile previews
+    private final Rect previewDst = new Rect();
+
+    // the wrap periods for looking up tile hints, set for each frame
+    private int hintWrapX, hintWrapY;
+
+    // the areas of tiles (keyed by cache key, in tile px) changed since the last frame, all access synchronized on it
+    private final Map<Long, Rect> dirtyTileRegions = new HashMap<Long, Rect>();
+
+    // the screen area to redraw for the above, reused between frames
+    private final Rect dirtyScreenRect = new Rect();
+
+    // a frame saved from an earlier surface, drawn behind the tiles until they've all loaded
+    private volatile WarmStartSnapshot backdrop;
+    // when the current backdrop was first refreshed, only touched by the rendering thread
+    private WarmStartSnapshot timedBackdrop;
+    private long backdropShownNanos;
+
+    // tiles with no data at all never 'load', so don't let the saved frame hang around behind them indefinitely
+    private static final long BACKDROP_MAX_AGE_NANOS = 5000000000L;
+
+    // see setRowStripCaching(), the strips themselves are only touched by the rendering thread
+    private volatile boolean rowStripCaching;
+    private RowStrip[] rowStrips;
+
+    // clears a cell of a row strip before its new content is drawn
+    private final Paint paint_clear;
+
+    // reused source and destination for drawing the two halves of a row strip
+    private final Rect stripSrc = new Rect(), stripDst = new Rect();
+
+    // reused endpoints for the debug grid lines
+    private float[] gridLinePts = new float[0];
+
+    /**
+     * @param res Resources from which to load the renderer's colours
+     */
+    public TileRenderer(Resources res) {
+
+        // background behind tiles (visible if tile content unavailable)
+        paint_bg = new Paint();
+        paint_bg.setColor(res.getColor(R.color.main_background_color));
+        paint_bg.setStyle(Paint.Style.FILL);
+
+        // fill for tiles with no content, see TileProvider.getConfigExistenceIndex()
+        paint_absentFill = new Paint();
+        paint_absentFill.setColor(res.getColor(R.color.absent_tile_fill));
+        paint_absentFill.setStyle(Paint.Style.FILL);
+
+        // tile previews are drawn scaled up, filtering makes them a lot less blocky
+        paint_preview = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        // fill for tiles not loaded yet, in the colour from the provider's hints
+        paint_hint = new Paint();
+        paint_hint.setStyle(Paint.Style.FILL);
+
+        // wipes pixels back to transparent, see drawRowStrips()
+        paint_clear = new Paint();
+        paint_clear.setStyle(Paint.Style.FILL);
+        paint_clear.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+
+        // common text
+        Paint centerAlignedTxt = new Paint();
+        centerAlignedTxt.setAntiAlias(true);
+        centerAlignedTxt.setTypeface(Typeface.MONOSPACE);
+        centerAlignedTxt.setTextAlign(Paint.Align.CENTER);
+
+        // per-tile debug text
+        paint_debugTileTxt = new Paint(centerAlignedTxt);
+        paint_debugTileTxt.setColor(res.getColor(R.color.debug_tile_text));
+        paint_debugTileTxt.setTextSize(32);
+        paint_debugTileTxt.setShadowLayer(5, 2, 2, Color.BLACK);
+
+        // border lines around tiles
+        paint_debugGridLine = new Paint();
+        paint_debugGridLine.setColor(res.getColor(R.color.debug_tile_border));
+        paint_debugGridLine.setStyle(Paint.Style.STROKE);
+        paint_debugGridLine.setStrokeWidth(1);
+
+        // border lines around stale tiles, see AsyncTileProvider.invalidate()
+        paint_debugStaleBorder = new Paint(paint_debugGridLine);
+        paint_debugStaleBorder.setColor(res.getColor(R.color.stale_tile_border));
+        paint_debugStaleBorder.setStrokeWidth(3);
+
+        // background of bottom right debug info box
+        paint_debugBoxBG = new Paint();
+        paint_debugBoxBG.setColor(res.getColor(R.color.debug_box_bg));
+        paint_debugBoxBG.setStyle(Paint.Style.FILL);
+        paint_debugBoxBG.setAlpha(140);
+
+        // text for debug info box
+        paint_debugBoxTxt = new Paint(centerAlignedTxt);
+        paint_debugBoxTxt.setColor(res.getColor(R.color.debug_box_text));
+        paint_debugBoxTxt.setTextSize(14);
+
+        // same as paint_debugBoxTxt, except for errors
+        paint_debugBoxErrTxt = new Paint(paint_debugBoxTxt);
+        paint_debugBoxErrTxt.setColor(res.getColor(R.color.debug_box_text_error));
+    }
+
+    /**
+     * @return True if this renderer draws debug information
+     */
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    /**
+     * @param debugEnabled true if tile borders, tile IDs and the debug info box should be drawn.
+     */
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    /**
+     * @return The overlay layers drawn over the provider's tiles, in drawing order.  The list is safe to modify
+     *         while rendering.
+     */
+    public List<TileLayer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Limit the number of tiles with new bitmaps drawn in each frame, so a big batch of tiles arriving at once is
+     * spread over several frames rather than causing a hitch.  The new tiles nearest the centre of the view are
+     * drawn first, and the rest are left showing their preview (if any) until a following frame.  Tiles whose full
+     * bitmap was already on screen (eg stale tiles, being replaced) are always drawn with their latest bitmap, so
+     * they're never blanked in the meantime.  To also take the first-draw cost off the rendering thread, see
+     * {@link AsyncTileProvider#setPrepareToDraw(boolean)}.
+     *
+     * @param maxTiles  The maximum number of new tiles drawn per frame, or 0 for no limit
+     * @param maxMillis The time after which no more new tiles are drawn in a frame, or 0 for no limit.  At least one
+     *                  new tile is always drawn.
+     */
+    public void setNewTileBudget(int maxTiles, float maxMillis) {
+        this.maxNewTilesPerFrame = Math.max(0, maxTiles);
+        this.maxNewTileNanosPerFrame = Math.max(0, (long) (maxMillis * 1000000));
+    }
+
+    /**
+     * @return <code>true</code> if the new tile budget left some tiles undrawn in the last frame, in which case
+     *         the tiles should be refreshed and drawn again, even if the provider has no fresh data.
+     */
+    public boolean hasDeferredTiles() {
+        return numDeferredTiles > 0;
+    }
+
+    /**
+     * Composite each visible row of tiles into a cached strip bitmap, and draw the frame one strip per row rather
+     * than one bitmap per tile.  A strip is only redrawn where its tiles' content has changed, and strips follow
+     * their row (and their cells their column) when scrolling, so only the tiles newly scrolled into view are drawn
+     * into them.  With small tiles (and hence hundreds or thousands of them on screen) the per-frame cost no longer
+     * grows with the tile count.
+     * <br/><br/>
+     * The strips take about as much memory as an ARGB_8888 copy of the visible tile grid.  The new tile budget (see
+     * {@link #setNewTileBudget(int, float)}) doesn't apply in this mode - new tiles go into the strips as they
+     * arrive.  Overlay layers and debug information are drawn over the strips as usual.
+     *
+     * @param enabled <code>true</code> to draw with row strips, <code>false</code> (the default) to draw tile by
+     *                tile and release the strips
+     */
+    public void setRowStripCaching(boolean enabled) {
+        this.rowStripCaching = enabled;
+    }
+
+    /**
+     * @return <code>true</code> if frames are drawn with row strips, see {@link #setRowStripCaching(boolean)}
+     */
+    public boolean isRowStripCaching() {
+        return rowStripCaching;
+    }
+
+    /**
+     * Convenience method for headless use - takes a fresh snapshot of <code>state</code>, fetches the visible
+     * tiles from <code>provider</code> and draws them to <code>target</code>.
+     *
+     * @return <code>true</code> if a frame was drawn, <code>false</code> if the state isn't ready or the target
+     *         wasn't drawable.
+     */
+    public boolean renderFrame(RenderTarget target, ViewState state, TileProvider provider) {
+
+        ViewState.Snapshot snapshot = state.getUpdatedSnapshot();
+        if (snapshot.visibleTileIdRange == null) {
+            return false;
+        }
+
+        refreshTiles(provider, state, snapshot.visibleTileIdRange);
+        refreshLayers(state, snapshot.visibleTileIdRange, true);
+
+        return renderFrame(target, state, snapshot, provider);
+    }
+
+    /**
+     * Updates the tile references that we're going to render.  Tiles missing from the provider's existence index
+     * aren't fetched, and are left <code>null</code>.
+     *
+     * @return <code>true</code> if some bitmap data has changed since the last call
+     */
+    public boolean refreshTiles(TileProvider provider, ViewState state, TileRange visibleRange) {
+
+        // reuse the existing arrays as long as possible (otherwise we'll allocate objects like crazy)
+        if (visibleTiles == null ||
+                visibleTiles.length != state.tilesVert || visibleTiles[0].length != state.tilesHoriz) {
+            visibleTiles = new Tile[state.tilesVert][state.tilesHoriz];
+            oldTileHashcodes = new int[state.tilesVert][state.tilesHoriz];
+            newTiles = new boolean[state.tilesVert][state.tilesHoriz];
+            newTileHashcodes = new int[state.tilesVert][state.tilesHoriz];
+            drawnFull = new boolean[state.tilesVert][state.tilesHoriz];
+            newTileOrder = new long[state.tilesVert * state.tilesHoriz];
+        }
+
+        boolean bmpChangeDetected = false;
+        int newTileHash;
+
+        boolean budgeted = maxNewTilesPerFrame > 0 || maxNewTileNanosPerFrame > 0;
+
+        TileMetrics metrics = provider.getMetrics();
+        long nowNanos = System.nanoTime();
+        if (!visibleRange.equals(lastRefreshedRange)) {
+            Integer[] wrap = provider.getConfigWrapPeriod();
+            dropEmptyTilesSeen(visibleRange, Utils.getWrapPeriod(wrap, 0), Utils.getWrapPeriod(wrap, 1));
+        }
+        lastRefreshedRange = visibleRange;
+        numEmptyTiles = 0;
+
+        // the index is keyed by normalised coordinates in a wrapping tile space
+        TileExistenceIndex existenceIndex = provider.getConfigExistenceIndex();
+        int wrapX = 0, wrapY = 0;
+        if (existenceIndex != null) {
+            Integer[] wrap = provider.getConfigWrapPeriod();
+            wrapX = Utils.getWrapPeriod(wrap, 0);
+            wrapY = Utils.getWrapPeriod(wrap, 1);
+        }
+
+        int xId, yId;
+
+        for (int y = 0; y < state.tilesVert; y++) {
+
+            for (int x = 0; x < state.tilesHoriz; x++) {
+
+                yId = y + visibleRange.top;
+                xId = x + visibleRange.left;
+
+                if (existenceIndex != null
+                        && !existenceIndex.exists(Tile.wrapId(xId, wrapX), Tile.wrapId(yId, wrapY))) {
+
+                    // nothing to fetch, and nothing to wait for
+                    visibleTiles[y][x] = null;
+                    newTiles[y][x] = false;
+                    if (oldTileHashcodes[y][x] != ABSENT_TILE_HASH) {
+                        bmpChangeDetected = true;
+                    }
+                    oldTileHashcodes[y][x] = ABSENT_TILE_HASH;
+                    continue;
+                }
+
+                // refresh the tile from the provider
+                visibleTiles[y][x] = provider.getTile(xId, yId);
+                if (visibleTiles[y][x] == null) {
+                    visibleTiles[y][x] = new EmptyTile(xId, yId, state.tileWidth);
+                }
+
+                // generate hashcode, compare to that from last time around
+                newTileHash = visibleTiles[y][x].getBitmapContentHash();
+                newTiles[y][x] = false;
+                if (newTileHash != oldTileHashcodes[y][x]) {
+                    bmpChangeDetected = true; // don't break, all tiles need refreshing
+
+                    if (budgeted && visibleTiles[y][x].getBmpData() != null && !wasDrawnFull(xId, yId)) {
+                        // a tile's first full bitmap, recorded once drawVisibleTiles has found room for it in a frame
+                        newTiles[y][x] = true;
+                        newTileHashcodes[y][x] = newTileHash;
+                    } else {
+                        oldTileHashcodes[y][x] = newTileHash;
+                    }
+                }
+
+                if (newTileHash == 0) {
+                    numEmptyTiles++;
+                }
+                if (metrics != null) {
+                    trackVisibleTile(metrics, visibleTiles[y][x].cacheKey, newTileHash != 0);
+                }
+
+            }
+        }
+
+        // every tile is live now (or it's been long enough), the saved frame has served its purpose
+        WarmStartSnapshot backdrop = this.backdrop;
+        if (backdrop != timedBackdrop) {
+            timedBackdrop = backdrop;
+            backdropShownNanos = nowNanos;
+        }
+        if (backdrop != null && (numEmptyTiles == 0 || nowNanos - backdropShownNanos > BACKDROP_MAX_AGE_NANOS)) {
+            this.backdrop = null;
+        }
+
+        return bmpChangeDetected;
+
+    }
+
+    /* Record a visible tile's cache hit or miss, and once a tile drawn empty has its bitmap, how many frames it was
+     * drawn empty for */
+    private void trackVisibleTile(TileMetrics metrics, long cacheKey, boolean hasBitmap) {
+
+        metrics.onVisibleTile(hasBitmap);
+
+        if (hasBitmap) {
+            if (!emptyTilesSeen.isEmpty()) {
+                Long firstSeenFrame = emptyTilesSeen.remove(cacheKey);
+                if (firstSeenFrame != null) {
+                    metrics.recordReadyTile(framesDrawn - firstSeenFrame);
+                }
+            }
+        } else if (!emptyTilesSeen.containsKey(cacheKey)) {
+            emptyTilesSeen.put(cacheKey, framesDrawn);
+        }
+    }
+
+    /* Tiles that scrolled away before their bitmaps arrived aren't measured (they'd skew the empty frame figures).
+     * In a wrapping tile space the keys are of normalised tiles, while the range isn't, so the check is against
+     * every repeat of the tile. */
+    private void dropEmptyTilesSeen(TileRange range, int wrapX, int wrapY) {
+
+        Iterator<Long> it = emptyTilesSeen.keySet().iterator();
+        while (it.hasNext()) {
+            long key = it.next();
+            if (!range.contains((int) (key >> 32), (int) key, 0, wrapX, wrapY)) {
+                it.remove();
+            }
+        }
+    }
+
+    /* Whether the specified tile had its full bitmap drawn in the last frame, wherever it was on screen */
+    private boolean wasDrawnFull(int xId, int yId) {
+        long y = (long) yId - drawnTop, x = (long) xId - drawnLeft;
+        return y >= 0 && y < drawnFull.length && x >= 0 && x < drawnFull[0].length && drawnFull[(int) y][(int) x];
+    }
+
+    /* Show a frame saved from an earlier surface behind the tiles, until they've all loaded (null to drop it) */
+    void setBackdrop(WarmStartSnapshot backdrop) {
+        this.backdrop = backdrop;
+    }
+
+    WarmStartSnapshot getBackdrop() {
+        return backdrop;
+    }
+
+    /**
+     * Draw the tiles fetched by the last call to {@link #refreshTiles(TileProvider, ViewState, TileRange)} to a new
+     * RGB_565 bitmap the size of the surface, without any debug information.
+     *
+     * @return The frame and its grid position, or <code>null</code> if there are no tiles to draw
+     */
+    WarmStartSnapshot captureFrame(ViewState state, ViewState.Snapshot snapshot, TileProvider provider) {
+
+        if (visibleTiles == null || snapshot.visibleTileIdRange == null) {
+            return null;
+        }
+
+        Bitmap bmp = Bitmap.createBitmap(state.surfaceW, state.surfaceH, Bitmap.Config.RGB_565);
+        drawVisibleTiles(new Canvas(bmp), state, snapshot, provider, false, false);
+
+        return new WarmStartSnapshot(bmp, -snapshot.surfaceOffsetX, -snapshot.surfaceOffsetY, state.tileWidth);
+    }
+
+    /**
+     * Mark part of a tile as changed, so the next call to
+     * {@link #renderDirtyRegion(RenderTarget, ViewState, ViewState.Snapshot, TileProvider)} redraws it.  Intended
+     * for tiles whose bitmaps are modified in place - changes to several parts of the same tile before the next
+     * frame are merged.  May be called from any thread.
+     *
+     * @param tileX  The tile's x ID (normalised, in a wrapping tile space)
+     * @param tileY  The tile's y ID (normalised, in a wrapping tile space)
+     * @param region The changed area, in pixels relative to the tile's top-left corner.  <code>null</code> for the
+     *               whole tile.
+     */
+    public void invalidateTileRegion(int tileX, int tileY, Rect region) {
+
+        long key = Tile.createCacheKey(tileX, tileY);
+
+        synchronized (dirtyTileRegions) {
+
+            Rect dirty = dirtyTileRegions.get(key);
+            if (dirty == null) {
+                dirty = new Rect();
+                dirtyTileRegions.put(key, dirty);
+            }
+            if (region == null) {
+                dirty.set(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE); // clipped to the tile when drawn
+            } else {
+                dirty.union(region);
+            }
+        }
+    }
+
+    /**
+     * Redraw only the screen area covered by the tile regions passed to {@link #invalidateTileRegion(int, int, Rect)}
+     * since the last frame, with the tiles fetched by the last call to
+     * {@link #refreshTiles(TileProvider, ViewState, TileRange)}.  All the invalidated regions are combined into one
+     * rectangle, and the target is locked for just that area.
+     *
+     * @return <code>true</code> if a partial frame was drawn, <code>false</code> if there was nothing visible to
+     *         redraw, or the target wasn't drawable.
+     */
+    boolean renderDirtyRegion(RenderTarget target, ViewState state, ViewState.Snapshot snapshot,
+                              TileProvider provider) {
+
+        if (visibleTiles == null) {
+            return false;
+        }
+
+        Rect dirty = dirtyScreenRect;
+        dirty.setEmpty();
+
+        synchronized (dirtyTileRegions) {
+
+            if (dirtyTileRegions.isEmpty()) {
+                return false;
+            }
+
+            // visit the visible cells rather than the dirty tiles, as in a wrapping tile space a tile can be on screen
+            // more than once
+            Integer[] wrap = provider.getConfigWrapPeriod();
+            int wrapX = Utils.getWrapPeriod(wrap, 0);
+            int wrapY = Utils.getWrapPeriod(wrap, 1);
+            TileRange range = snapshot.visibleTileIdRange;
+
+            for (int y = 0; y < state.tilesVert; y++) {
+                for (int x = 0; x < state.tilesHoriz; x++) {
+
+                    Rect tileDirty = dirtyTileRegions.get(Tile.createCacheKey(
+                            Tile.wrapId(x + range.left, wrapX), Tile.wrapId(y + range.top, wrapY)));
+                    if (tileDirty == null) {
+                        continue;
+                    }
+                    invalidateRowStrip(y + range.top); // the strip holds a copy of the old pixels
+
+                    int tileLeft = snapshot.canvasOffsetX + x * state.tileWidth;
+                    int tileTop = snapshot.canvasOffsetY + y * state.tileWidth;
+                    dirty.union(tileLeft + Math.max(0, tileDirty.left),
+                            tileTop + Math.max(0, tileDirty.top),
+                            tileLeft + Math.min(state.tileWidth, tileDirty.right),
+                            tileTop + Math.min(state.tileWidth, tileDirty.bottom));
+                }
+            }
+
+            dirtyTileRegions.clear();
+        }
+
+        if (!dirty.intersect(0, 0, state.surfaceW, state.surfaceH)) {
+            return false; // nothing changed on screen
+        }
+
+        return renderFrame(target, state, snapshot, provider, dirty);
+    }
+
+    /**
+     * Updates the tile references of each overlay layer.  Unless <code>force</code> is set, only layers whose
+     * provider reports {@link TileProvider#hasFreshData()} are refreshed, so a change in one layer doesn't cost
+     * the others anything.
+     *
+     * @param force <code>true</code> to refresh every layer (eg when the visible range or offset has changed)
+     * @return <code>true</code> if some bitmap data in any layer has changed since the last call
+     */
+    public boolean refreshLayers(ViewState state, TileRange visibleRange, boolean force) {
+
+        boolean bmpChangeDetected = false;
+        for (TileLayer layer : layers) {
+            if (layer.provider.hasFreshData() || force) {
+                bmpChangeDetected |= layer.refreshTiles(state, visibleRange);
+            }
+        }
+        return bmpChangeDetected;
+    }
+
+    /**
+     * Lock the target, draw the tiles fetched by the last call to
+     * {@link #refreshTiles(TileProvider, ViewState, TileRange)}, and post the result.
+     *
+     * @return <code>true</code> if a frame was drawn, <code>false</code> if the target wasn't drawable.
+     */
+    boolean renderFrame(RenderTarget target, ViewState state, ViewState.Snapshot snapshot, TileProvider provider) {
+
+        if (visibleTiles == null) {
+            return false;
+        }
+
+        // a full frame covers anything invalidated so far (rare enough not to bother finding the strips affected)
+        synchronized (dirtyTileRegions) {
+            if (!dirtyTileRegions.isEmpty()) {
+                invalidateRowStrips();
+            }
+            dirtyTileRegions.clear();
+        }
+
+        return renderFrame(target, state, snapshot, provider, null);
+    }
+
+    /* draw the whole frame, or just the dirty area (which the target may enlarge) if non-null */
+    private boolean renderFrame(RenderTarget target, ViewState state, ViewState.Snapshot snapshot,
+                                TileProvider provider, Rect dirty) {
+
+        TileTracer tracer = TileTracer.get();
+        tracer.frameStart();
+
+        Canvas c = null;
+        try {
+
+            long lockStart = System.nanoTime();
+            c = target.lockCanvas(dirty);
+            tracer.canvasLockWait(System.nanoTime() - lockStart);
+
+            if (c == null) {
+                tracer.frameEnd(numEmptyTiles);
+                return false;
+            }
+
+            synchronized (target) {
+                if (dirty != null) {
+                    // everything outside the dirty area is kept from the last frame, don't waste time drawing it
+                    c.save();
+                    c.clipRect(dirty);
+                    drawVisibleTiles(c, state, snapshot, provider);
+                    c.restore();
+                } else {
+                    drawVisibleTiles(c, state, snapshot, provider);
+                }
+            }
+
+        } finally {
+
+            if (c != null) {
+                target.unlockCanvasAndPost(c);
+            }
+        }
+
+        tracer.frameEnd(numEmptyTiles);
+
+        framesDrawn++;
+        TileMetrics metrics = provider.getMetrics();
+        if (metrics != null) {
+            metrics.onFrameDrawn(numEmptyTiles);
+        }
+
+        return true;
+    }
+
+    /* actually renders the surface */
+    void drawVisibleTiles(Canvas canvas, ViewState state, ViewState.Snapshot snapshot, TileProvider provider) {
+        drawVisibleTiles(canvas, state, snapshot, provider, this.debugEnabled, true);
+    }
+
+    private void drawVisibleTiles(Canvas canvas, ViewState state, ViewState.Snapshot snapshot,
+                                  TileProvider provider, boolean debugEnabled, boolean budgeted) {
+
+        canvas.save();
+
+        // blank out entire surface so empty tiles show up blank
+        canvas.drawRect(0, 0, state.surfaceW, state.surfaceH, paint_bg);
+
+        // or rather, show the saved frame where there are no tiles yet, if it's still (partly) in view
+        WarmStartSnapshot backdrop = this.backdrop;
+        if (backdrop != null && backdrop.tileSize == state.tileWidth) {
+            long left = backdrop.gridLeft + snapshot.surfaceOffsetX;
+            long top = backdrop.gridTop + snapshot.surfaceOffsetY;
+            if (left > -backdrop.bitmap.getWidth() && left < state.surfaceW
+                    && top > -backdrop.bitmap.getHeight() && top < state.surfaceH) {
+                canvas.drawBitmap(backdrop.bitmap, left, top, null);
+            }
+        }
+
+        // offset our canvas, so we can draw our whole tiles on with simple 0,0 origin co-ordinates
+        canvas.translate(snapshot.canvasOffsetX, snapshot.canvasOffsetY);
+
+        int maxNewTiles = maxNewTilesPerFrame;
+        long maxNewTileNanos = maxNewTileNanosPerFrame;
+        budgeted &= maxNewTiles > 0 || maxNewTileNanos > 0;
+        int numNewTiles = 0;
+
+        // colours for the tiles not loaded yet
+        TileHints hints = provider == null ? null : provider.getConfigTileHints();
+        if (hints != null) {
+            Integer[] wrap = provider.getConfigWrapPeriod();
+            hintWrapX = Utils.getWrapPeriod(wrap, 0);
+            hintWrapY = Utils.getWrapPeriod(wrap, 1);
+        }
+
+        int cols = visibleTiles[0].length;
+        int curTileTop = 0;
+
+        drawnLeft = snapshot.visibleTileIdRange.left;
+        drawnTop = snapshot.visibleTileIdRange.top;
+
+        if (rowStripCaching) {
+            // a handful of draw calls, however many tiles there are
+            drawRowStrips(canvas, state, snapshot.visibleTileIdRange, hints);
+        } else {
+
+            if (rowStrips != null) {
+                releaseRowStrips();
+            }
+
+            for (int y = 0; y < visibleTiles.length; y++) {
+
+                int curTileLeft = 0;
+
+                for (int x = 0; x < cols; x++) {
+
+                    Tile t = visibleTiles[y][x];
+
+                    // no content here at all (see refreshTiles), just fill it
+                    if (t == null) {
+                        canvas.drawRect(curTileLeft, curTileTop, curTileLeft + state.tileWidth,
+                                curTileTop + state.tileWidth, paint_absentFill);
+                        drawnFull[y][x] = false;
+
+                    } else if (newTiles[y][x] && budgeted) {
+                        drawnFull[y][x] = false; // until the budget loop below draws it
+
+                        // drawn below, if there's room in the budget.  Cells further from the centre sort later
+                        long dx = snapshot.canvasOffsetX + curTileLeft + state.tileWidth / 2 - state.surfaceW / 2;
+                        long dy = snapshot.canvasOffsetY + curTileTop + state.tileWidth / 2 - state.surfaceH / 2;
+                        newTileOrder[numNewTiles++] = ((dx * dx + dy * dy) << 24) | (y * cols + x);
+
+                    } else {
+                        drawnFull[y][x] = drawTile(canvas, t, curTileLeft, curTileTop, true, hints);
+                        if (newTiles[y][x]) {
+                            newTiles[y][x] = false;
+                            oldTileHashcodes[y][x] = newTileHashcodes[y][x];
+                        }
+                    }
+
+                    curTileLeft += state.tileWidth; // move right one tile screenWidth
+                }
+
+                curTileTop += state.tileWidth; // move down one tile screenWidth
+            }
+        }
+
+        // now the new tiles, nearest the centre first, until the budget runs out
+        Arrays.sort(newTileOrder, 0, numNewTiles);
+        long budgetStart = System.nanoTime();
+        numDeferredTiles = 0;
+
+        for (int i = 0; i < numNewTiles; i++) {
+
+            int cell = (int) (newTileOrder[i] & 0xFFFFFF);
+            int y = cell / cols, x = cell % cols;
+
+            boolean withinBudget = i == 0 || ((maxNewTiles == 0 || i < maxNewTiles)
+                    && (maxNewTileNanos == 0 || System.nanoTime() - budgetStart < maxNewTileNanos));
+
+            drawnFull[y][x] = drawTile(canvas, visibleTiles[y][x], x * state.tileWidth, y * state.tileWidth,
+                    withinBudget, hints);
+            if (withinBudget) {
+                newTiles[y][x] = false;
+                oldTileHashcodes[y][x] = newTileHashcodes[y][x];
+            } else {
+                numDeferredTiles++;
+            }
+        }
+
+        // overlays go on top, in order
+        for (TileLayer layer : layers) {
+            layer.draw(canvas, state, previewDst);
+        }
+
+        // if debug, draw a border round each tile (results in a 'grid'), and write tile IDs - over the layers
+        if (debugEnabled) {
+
+            drawGridLines(canvas, visibleTiles.length, cols, state.tileWidth);
+
+            curTileTop = 0;
+            for (int y = 0; y < visibleTiles.length; y++) {
+
+                int curTileLeft = 0;
+                for (int x = 0; x < visibleTiles[y].length; x++) {
+
+                    Tile t = visibleTiles[y][x];
+                    if (t != null && t.isStale()) {
+                        canvas.drawRect(curTileLeft, curTileTop, curTileLeft + state.tileWidth,
+                                curTileTop + state.tileWidth, paint_debugStaleBorder);
+                    }
+
+                    String msg1 = t != null ? String.format("[%d,%d]", t.xId, t.yId)
+                            : String.format("[%d,%d]", x + snapshot.visibleTileIdRange.left,
+                            y + snapshot.visibleTileIdRange.top);
+                    canvas.drawText(msg1, curTileLeft + (state.tileWidth / 2),
+                            curTileTop + (state.tileWidth / 2), paint_debugTileTxt);
+
+                    curTileLeft += state.tileWidth;
+                }
+                curTileTop += state.tileWidth;
+            }
+        }
+
+
+        // we don't want the debug box offset with the tiles, undo the translate
+        canvas.translate(-snapshot.canvasOffsetX, -snapshot.canvasOffsetY);
+
+        // -------------------  debug box at bottom right ------------------------
+        if (debugEnabled) {
+
+            String fmt1 = "%dx%d, t=%dx%d zf=%1.3f";
+            String fmt2 = "x=%5d,y=%5d, cx=%4d,cy=%4d";
+            String msgResAndScale = String.format(fmt1, state.surfaceW, state.surfaceH,
+                    state.tileWidth, state.tileWidth, snapshot.zoomFactor);
+            String msgOffset = String.format(fmt2, snapshot.surfaceOffsetX, snapshot.surfaceOffsetY,
+                    snapshot.canvasOffsetX, snapshot.canvasOffsetY);
+            String msgVisibleIds = snapshot.visibleTileIdRange.toString();
+            String msgProvider = provider == null ? "" : provider.getDebugSummary();
+            TileMetrics metrics = provider == null ? null : provider.getMetrics();
+            String msgMetrics = metrics == null ? "" : metrics.getSummary();
+            String msgMemory = Utils.getMemDebugString();
+            Paint paintMem = Utils.isHeapAlmostFull() ? paint_debugBoxErrTxt : paint_debugBoxTxt;
+
+            float boxWidth = 350, boxHeight = 130;
+
+            float boxLeft = state.surfaceW - boxWidth;
+            float boxTop = state.surfaceH - boxHeight;
+            float boxMid = boxLeft + boxWidth / 2;
+
+            canvas.drawRect(boxLeft, boxTop, state.surfaceW, state.surfaceH, paint_debugBoxBG);
+
+            canvas.drawText(msgResAndScale, boxMid, boxTop + 20, paint_debugBoxTxt);
+            canvas.drawText(msgOffset, boxMid, boxTop + 40, paint_debugBoxTxt);
+            canvas.drawText(msgVisibleIds, boxMid, boxTop + 60, paint_debugBoxTxt);
+            canvas.drawText(msgProvider, boxMid, boxTop + 80, paint_debugBoxTxt);
+            canvas.drawText(msgMetrics, boxMid, boxTop + 100, paint_debugBoxTxt);
+            canvas.drawText(msgMemory, boxMid, boxTop + 120, paintMem);
+        }
+        // -----------------  end debug box ------------------------------------------
+
+        canvas.restore();
+
+    }
+
+    /* Bring each visible row's strip up to date, redrawing only the cells whose content has changed, and draw the
+     * strips.  Strips are matched to rows by tile ID, so they follow their rows when scrolling vertically, and each
+     * tile column has a fixed cell in the strip (its ID modulo the number of columns, wrapping round like a ring
+     * buffer), so the cells follow their columns when scrolling horizontally.  A strip is drawn in two parts, split
+     * where the visible columns wrap round the end of it */
+    private void drawRowStrips(Canvas canvas, ViewState state, TileRange range, TileHints hints) {
+
+        int rows = visibleTiles.length, cols = visibleTiles[0].length;
+        int tileSize = state.tileWidth;
+
+        if (rowStrips == null || rowStrips.length != rows || rowStrips[0].cellKeys.length != cols
+                || rowStrips[0].bitmap.getHeight() != tileSize) {
+            releaseRowStrips();
+            rowStrips = new RowStrip[rows];
+            for (int i = 0; i < rows; i++) {
+                rowStrips[i] = new RowStrip(cols, tileSize);
+            }
+        }
+
+        for (int y = 0; y < rows; y++) {
+
+            RowStrip strip = findRowStrip(range.top + y, range.top, rows);
+
+            boolean rebuild = !strip.valid;
+            if (rebuild) {
+                strip.bitmap.eraseColor(Color.TRANSPARENT);
+                strip.rowId = range.top + y;
+                strip.valid = true;
+            }
+
+            // the cell holding the leftmost visible column
+            int firstCell = ((range.left % cols) + cols) % cols;
+
+            for (int x = 0; x < cols; x++) {
+
+                Tile t = visibleTiles[y][x];
+                int xId = range.left + x;
+                int cell = (firstCell + x) % cols;
+                int cellLeft = cell * tileSize;
+
+                // the content hash, or for tiles not loaded yet the hint, as that's what ends up in the strip
+                int key = 0;
+                if (t != null) {
+                    key = t.getBitmapContentHash();
+                    if (key == 0 && hints != null) {
+                        key = hints.getColor(Tile.wrapId(t.xId, hintWrapX), Tile.wrapId(t.yId, hintWrapY));
+                    }
+                }
+                boolean absent = t == null;
+
+                boolean sameCell = !rebuild && strip.cellXIds[cell] == xId;
+                if (!sameCell || absent != strip.cellAbsent[cell] || key != strip.cellKeys[cell]) {
+
+                    if (!rebuild) {
+                        strip.canvas.drawRect(cellLeft, 0, cellLeft + tileSize, tileSize, paint_clear);
+                    }
+                    if (absent) {
+                        strip.canvas.drawRect(cellLeft, 0, cellLeft + tileSize, tileSize, paint_absentFill);
+                    } else {
+                        drawTile(strip.canvas, t, cellLeft, 0, true, hints);
+                    }
+                    strip.cellXIds[cell] = xId;
+                    strip.cellAbsent[cell] = absent;
+                    strip.cellKeys[cell] = key;
+                }
+
+                // the budget doesn't apply here, new tiles are always in their strip by now
+                drawnFull[y][x] = t != null && t.getBmpData() != null;
+                if (newTiles[y][x]) {
+                    newTiles[y][x] = false;
+                    oldTileHashcodes[y][x] = newTileHashcodes[y][x];
+                }
+            }
+
+            // from the leftmost visible column's cell to the end of the strip, then the rest from its start
+            int top = y * tileSize, split = (cols - firstCell) * tileSize;
+            stripSrc.set(firstCell * tileSize, 0, cols * tileSize, tileSize);
+            stripDst.set(0, top, split, top + tileSize);
+            canvas.drawBitmap(strip.bitmap, stripSrc, stripDst, null);
+            if (firstCell > 0) {
+                stripSrc.set(0, 0, firstCell * tileSize, tileSize);
+                stripDst.set(split, top, cols * tileSize, top + tileSize);
+                canvas.drawBitmap(strip.bitmap, stripSrc, stripDst, null);
+            }
+        }
+    }
+
+    /* The strip already holding the row, or failing that one that's free to be rebuilt for it (there's always one,
+     * as there are as many strips as visible rows, and each row has at most one) */
+    private RowStrip findRowStrip(int rowId, int top, int rows) {
+
+        RowStrip free = null;
+        for (RowStrip strip : rowStrips) {
+
+            boolean inUse = strip.valid && strip.rowId >= top && strip.rowId < top + rows;
+            if (inUse && strip.rowId == rowId) {
+                return strip;
+            }
+            if (!inUse && free == null) {
+                free = strip;
+            }
+        }
+
+        free.valid = false;
+        return free;
+    }
+
+    /* Have the strip holding the row (if any) rebuilt next frame */
+    private void invalidateRowStrip(int rowId) {
+
+        if (rowStrips == null) {
+            return;
+        }
+        for (RowStrip strip : rowStrips) {
+            if (strip.rowId == rowId) {
+                strip.valid = false;
+            }
+        }
+    }
+
+    /* Have every strip rebuilt next frame */
+    private void invalidateRowStrips() {
+
+        if (rowStrips == null) {
+            return;
+        }
+        for (RowStrip strip : rowStrips) {
+            strip.valid = false;
+        }
+    }
+
+    /* Free the strips' memory, they're reallocated if needed.  Only call from the rendering thread, or once it's
+     * stopped */
+    void releaseRowStrips() {
+
+        if (rowStrips == null) {
+            return;
+        }
+        for (RowStrip strip : rowStrips) {
+            strip.bitmap.recycle();
+        }
+        rowStrips = null;
+    }
+
+    /* The debug grid, as one batch of lines rather than a rectangle per tile */
+    private void drawGridLines(Canvas canvas, int rows, int cols, int tileSize) {
+
+        int numPts = (rows + cols + 2) * 4;
+        if (gridLinePts.length != numPts) {
+            gridLinePts = new float[numPts];
+        }
+
+        float[] pts = gridLinePts;
+        float right = cols * tileSize, bottom = rows * tileSize;
+        int i = 0;
+
+        for (int y = 0; y <= rows; y++) {
+            pts[i++] = 0;
+            pts[i++] = y * tileSize;
+            pts[i++] = right;
+            pts[i++] = y * tileSize;
+        }
+        for (int x = 0; x <= cols; x++) {
+            pts[i++] = x * tileSize;
+            pts[i++] = 0;
+            pts[i++] = x * tileSize;
+            pts[i++] = bottom;
+        }
+
+        canvas.drawLines(pts, 0, i, paint_debugGridLine);
+    }
+
+    /* Draw a tile's bitmap at the specified position, or its preview if there's no bitmap yet (or it's not allowed),
+     * or failing that, its hint colour.  Returns true if the full bitmap was drawn. */
+    private boolean drawTile(Canvas canvas, Tile t, int left, int top, boolean allowFull, TileHints hints) {
+
+        Bitmap bmp = allowFull ? t.getBmpData() : null;
+        if (bmp != null) {
+            canvas.drawBitmap(bmp, left, top, null);
+            return true;
+        }
+
+        // no full bitmap yet, but there may be a preview to stretch over the tile in the meantime
+        Bitmap preview = t.getPreviewBmpData();
+        if (preview != null) {
+            int scale = t.getPreviewScale();
+            previewDst.set(left, top, left + preview.getWidth() * scale, top + preview.getHeight() * scale);
+            canvas.drawBitmap(preview, null, previewDst, paint_preview);
+            return false;
+        }
+
+        int hint = hints == null ? 0 : hints.getColor(Tile.wrapId(t.xId, hintWrapX), Tile.wrapId(t.yId, hintWrapY));
+        if (hint != 0) {
+            paint_hint.setColor(hint);
+            canvas.drawRect(left, top, left + t.size, top + t.size, paint_hint);
+        }
+        return false;
+    }
+
+    // Sometimes the provider screws up and sends back null instead of a tile with null content.  Can't
+    // work with null, have an tile ID to work with - this'll do to cover those blips.
+    private static class EmptyTile extends Tile {
+        public EmptyTile(int x, int y, int size) {
+            super(x, y, size);
+        }
+    }
+
+    // A visible row of tiles composited into one bitmap, see setRowStripCaching()
+    private static class RowStrip {
+
+        final Bitmap bitmap;
+        final Canvas canvas;
+
+        /* what's in each cell of the strip, compared against the tiles each frame: the column's tile ID, whether
+         * the tile is absent from the existence index, and if not its content hash (or hint colour) */
+        final int[] cellXIds;
+        final boolean[] cellAbsent;
+        final int[] cellKeys;
+
+        // the tile ID of the row, only meaningful while valid (as are the cells)
+        int rowId;
+        boolean valid;
+
+        RowStrip(int cols, int tileSize) {
+            bitmap = Bitmap.createBitmap(cols * tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(bitmap);
+            cellXIds = new int[cols];
+            cellAbsent = new boolean[cols];
+            cellKeys = new int[cols];
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A low overhead event tracer for the rendering and provider threads.  Events are fixed-size records (a timestamp,
+ * the event type, the recording thread, and two arguments) written into a preallocated ring buffer of longs, with
+ * a single atomic increment to claim a slot - no locks, no allocation.  Recording costs a handful of volatile
+ * writes, and a single volatile read when tracing is disabled, so the trace calls can stay in production code.
+ * <br/><br/>
+ * The view and renderer record frames, range changes and canvas lock waits.  Providers can record the lifecycle of
+ * their tiles with {@link #tileRequested(int, int)}, {@link #tileReady(int, int)} and
+ * {@link #tileEvicted(int, int)}.  Once the buffer is full, the oldest events are overwritten.
+ * <br/><br/>
+ * Call {@link #dump(File)} to write the buffer out in the Chrome trace event (JSON) format, which can be loaded into
+ * <code>chrome://tracing</code> or the Perfetto UI.  Dumping doesn't stop recording - each slot carries a sequence
+ * stamp, written once the rest of the event is, so events still being written (or overwritten) during the dump are
+ * left out rather than garbled.
+ */
+public final class TileTracer {
+
+    public static final int EVENT_FRAME_START = 1;
+    public static final int EVENT_FRAME_END = 2;
+    public static final int EVENT_RANGE_CHANGE = 3;
+    public static final int EVENT_TILE_REQUESTED = 4;
+    public static final int EVENT_TILE_READY = 5;
+    public static final int EVENT_TILE_EVICTED = 6;
+    public static final int EVENT_CANVAS_LOCK_WAIT = 7;
+
+    // 16k events, at 4 longs each this is 512KB
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int LONGS_PER_EVENT = 4;
+
+    private static final TileTracer INSTANCE = new TileTracer(DEFAULT_CAPACITY);
+
+    // each event: [timestamp nanos][type << 32 | thread id][arg1][arg2]
+    private final AtomicLongArray buffer;
+    private final int mask;
+
+    /* per slot, the sequence number (plus one) of the event last completely written there, or SLOT_WRITING.  Atomic
+     * arrays so longs don't tear on 32 bit devices.  The stamps and events are all written with volatile set(), so
+     * a dump sees the writes in program order - with lazySet(), an event's new payload could become visible before
+     * its SLOT_WRITING stamp, and a half-overwritten event pass the dump's checks */
+    private final AtomicLongArray stamps;
+    private static final long SLOT_WRITING = -1;
+    private final AtomicLong cursor = new AtomicLong();
+
+    private volatile boolean enabled;
+
+    /**
+     * @return The tracer shared by the view and providers
+     */
+    public static TileTracer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a tracer with its own buffer (most code should use the shared {@link #get()} instance).
+     *
+     * @param capacity The number of events the buffer holds, rounded up to a power of two.
+     */
+    public TileTracer(int capacity) {
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new AtomicLongArray(size * LONGS_PER_EVENT);
+        stamps = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     * @return true if events are being recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start or stop recording events.  Off by default.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Discard all recorded events.  Only call when no other thread is recording.
+     */
+    public void clear() {
+        cursor.set(0);
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param type One of the <code>EVENT_*</code> constants
+     * @param arg1 Event specific argument
+     * @param arg2 Event specific argument
+     */
+    public void record(int type, long arg1, long arg2) {
+
+        if (!enabled) {
+            return;
+        }
+
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & mask);
+        int base = slot * LONGS_PER_EVENT;
+
+        // the stamp goes first and last, so a dump can tell whether it read a complete event (see dump())
+        stamps.set(slot, SLOT_WRITING);
+        buffer.set(base, System.nanoTime());
+        buffer.set(base + 1, (long) type << 32 | Thread.currentThread().getId() & 0xFFFFFFFFL);
+        buffer.set(base + 2, arg1);
+        buffer.set(base + 3, arg2);
+        stamps.set(slot, seq + 1);
+    }
+
+    public void frameStart() {
+        record(EVENT_FRAME_START, 0, 0);
+    }
+
+    /**
+     * @param numEmptyTiles The number of visible tiles drawn without bitmap data
+     */
+    public void frameEnd(int numEmptyTiles) {
+        record(EVENT_FRAME_END, numEmptyTiles, 0);
+    }
+
+    public void rangeChange(TileRange range) {
+        record(EVENT_RANGE_CHANGE, Tile.createCacheKey(range.left, range.top),
+                Tile.createCacheKey(range.right, range.bottom));
+    }
+
+    public void tileRequested(int x, int y) {
+        record(EVENT_TILE_REQUESTED, Tile.createCacheKey(x, y), 0);
+    }
+
+    public void tileReady(int x, int y) {
+        record(EVENT_TILE_READY, Tile.createCacheKey(x, y), 0);
+    }
+
+    public void tileEvicted(int x, int y) {
+        record(EVENT_TILE_EVICTED, Tile.createCacheKey(x, y), 0);
+    }
+
+    /**
+     * @param waitNanos How long the thread waited to get hold of the canvas (recorded when the wait is over)
+     */
+    public void canvasLockWait(long waitNanos) {
+        record(EVENT_CANVAS_LOCK_WAIT, waitNanos, 0);
+    }
+
+    /**
+     * Write the recorded events to a file, see {@link #dump(OutputStream)}
+     *
+     * @param file The file to write to (will be overwritten)
+     * @throws IOException If writing fails
+     */
+    public void dump(File file) throws IOException {
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            dump(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Write the recorded events, oldest first, in the Chrome trace event JSON format.  The stream is not closed.
+     *
+     * @param os The stream to write to
+     * @throws IOException If writing fails
+     */
+    public void dump(OutputStream os) throws IOException {
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+
+        long end = cursor.get();
+        long start = Math.max(0, end - (mask + 1));
+
+        out.write("{\"traceEvents\":[");
+
+        boolean first = true;
+        for (long seq = start; seq < end; seq++) {
+
+            int slot = (int) (seq & mask);
+            int base = slot * LONGS_PER_EVENT;
+
+            // skip slots claimed but not written yet, or being overwritten by a newer event while read
+            if (stamps.get(slot) != seq + 1) {
+                continue;
+            }
+            long nanos = buffer.get(base);
+            long typeAndTid = buffer.get(base + 1);
+            long arg1 = buffer.get(base + 2);
+            long arg2 = buffer.get(base + 3);
+            if (stamps.get(slot) != seq + 1) {
+                continue;
+            }
+
+            String event = formatEvent((int) (typeAndTid >>> 32), nanos / 1000, (int) typeAndTid, arg1, arg2);
+            if (event == null) {
+                continue; // unknown type
+            }
+
+            if (!first) {
+                out.write(",\n");
+            }
+            out.write(event);
+            first = false;
+        }
+
+        out.write("]}\n");
+        out.flush();
+    }
+
+    private static String formatEvent(int type, long micros, int tid, long arg1, long arg2) {
+
+        // the common fields, all events are on a single 'process'
+        String common = "\"pid\":1,\"tid\":" + tid + ",\"ts\":" + micros;
+
+        switch (type) {
+
+            case EVENT_FRAME_START:
+                return "{\"name\":\"frame\",\"ph\":\"B\"," + common + "}";
+
+            case EVENT_FRAME_END:
+                return "{\"name\":\"frame\",\"ph\":\"E\"," + common + ",\"args\":{\"empty\":" + arg1 + "}}";
+
+            case EVENT_RANGE_CHANGE:
+                return String.format("{\"name\":\"range\",\"ph\":\"i\",\"s\":\"p\",%s," +
+                        "\"args\":{\"left\":%d,\"top\":%d,\"right\":%d,\"bottom\":%d}}",
+                        common, (int) (arg1 >> 32), (int) arg1, (int) (arg2 >> 32), (int) arg2);
+
+            case EVENT_TILE_REQUESTED:
+                return formatTileEvent("requested", common, arg1);
+
+            case EVENT_TILE_READY:
+                return formatTileEvent("ready", common, arg1);
+
+            case EVENT_TILE_EVICTED:
+                return formatTileEvent("evicted", common, arg1);
+
+            case EVENT_CANVAS_LOCK_WAIT:
+                // recorded at the end of the wait, so shift the start back by the duration
+                long durMicros = arg1 / 1000;
+                return "{\"name\":\"lockCanvas\",\"ph\":\"X\",\"pid\":1,\"tid\":" + tid
+                        + ",\"ts\":" + (micros - durMicros) + ",\"dur\":" + durMicros + "}";
+
+            default:
+                return null;
+        }
+    }
+
+    private static String formatTileEvent(String name, String common, long cacheKey) {
+        return String.format("{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"t\",%s,\"args\":{\"x\":%d,\"y\":%d}}",
+                name, common, (int) (cacheKey >> 32), (int) cacheKey);
+    }
+
+}
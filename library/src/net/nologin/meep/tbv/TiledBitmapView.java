@@ -17,8 +17,7 @@
 package net.nologin.meep.tbv;
 
 import android.content.Context;
-import android.content.res.Resources;
-import android.graphics.*;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.util.AttributeSet;
@@ -27,6 +26,10 @@ import android.util.Pair;
 import android.os.Process;
 import android.view.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -65,27 +68,44 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
      * - On surface creation, we create a rendering thread (similar to the Lunar Lander app) which runs for the life
      *   of the surface.  On every iteration, it takes a thread-safe snapshot of the ViewState, and polls the provider
      *   for new tile data if required/requested.  If it detects that there is a change in bitmap content for the
-     *   visible grid, a new render is performed.
+     *   visible grid, a new render is performed.  Otherwise, any tile regions invalidated since the last frame
+     *   (see invalidateTileRegion) are redrawn on their own, with the canvas locked for just that area.  The
+     *   drawing itself is done by a TileRenderer onto a RenderTarget (the surface here), so the same drawing code
+     *   can be run offscreen (see BitmapRenderTarget).
      *
      * - There's a debug flag, which if set will cause the render thread to draw tile borders, tile coordinate info
      *   and a box at the bottom right with useful information.  It hits performance a bit, but is a massive help
      *   when something goes wrong.
+     *
+     * - For timing problems the debug box can't explain, TileTracer.get().setEnabled(true) records frames, range
+     *   changes and canvas lock waits (plus any tile events the provider records) for dumping to a trace viewer.
      */
 
     // onSaveInstanceState/onRestoreInstanceState keys
     private static final String STATEKEY_SUPERCLASS = "net.nologin.meep.tbv.super";
     private static final String STATEKEY_DEBUG_ENABLED = "net.nologin.meep.tbv.debugenabled";
+    private static final String STATEKEY_CENTRE_X = "net.nologin.meep.tbv.centrex";
+    private static final String STATEKEY_CENTRE_Y = "net.nologin.meep.tbv.centrey";
+    private static final String STATEKEY_TILE_SIZE = "net.nologin.meep.tbv.tilesize";
+    private static final String STATEKEY_ZOOM_FACTOR = "net.nologin.meep.tbv.zoomfactor";
 
     final GestureDetector gestureDetector;
     final ScaleGestureDetector scaleDetector;
 
-    final Paint paint_bg, paint_debugTileTxt, paint_debugGridLine,
-            paint_debugBoxBG, paint_debugBoxTxt, paint_debugBoxErrTxt;
+    final TileRenderer renderer;
 
     TileSurfaceDrawThread surfaceDrawThread;
     ViewState state;
     TileProvider tileProvider;
-    private boolean debugEnabled;
+
+    // if non-null, scroll and zoom gestures get recorded to this
+    private volatile GestureTrace gestureTrace;
+
+    // position restored by onRestoreInstanceState, applied when the surface is ready (see resetState)
+    private Bundle restoredPosition;
+
+    // if non-null, the last frame is saved here when the surface goes, and shown first when it comes back
+    private volatile File warmStartFile;
 
     public TiledBitmapView(Context context, AttributeSet attrs) {
 
@@ -100,47 +120,8 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         // the user _should_ set their own, but this is more helpful when they forget/don't
         tileProvider = new GenericTileProvider(context);
 
-        // ------- end view setup, configure paint objects --------
-
-        Resources res = getResources();
-
-        // background behind tiles (visible if tile content unavailable)
-        paint_bg = new Paint();
-        paint_bg.setColor(res.getColor(R.color.main_background_color));
-        paint_bg.setStyle(Paint.Style.FILL);
-
-        // common text
-        Paint centerAlignedTxt = new Paint();
-        centerAlignedTxt.setAntiAlias(true);
-        centerAlignedTxt.setTypeface(Typeface.MONOSPACE);
-        centerAlignedTxt.setTextAlign(Paint.Align.CENTER);
-
-        // per-tile debug text
-        paint_debugTileTxt = new Paint(centerAlignedTxt);
-        paint_debugTileTxt.setColor(res.getColor(R.color.debug_tile_text));
-        paint_debugTileTxt.setTextSize(32);
-        paint_debugTileTxt.setShadowLayer(5, 2, 2, Color.BLACK);
-
-        // border lines around tiles
-        paint_debugGridLine = new Paint();
-        paint_debugGridLine.setColor(res.getColor(R.color.debug_tile_border));
-        paint_debugGridLine.setStyle(Paint.Style.STROKE);
-        paint_debugGridLine.setStrokeWidth(1);
-
-        // background of bottom right debug info box
-        paint_debugBoxBG = new Paint();
-        paint_debugBoxBG.setColor(res.getColor(R.color.debug_box_bg));
-        paint_debugBoxBG.setStyle(Paint.Style.FILL);
-        paint_debugBoxBG.setAlpha(140);
-
-        // text for debug info box
-        paint_debugBoxTxt = new Paint(centerAlignedTxt);
-        paint_debugBoxTxt.setColor(res.getColor(R.color.debug_box_text));
-        paint_debugBoxTxt.setTextSize(14);
-
-        // same as paint_debugBoxTxt, except for errors
-        paint_debugBoxErrTxt = new Paint(paint_debugBoxTxt);
-        paint_debugBoxErrTxt.setColor(res.getColor(R.color.debug_box_text_error));
+        // all drawing (and the paint objects it needs) is handled by the renderer
+        renderer = new TileRenderer(getResources());
     }
 
 
@@ -160,6 +141,15 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
 
         this.tileProvider = tileProvider;
 
+        // a saved frame from some other provider's tiles would just be confusing
+        renderer.setBackdrop(null);
+
+        // the new provider may have a different config (tile size, limits), so the state needs rebuilding
+        if (state != null && state.surfaceW > 0) {
+            resetState(state.surfaceW, state.surfaceH, false);
+            return;
+        }
+
         requestSurfaceRefresh(true);
     }
 
@@ -177,11 +167,130 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         return tileProvider;
     }
 
+    /**
+     * Add an overlay layer, drawn over the registered provider's tiles (and any layers added before it).  The
+     * layer's provider gets the same range, zoom and surface notifications as the registered provider, and is
+     * polled for fresh data independently of it.  See {@link TileLayer}.
+     *
+     * @param provider The provider for the layer's tiles, whose tile size must match the registered provider's
+     * @param opacity  From 0 (invisible) to 1 (opaque)
+     * @return The new layer
+     * @throws IllegalArgumentException if the provider's tile size doesn't match the registered provider's
+     */
+    public TileLayer addLayer(TileProvider provider, float opacity) {
+
+        if (provider.getConfigTileSize() != tileProvider.getConfigTileSize()) {
+            throw new IllegalArgumentException("Layer tile size " + provider.getConfigTileSize()
+                    + " doesn't match provider tile size " + tileProvider.getConfigTileSize());
+        }
+
+        TileLayer layer = new TileLayer(provider, opacity);
+        renderer.getLayers().add(layer);
+
+        // bring it up to date with the current range
+        if (state != null && state.getVisibleTileRange() != null) {
+            provider.onTileIDRangeChange(state.getVisibleTileRange());
+        }
+        requestSurfaceRefresh(false);
+
+        return layer;
+    }
+
+    /**
+     * Remove a layer added with {@link #addLayer(TileProvider, float)}.  Its provider gets an
+     * {@link TileProvider#onSurfaceDestroyed()} call, so it can stop any background work.
+     *
+     * @return <code>true</code> if the layer was found and removed
+     */
+    public boolean removeLayer(TileLayer layer) {
+
+        if (!renderer.getLayers().remove(layer)) {
+            return false;
+        }
+        layer.provider.onSurfaceDestroyed();
+        requestSurfaceRefresh(false);
+        return true;
+    }
+
+    /**
+     * @return The overlay layers, in drawing order (read only)
+     */
+    public List<TileLayer> getLayers() {
+        return Collections.unmodifiableList(renderer.getLayers());
+    }
+
+    /**
+     * Change the opacity of a layer and redraw.  Only the layer's alpha changes - none of its tiles (or any other
+     * layer's) are re-fetched.
+     *
+     * @param opacity From 0 (invisible) to 1 (opaque)
+     */
+    public void setLayerOpacity(TileLayer layer, float opacity) {
+        layer.setOpacity(opacity);
+        requestSurfaceRefresh(false);
+    }
+
+    /**
+     * Redraw part of a tile whose bitmap has been modified in place, without a full redraw of the view.  The
+     * rendering thread merges every region invalidated between frames, and redraws only the screen area they
+     * cover.  May be called from any thread (eg the provider's worker thread that modified the bitmap).
+     * <br/><br/>
+     * There's no need to call this for a tile given a new bitmap, that's picked up in the usual way via
+     * {@link TileProvider#hasFreshData()}.
+     *
+     * @param tileX  The tile's x ID (the tile's own ID, in a wrapping tile space)
+     * @param tileY  The tile's y ID
+     * @param region The area that has changed, in pixels relative to the tile's top-left corner, or
+     *               <code>null</code> for the whole tile
+     */
+    public void invalidateTileRegion(int tileX, int tileY, Rect region) {
+        renderer.invalidateTileRegion(tileX, tileY, region);
+    }
+
+    /**
+     * Opt in to warm starts.  When the surface is destroyed (eg the app goes to the background), the last frame is
+     * saved to the specified file, and when a surface is next created (even in a new process) it's drawn straight
+     * away, behind the tiles, until the provider has delivered every visible tile.  The frame is stored
+     * uncompressed, so it loads in a few milliseconds, but takes 2 bytes per screen pixel.
+     * <br/><br/>
+     * The frame is drawn at the position in the tile grid where it was saved, so it only helps if the view comes
+     * back to the same position (see {@link #onSaveInstanceState()}).
+     *
+     * @param file Where to save the frame, eg in <code>Context.getCacheDir()</code>, or <code>null</code> to
+     *             disable warm starts (the file is left as is)
+     */
+    public void setWarmStartFile(File file) {
+        this.warmStartFile = file;
+    }
+
+    /**
+     * Limit the number of newly loaded tiles drawn per frame, to avoid a hitch when a provider delivers a big
+     * batch at once.  See {@link TileRenderer#setNewTileBudget(int, float)}.
+     *
+     * @param maxTiles  The maximum number of new tiles drawn per frame, or 0 for no limit (the default)
+     * @param maxMillis The time after which no more new tiles are drawn in a frame, or 0 for no limit (the default)
+     */
+    public void setNewTileBudget(int maxTiles, float maxMillis) {
+        renderer.setNewTileBudget(maxTiles, maxMillis);
+    }
+
+    /**
+     * Draw each visible row of tiles from a cached strip bitmap, which is only redrawn where its tiles have changed.
+     * Worthwhile with small tiles on a large surface, where there are hundreds of tiles to draw in each frame.  See
+     * {@link TileRenderer#setRowStripCaching(boolean)}.
+     *
+     * @param enabled <code>true</code> to draw with row strips, <code>false</code> to draw tile by tile (the default)
+     */
+    public void setRowStripCaching(boolean enabled) {
+        renderer.setRowStripCaching(enabled);
+        requestSurfaceRefresh(false);
+    }
+
     /**
      * @return True if this view is rendering debug information
      */
     public boolean isDebugEnabled() {
-        return debugEnabled;
+        return renderer.isDebugEnabled();
     }
 
     /**
@@ -190,7 +299,8 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
      * @return if debug information is being rendered after toggling
      */
     public boolean toggleDebugEnabled() {
-        debugEnabled = !debugEnabled;
+        boolean debugEnabled = !renderer.isDebugEnabled();
+        renderer.setDebugEnabled(debugEnabled);
 
         requestSurfaceRefresh(false);
 
@@ -203,17 +313,50 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
      * @param debugEnabled true if debug should be rendered, false otherwise.
      */
     public void setDebugEnabled(boolean debugEnabled) {
-        this.debugEnabled = debugEnabled;
+        renderer.setDebugEnabled(debugEnabled);
         requestSurfaceRefresh(false);
     }
 
+    /**
+     * Start recording the scroll and zoom gestures this view receives (replacing any recording already in progress).
+     * See {@link GestureTrace}.
+     *
+     * @return The trace the gestures will be recorded to
+     */
+    public GestureTrace startGestureTrace() {
+        gestureTrace = new GestureTrace();
+        return gestureTrace;
+    }
+
+    /**
+     * Stop recording gestures.
+     *
+     * @return The trace recorded since {@link #startGestureTrace()}, or <code>null</code> if not recording.
+     */
+    public GestureTrace stopGestureTrace() {
+        GestureTrace trace = gestureTrace;
+        gestureTrace = null;
+        return trace;
+    }
+
     @Override
     public Parcelable onSaveInstanceState() {
 
-        // the only value (apart from superclass state) we care about is whether debug is on
+        // apart from superclass state, whether debug is on, and where we're looking
         Bundle bundle = new Bundle();
         bundle.putParcelable(STATEKEY_SUPERCLASS, super.onSaveInstanceState());
-        bundle.putBoolean(STATEKEY_DEBUG_ENABLED, debugEnabled);
+        bundle.putBoolean(STATEKEY_DEBUG_ENABLED, renderer.isDebugEnabled());
+
+        // the centre rather than the offsets, as the restored surface may well be a different shape (rotation)
+        ViewState state = this.state;
+        if (state != null && state.getVisibleTileRange() != null) {
+            bundle.putLong(STATEKEY_CENTRE_X, state.getCentreX());
+            bundle.putLong(STATEKEY_CENTRE_Y, state.getCentreY());
+            bundle.putInt(STATEKEY_TILE_SIZE, state.tileWidth);
+            bundle.putFloat(STATEKEY_ZOOM_FACTOR, state.getZoomFactor());
+        } else if (restoredPosition != null) {
+            bundle.putAll(restoredPosition); // never got as far as a surface, keep the position for next time
+        }
 
         return bundle;
     }
@@ -221,10 +364,19 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
     @Override
     public void onRestoreInstanceState(Parcelable state) {
 
-        // again, apart from the superclass state, we only restore debug state
         if (state instanceof Bundle) {
             Bundle bundle = (Bundle) state;
-            this.debugEnabled = bundle.getBoolean(STATEKEY_DEBUG_ENABLED);
+            renderer.setDebugEnabled(bundle.getBoolean(STATEKEY_DEBUG_ENABLED));
+
+            // the surface isn't ready yet, the position gets applied in resetState()
+            if (bundle.containsKey(STATEKEY_CENTRE_X)) {
+                restoredPosition = new Bundle();
+                restoredPosition.putLong(STATEKEY_CENTRE_X, bundle.getLong(STATEKEY_CENTRE_X));
+                restoredPosition.putLong(STATEKEY_CENTRE_Y, bundle.getLong(STATEKEY_CENTRE_Y));
+                restoredPosition.putInt(STATEKEY_TILE_SIZE, bundle.getInt(STATEKEY_TILE_SIZE));
+                restoredPosition.putFloat(STATEKEY_ZOOM_FACTOR, bundle.getFloat(STATEKEY_ZOOM_FACTOR));
+            }
+
             super.onRestoreInstanceState(bundle.getParcelable(STATEKEY_SUPERCLASS));
             return;
         }
@@ -238,7 +390,7 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
 
         // runs for the lifetime of the surface (killed in surfaceDestroyed)
         if (surfaceDrawThread == null || !surfaceDrawThread.isAlive()) {
-            surfaceDrawThread = new TileSurfaceDrawThread(holder);
+            surfaceDrawThread = new TileSurfaceDrawThread(new SurfaceRenderTarget(holder));
             surfaceDrawThread.setRunning(true);
             surfaceDrawThread.start();
         }
@@ -252,6 +404,9 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         if (tileProvider != null) {
             tileProvider.onSurfaceDestroyed();
         }
+        for (TileLayer layer : renderer.getLayers()) {
+            layer.provider.onSurfaceDestroyed();
+        }
 
         // stop rendering thread (started in surfaceCreated), retry stuff based on LunarLander source
         boolean retry = true;
@@ -264,19 +419,96 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
             }
         }
 
+        saveWarmStartFrame();
+
+        // the strips (if any) are no use without a surface, they're rebuilt for the next one
+        renderer.releaseRowStrips();
+    }
+
+    /* redraw the last frame offscreen, keep it for the next surface, and write it out in the background */
+    private void saveWarmStartFrame() {
+
+        final File file = warmStartFile;
+        ViewState.Snapshot snapshot = surfaceDrawThread.snapshot; // as of the last frame, the thread is done with it
+        if (file == null || state == null || snapshot == null) {
+            return;
+        }
+
+        final WarmStartSnapshot frame = renderer.captureFrame(state, snapshot, tileProvider);
+        if (frame == null) {
+            return;
+        }
+        renderer.setBackdrop(frame);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    frame.writeTo(file);
+                } catch (IOException e) {
+                    Log.w(Utils.LOG_TAG, "Failed to save warm start frame to " + file, e);
+                }
+            }
+        }, "TBVWarmStartWriter").start();
     }
 
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        resetState(width, height, true);
+    }
+
+    /* init view state with surface config info and the provider's config.  If keepPosition is set, the view stays
+     * centred on the same point (from the previous state, or onRestoreInstanceState), otherwise it starts at the
+     * origin tile. */
+    private void resetState(int width, int height, boolean keepPosition) {
+
+        ViewState oldState = state;
 
-        // init view state with surface config info
         state = new ViewState(width, height,
                 tileProvider.getConfigTileSize(),
                 tileProvider.getConfigTileIDLimits());
 
-        // start off at the origin tile.
-        moveToTile(0, 0, true);
+        long centreX, centreY;
+        float zoomFactor;
+        int oldTileSize;
+
+        if (keepPosition && restoredPosition != null) {
+            centreX = restoredPosition.getLong(STATEKEY_CENTRE_X);
+            centreY = restoredPosition.getLong(STATEKEY_CENTRE_Y);
+            oldTileSize = restoredPosition.getInt(STATEKEY_TILE_SIZE);
+            zoomFactor = restoredPosition.getFloat(STATEKEY_ZOOM_FACTOR);
+        } else if (keepPosition && oldState != null && oldState.getVisibleTileRange() != null) {
+            centreX = oldState.getCentreX();
+            centreY = oldState.getCentreY();
+            oldTileSize = oldState.tileWidth;
+            zoomFactor = oldState.getZoomFactor();
+        } else {
+            // start off at the origin tile.
+            restoredPosition = null;
+            moveToTile(0, 0, true);
+            return;
+        }
+        restoredPosition = null;
+
+        // the same point in the tile grid, should the provider's tile size have changed
+        if (oldTileSize > 0 && oldTileSize != state.tileWidth) {
+            centreX = centreX * state.tileWidth / oldTileSize;
+            centreY = centreY * state.tileWidth / oldTileSize;
+        }
+
+        if (zoomFactor != state.getZoomFactor()) {
+            zoomFactor = state.setZoomFactor(zoomFactor);
+            tileProvider.onZoomFactorChange(zoomFactor);
+            for (TileLayer layer : renderer.getLayers()) {
+                layer.provider.onZoomFactorChange(zoomFactor);
+            }
+        }
+
+        /* just the visible range for the new surface size - a provider that kept its cache (eg retained across
+         * the Activity being recreated) will already have most of it */
+        state.applyCentre(centreX, centreY);
+        requestSurfaceRefresh(true);
     }
 
     /**
@@ -294,7 +526,12 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         }
 
         if (notifyProvider) {
-            tileProvider.onTileIDRangeChange(state.getVisibleTileRange());
+            TileRange range = state.getVisibleTileRange();
+            TileTracer.get().rangeChange(range);
+            tileProvider.onTileIDRangeChange(range);
+            for (TileLayer layer : renderer.getLayers()) {
+                layer.provider.onTileIDRangeChange(range);
+            }
         }
 
         if (surfaceDrawThread != null) {
@@ -347,9 +584,10 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         GridAnchor anchor = tileProvider.getConfigGridAnchor();
         Pair<Integer, Integer> anchorCoords = anchor.getPosition(state.surfaceW, state.surfaceH, state.tileWidth);
 
-        // now calculate how many pixels we'd need to 'scroll' from there to get to the desired tile
-        int newX = anchorCoords.first - (state.tileWidth * tileX);
-        int newY = anchorCoords.second - (state.tileWidth * tileY);
+        // now calculate how many pixels we'd need to 'scroll' from there to get to the desired tile (as a long, far
+        // out tiles are well past the int range of pixels)
+        long newX = anchorCoords.first - ((long) state.tileWidth * tileX);
+        long newY = anchorCoords.second - ((long) state.tileWidth * tileY);
 
         // update state for these values
         boolean rangeChange = state.applySurfaceOffset(newX, newY);
@@ -366,7 +604,7 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
      */
     class TileSurfaceDrawThread extends Thread {
 
-        private final SurfaceHolder holder;
+        private final RenderTarget target;
         boolean running = false;
 
         // used to allow the view to manually request a re-render
@@ -378,14 +616,8 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         // used to detect changes since the last render
         private boolean hasOffsetChanged, wasRenderRequested;
 
-        // the actual tile references that will get drawn to the surface
-        private Tile[][] visibleTiles;
-
-        // the hashcodes of those tiles will be recorded and compared the next time round
-        private int[][] oldTileHashcodes;
-
-        public TileSurfaceDrawThread(SurfaceHolder holder) {
-            this.holder = holder;
+        public TileSurfaceDrawThread(RenderTarget target) {
+            this.target = target;
         }
 
         public void setRunning(boolean running) {
@@ -409,10 +641,14 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
 
             setName(this.getClass().getSimpleName() + "(" + getName() + ")");
 
-            Canvas c;
-
             int xCanvasOffsetOld = 0, yCanvasOffsetOld = 0; // detect offset changes
 
+            // show the frame saved by a previous surface (possibly a previous process) until the tiles arrive
+            File warmStartFile = TiledBitmapView.this.warmStartFile;
+            if (warmStartFile != null && renderer.getBackdrop() == null) {
+                renderer.setBackdrop(WarmStartSnapshot.readFrom(warmStartFile));
+            }
+
             while (running) {
 
                 // sanity checks - surfaceChanged() setup not called/finished yet
@@ -431,8 +667,6 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
                 // did the UI thread request that we do a render?
                 wasRenderRequested = rerenderRequested.getAndSet(false);
 
-                c = null;
-
                 hasOffsetChanged = snapshot.canvasOffsetX != xCanvasOffsetOld || snapshot.canvasOffsetY != yCanvasOffsetOld;
                 xCanvasOffsetOld = snapshot.canvasOffsetX;
                 yCanvasOffsetOld = snapshot.canvasOffsetY;
@@ -440,179 +674,29 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
 
                 // only compare the tiles' bitmap data when we know it may have changed (as this can be relatively slow)
                 boolean haveTileBmpsChanged = false;
-                if (tileProvider.hasFreshData() || wasRenderRequested || hasOffsetChanged) {
-                    haveTileBmpsChanged = refreshTileBitmapsAndCompare(snapshot.visibleTileIdRange);
+                if (tileProvider.hasFreshData() || wasRenderRequested || hasOffsetChanged
+                        || renderer.hasDeferredTiles()) {
+                    haveTileBmpsChanged = renderer.refreshTiles(tileProvider, state, snapshot.visibleTileIdRange);
                 }
 
-                // content change, offset change or request for refresh results in a draw
-                if (haveTileBmpsChanged || wasRenderRequested || hasOffsetChanged) {
-
-                    try {
-
-                        c = holder.lockCanvas(null);
-                        if (c == null) {
-                            continue;
-                        }
-
-                        synchronized (holder) {
-                            doDrawVisibleTiles(c, snapshot);
-                        }
-
-                    } finally {
-
-                        if (c != null) {
-                            holder.unlockCanvasAndPost(c);
-                        }
-                    }
-
-
-                }
-
-
-            }
-
-        }
-
-
-        /* Updates the 'visibleTiles' references that we're going to render, returns true if some bmpdata has changed */
-        private boolean refreshTileBitmapsAndCompare(TileRange visibleRange) {
-
-            // reuse the existing arrays as long as possible (otherwise we'll allocate objects like crazy)
-            if (visibleTiles == null ||
-                    visibleTiles.length != state.tileWidth || visibleTiles[0].length != state.tileWidth) {
-                visibleTiles = new Tile[state.tilesVert][state.tilesHoriz];
-                oldTileHashcodes = new int[state.tilesVert][state.tilesHoriz];
-            }
-
-            boolean bmpChangeDetected = false;
-            int newTileHash;
-
-            int xId, yId;
-
-            for (int y = 0; y < state.tilesVert; y++) {
-
-                for (int x = 0; x < state.tilesHoriz; x++) {
-
-                    yId = y + visibleRange.top;
-                    xId = x + visibleRange.left;
-
-                    // refresh the tile from the provider
-                    visibleTiles[y][x] = tileProvider.getTile(xId, yId);
-                    if (visibleTiles[y][x] == null) {
-                        visibleTiles[y][x] = new EmptyTile(xId, yId);
-                    }
-
-                    // generate hashcode, compare to that from last time around
-                    newTileHash = visibleTiles[y][x].getBitmapContentHash();
-                    if (newTileHash != oldTileHashcodes[y][x]) {
-                        bmpChangeDetected = true; // don't break, all tiles need refreshing
-                    }
-                    oldTileHashcodes[y][x] = newTileHash;
-
+                // each layer is only re-checked when its own provider has something new (or the view has moved)
+                boolean layersMoved = wasRenderRequested || hasOffsetChanged;
+                if (renderer.refreshLayers(state, snapshot.visibleTileIdRange, layersMoved)) {
+                    haveTileBmpsChanged = true;
                 }
-            }
-
-            return bmpChangeDetected;
-
-        }
-
-        /* actually renders the surface */
-        public void doDrawVisibleTiles(Canvas canvas, ViewState.Snapshot snapshot) {
-
-            canvas.save();
-
-            // blank out entire surface so empty tiles show up blank
-            canvas.drawRect(0, 0, state.surfaceW, state.surfaceH, paint_bg);
-
-            // offset our canvas, so we can draw our whole tiles on with simple 0,0 origin co-ordinates
-            canvas.translate(snapshot.canvasOffsetX, snapshot.canvasOffsetY);
-
-            int curTileTop = 0;
-
-            for (Tile[] tileRow : visibleTiles) {
-
-                int curTileLeft = 0;
-
-                for (Tile t : tileRow) {
-
-                    Bitmap bmp = t.getBmpData();
-                    if (bmp != null) {
-
-                        canvas.drawBitmap(bmp, curTileLeft, curTileTop, null);
-
-                        if (debugEnabled) {
-                            canvas.drawRect(t.getRect(curTileLeft, curTileTop), paint_debugGridLine);
-                        }
-
-                    }
-                    // else {
-                    //     could possibly let providers give us a 'no data' tile in the future.  For now, ignore.
-                    // }
-
-
-                    // if debug, draw a border round each tile (results in a 'grid'), and write tile IDs
-                    if (debugEnabled) {
-
-                        canvas.drawRect(t.getRect(curTileLeft, curTileTop), paint_debugGridLine);
 
-                        String msg1 = String.format("[%d,%d]", t.xId, t.yId);
-                        canvas.drawText(msg1, curTileLeft + (state.tileWidth / 2),
-                                curTileTop + (state.tileWidth / 2), paint_debugTileTxt);
-                    }
-
-                    curTileLeft += state.tileWidth; // move right one tile screenWidth
+                // content change, offset change or request for refresh results in a draw
+                if (haveTileBmpsChanged || wasRenderRequested || hasOffsetChanged) {
+                    renderer.renderFrame(target, state, snapshot, tileProvider);
+                } else {
+                    // otherwise, just the parts of tiles changed in place (if any)
+                    renderer.renderDirtyRegion(target, state, snapshot, tileProvider);
                 }
 
-                curTileTop += state.tileWidth; // move down one tile screenWidth
-            }
-
-
-            // we don't want the debug box offset with the tiles, undo the translate
-            canvas.translate(-snapshot.canvasOffsetX, -snapshot.canvasOffsetY);
-
-            // -------------------  debug box at bottom right ------------------------
-            if (debugEnabled) {
-
-                String fmt1 = "%dx%d, t=%dx%d zf=%1.3f";
-                String fmt2 = "x=%5d,y=%5d, cx=%4d,cy=%4d";
-                String msgResAndScale = String.format(fmt1, state.surfaceW, state.surfaceH,
-                        state.tileWidth, state.tileWidth, snapshot.zoomFactor);
-                String msgOffset = String.format(fmt2, snapshot.surfaceOffsetX, snapshot.surfaceOffsetY,
-                        snapshot.canvasOffsetX, snapshot.canvasOffsetY);
-                String msgVisibleIds = snapshot.visibleTileIdRange.toString();
-                String msgProvider = tileProvider == null ? "" : tileProvider.getDebugSummary();
-                String msgMemory = Utils.getMemDebugString();
-                Paint paintMem = Utils.isHeapAlmostFull() ? paint_debugBoxErrTxt : paint_debugBoxTxt;
-
-                float boxWidth = 350, boxHeight = 110;
-
-                float boxLeft = state.surfaceW - boxWidth;
-                float boxTop = state.surfaceH - boxHeight;
-                float boxMid = boxLeft + boxWidth / 2;
-
-                canvas.drawRect(boxLeft, boxTop, state.surfaceW, state.surfaceH, paint_debugBoxBG);
-
-                canvas.drawText(msgResAndScale, boxMid, boxTop + 20, paint_debugBoxTxt);
-                canvas.drawText(msgOffset, boxMid, boxTop + 40, paint_debugBoxTxt);
-                canvas.drawText(msgVisibleIds, boxMid, boxTop + 60, paint_debugBoxTxt);
-                canvas.drawText(msgProvider, boxMid, boxTop + 80, paint_debugBoxTxt);
-                canvas.drawText(msgMemory, boxMid, boxTop + 100, paintMem);
             }
-            // -----------------  end debug box ------------------------------------------
-
-            canvas.restore();
-
-        }
 
-        // Sometimes the provider screws up and sends back null instead of a tile with null content.  Can't
-        // work with null, have an tile ID to work with - this'll do to cover those blips.
-        private class EmptyTile extends Tile {
-            public EmptyTile(int x, int y) {
-                super(x, y, state.tileWidth);
-            }
         }
 
-
     }
 
 
@@ -633,10 +717,18 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
 
+            GestureTrace trace = gestureTrace;
+            if (trace != null) {
+                trace.recordScale(System.nanoTime(), detector.getScaleFactor());
+            }
+
             float newZoomFactor = state.updateZoomFactor(detector.getScaleFactor());
 
             // notify provider of zoom change
             tileProvider.onZoomFactorChange(newZoomFactor);
+            for (TileLayer layer : renderer.getLayers()) {
+                layer.provider.onZoomFactorChange(newZoomFactor);
+            }
 
             requestSurfaceRefresh(false); // or true? Will result in second call to the provider
 
@@ -657,6 +749,11 @@ public class TiledBitmapView extends SurfaceView implements SurfaceHolder.Callba
         @Override
         public boolean onScroll(MotionEvent motionEvent, MotionEvent motionEvent1, float distanceX, float distanceY) {
 
+            GestureTrace trace = gestureTrace;
+            if (trace != null) {
+                trace.recordScroll(System.nanoTime(), distanceX, distanceY);
+            }
+
             int newOffX = -(int) distanceX;
             int newOffY = -(int) distanceY;
 
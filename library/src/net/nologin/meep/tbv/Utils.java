@@ -61,6 +61,21 @@ public class Utils {
 
     }
 
+    /**
+     * Pick one axis's period out of a {@link TileProvider#getConfigWrapPeriod()} value.
+     *
+     * @param wrap The config value, may be <code>null</code>
+     * @param axis 0 for x, 1 for y
+     * @return The period, or <code>0</code> if that axis doesn't wrap
+     */
+    static int getWrapPeriod(Integer[] wrap, int axis) {
+
+        if (wrap == null || wrap.length != 2 || wrap[axis] == null) {
+            return 0;
+        }
+        return Math.max(0, wrap[axis]);
+    }
+
     /**
      * @return <code>true</code> if the ratio of available memory starts getting low.  Used for
      *         some debug render candy (eg turn the text red)
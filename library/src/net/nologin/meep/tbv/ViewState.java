@@ -17,7 +17,6 @@
 package net.nologin.meep.tbv;
 
 import android.util.Log;
-import android.util.Pair;
 
 /**
  * An instance of this class is maintained by the {@link TiledBitmapView}.  It is created whenever there's
@@ -29,9 +28,19 @@ import android.util.Pair;
  * the UI thread (as the user interacts with it), but read by the rendering thread.  In order for the rendering
  * thread to take a thread-safe copy of the variables it requires, this class also contains a {@link Snapshot}
  * class to encapsulate those objects for atomic delivery.
+ * <br/><br/>
+ * Surface offsets are kept as <code>long</code> pixels, so that the whole <code>int</code> range of tile IDs can
+ * be scrolled to (at 256px tiles, an <code>int</code> pixel offset overflows about 8 million tiles from the
+ * origin).  Tile IDs themselves stay <code>int</code>, and the visible range is kept clear of overflowing at the
+ * ends of the <code>int</code> range.
  */
 public final class ViewState {
 
+    /* The furthest tile IDs that can be scrolled to.  One short of the int range, so that the usual
+     * 'for (x = range.left; x <= range.right; x++)' loops over a range still terminate */
+    static final int MIN_TILE_ID = Integer.MIN_VALUE + 1;
+    static final int MAX_TILE_ID = Integer.MAX_VALUE - 1;
+
     // finaly variables that don't change for the life of the surface
     public final int tileWidth;
     public final int tilesHoriz, tilesVert;
@@ -39,8 +48,8 @@ public final class ViewState {
     private final Integer[] tileIDLimits;
 
     // mutable variables that change as the user interacts with the UI
-    private int surfaceOffsetX, surfaceOffsetY;
-    private int canvasOffsetX, canvasOffsetY;
+    private long surfaceOffsetX, surfaceOffsetY;
+    private int canvasOffsetX, canvasOffsetY; // always within one tile, so int is fine
     private TileRange visibleTileIdRange;
     private float zoomFactor = 1.0f;
 
@@ -52,7 +61,8 @@ public final class ViewState {
      */
     class Snapshot {
 
-        public int surfaceOffsetX, surfaceOffsetY, canvasOffsetX, canvasOffsetY;
+        public long surfaceOffsetX, surfaceOffsetY;
+        public int canvasOffsetX, canvasOffsetY;
         public TileRange visibleTileIdRange;
         public float zoomFactor;
 
@@ -115,6 +125,34 @@ public final class ViewState {
         return visibleTileIdRange;
     }
 
+    /**
+     * @return The x coordinate (px, relative to the left of tile column 0) of the point at the centre of the surface.
+     *         Unlike the offsets, this doesn't depend on the surface size, so it's what gets saved to restore the
+     *         position on a differently sized surface (eg after rotation).
+     */
+    public synchronized long getCentreX() {
+        return surfaceW / 2 - surfaceOffsetX;
+    }
+
+    /**
+     * @return The y coordinate (px, relative to the top of tile row 0) of the point at the centre of the surface.
+     *         See {@link #getCentreX()}.
+     */
+    public synchronized long getCentreY() {
+        return surfaceH / 2 - surfaceOffsetY;
+    }
+
+    /**
+     * Update all relevant state fields to reflect a move that puts the specified point at the centre of the surface.
+     * @param centreX The x coordinate, as per {@link #getCentreX()}
+     * @param centreY The y coordinate, as per {@link #getCentreY()}
+     * @return <code>true</code> if after moving to the new offset, the visible tile ID range has changed
+     */
+    public synchronized boolean applyCentre(long centreX, long centreY) {
+
+        return applySurfaceOffset(surfaceW / 2 - centreX, surfaceH / 2 - centreY);
+    }
+
     /**
      * Update all relevant state fields to reflect a change in surface offset by the specified amounts.
      * @param relOffsetX The number of pixels to adjust the current x-offset by
@@ -132,44 +170,67 @@ public final class ViewState {
      * @param offsetY Set the current y-offset to this pixel value
      * @return <code>true</code> if after moving to the new offset, the visible tile ID range has changed
      */
-    public synchronized boolean applySurfaceOffset(int offsetX, int offsetY) {
-
-        Pair<Integer, Integer> range_horiz = calculateTileIDRange(offsetX, tilesHoriz);
-        Pair<Integer, Integer> range_vert = calculateTileIDRange(offsetY, tilesVert);
-
+    public synchronized boolean applySurfaceOffset(long offsetX, long offsetY) {
+
+        /* This gets called for every scroll event, so avoid allocating anything unless the visible range
+         * has actually changed (most scroll events move less than a tile).  Since the number of visible tiles is
+         * fixed, the start IDs fully determine the range.  They're worked out as longs, as they're only
+         * guaranteed to fit an int once checked against the limits below. */
+        long left = calculateStartTileID(offsetX);
+        long top = calculateStartTileID(offsetY);
+
+        /* the provider's limits if it has any, otherwise those of the int tile IDs.  As before, the provider's
+         * limits aren't applied to the initial position, only to moves from there */
+        long minLeft = MIN_TILE_ID, minTop = MIN_TILE_ID;
+        long maxRight = MAX_TILE_ID, maxBottom = MAX_TILE_ID;
         if (tileIDLimits != null && visibleTileIdRange != null) {
+            if (tileIDLimits[0] != null) minLeft = tileIDLimits[0];
+            if (tileIDLimits[1] != null) minTop = tileIDLimits[1];
+            if (tileIDLimits[2] != null) maxRight = tileIDLimits[2];
+            if (tileIDLimits[3] != null) maxBottom = tileIDLimits[3];
+        }
 
-            /* Important to check horizontal and vertical tileIDLimits independently, so that diagonal swipes that
-               hit a boundary continue to update the scroll.  (Eg, if I'm at the top boundary, and swipe up-left,
-               we still want the left part of that scroll to be obeyed.
-            */
-            if ((tileIDLimits[0] != null && range_horiz.first < tileIDLimits[0])  // left
-                    || (tileIDLimits[2] != null && range_horiz.second > tileIDLimits[2])) {  // right
-                // Horizontal check fails, keep existing values
-                range_horiz = new Pair<Integer, Integer>(visibleTileIdRange.left, visibleTileIdRange.right);
+        /* Important to check horizontal and vertical tileIDLimits independently, so that diagonal swipes that
+           hit a boundary continue to update the scroll.  (Eg, if I'm at the top boundary, and swipe up-left,
+           we still want the left part of that scroll to be obeyed.
+        */
+        if (left < minLeft || left + tilesHoriz - 1 > maxRight) {
+            // Horizontal check fails, keep existing values (or clamp, if there are none yet)
+            if (visibleTileIdRange != null) {
+                left = visibleTileIdRange.left;
                 offsetX = surfaceOffsetX;
+            } else {
+                left = Math.max(minLeft, Math.min(left, maxRight - tilesHoriz + 1));
+                offsetX = -left * tileWidth;
             }
+        }
 
-            if ((tileIDLimits[1] != null && range_vert.first < tileIDLimits[1]) // top
-                    || (tileIDLimits[3] != null && range_vert.second > tileIDLimits[3])) { // bottom
-                // Vertical check fails, keep existing values
-                range_vert = new Pair<Integer, Integer>(visibleTileIdRange.top, visibleTileIdRange.bottom);
+        if (top < minTop || top + tilesVert - 1 > maxBottom) {
+            // Vertical check fails, keep existing values (or clamp, if there are none yet)
+            if (visibleTileIdRange != null) {
+                top = visibleTileIdRange.top;
                 offsetY = surfaceOffsetY;
+            } else {
+                top = Math.max(minTop, Math.min(top, maxBottom - tilesVert + 1));
+                offsetY = -top * tileWidth;
             }
-
         }
 
-        TileRange newRange = new TileRange(range_horiz.first, range_vert.first, range_horiz.second, range_vert.second);
-        boolean rangeHasChanged = (visibleTileIdRange == null || !newRange.equals(visibleTileIdRange));
-        visibleTileIdRange = newRange;
+        boolean rangeHasChanged = (visibleTileIdRange == null
+                || left != visibleTileIdRange.left || top != visibleTileIdRange.top);
+        if (rangeHasChanged) {
+            // just add the number of tiles (-1 because there is a 0 tile row/column)
+            visibleTileIdRange = new TileRange((int) left, (int) top,
+                    (int) left + tilesHoriz - 1, (int) top + tilesVert - 1);
+        }
 
         surfaceOffsetX = offsetX;
         surfaceOffsetY = offsetY;
 
         // the grid stays the same size, once the user moves tileWidth pixels in any direction, we reset the canvas
         // offset (the tile IDs will have shifted by one when this happens, so the user will see an 'infinite' grid.
-        canvasOffsetX = surfaceOffsetX % tileWidth;
-        canvasOffsetY = surfaceOffsetY % tileWidth;
+        canvasOffsetX = (int) (surfaceOffsetX % tileWidth);
+        canvasOffsetY = (int) (surfaceOffsetY % tileWidth);
 
         // in the case we're offset to the right, we need to start rendering 'back' a tile (the longer tile range
         // handles the case of left offset)
@@ -185,25 +246,22 @@ public final class ViewState {
     }
 
     /**
-     * For either the x or the y direction, work out which range of IDs would appear (for the specified number of
-     * tiles) should the user scroll that many pixels in that direction.
+     * For either the x or the y direction, work out the first tile ID that would appear should the user scroll
+     * that many pixels in that direction.  The end of the range is always that ID plus the number of visible
+     * tiles in that direction (minus one).
      * @param coordPx The number of pixels for the x or y direction that the user has scrolled
-     * @param numGridTiles The number of visible tiles in that same direction.
-     * @return The range of tile IDs for that number of tiles
+     * @return The first tile ID for that direction
      */
-    private Pair<Integer, Integer> calculateTileIDRange(int coordPx, int numGridTiles) {
+    private long calculateStartTileID(long coordPx) {
 
-        int startTileId = -(coordPx / tileWidth);
+        long startTileId = -(coordPx / tileWidth);
 
         // positive offset means one tile before (negative handled by numTiles)
         if (coordPx % tileWidth > 0) {
             startTileId--;
         }
 
-        // just add the number of tiles (-1 because there is a 0 tile row/column)
-        int endTileId = startTileId + numGridTiles - 1;
-
-        return new Pair<Integer, Integer>(startTileId, endTileId);
+        return startTileId;
     }
 
 
@@ -225,6 +283,24 @@ public final class ViewState {
     }
 
 
+    /**
+     * @return The current zoom factor
+     */
+    public synchronized float getZoomFactor() {
+        return zoomFactor;
+    }
+
+    /**
+     * Set the zoom factor outright, eg to restore a saved value (see {@link #updateZoomFactor(float)} for gestures).
+     * @param zoomFactor The zoom factor, limited to the range 1.0 to 5.0
+     * @return The value as stored in the state
+     */
+    public synchronized float setZoomFactor(float zoomFactor) {
+
+        this.zoomFactor = Math.max(1.0f, Math.min(zoomFactor, 5.0f));
+        return this.zoomFactor;
+    }
+
     /**
      * Update the state for a pinch-to-zoom value.  This will be limited to the range 1.0 to 5.0.
      * @param zoomFactor The zoomFactor as provided by the view's scale gesture listener.
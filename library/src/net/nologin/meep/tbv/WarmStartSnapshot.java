@@ -0,0 +1,138 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The last frame the view rendered, along with where in the tile grid it was, saved so that it can be shown
+ * immediately the next time the surface is created (see {@link TiledBitmapView#setWarmStartFile(File)}).  The
+ * frame is stored as raw RGB_565 pixels, so loading it is a straight copy with no decoding.
+ */
+final class WarmStartSnapshot {
+
+    private static final int FILE_MAGIC = 0x54425657;
+    private static final int FILE_VERSION = 1;
+
+    // far bigger than any screen
+    private static final int MAX_DIMENSION = 8192;
+
+    final Bitmap bitmap;
+
+    // the grid position (px, relative to the top-left of tile (0,0)) of the bitmap's top-left corner
+    final long gridLeft, gridTop;
+
+    // the tile size the frame was rendered with, the position means nothing at another size
+    final int tileSize;
+
+    WarmStartSnapshot(Bitmap bitmap, long gridLeft, long gridTop, int tileSize) {
+        this.bitmap = bitmap;
+        this.gridLeft = gridLeft;
+        this.gridTop = gridTop;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Write the snapshot to the specified file, replacing it atomically (via a temporary file and a rename) so a
+     * reader never sees a partial snapshot.
+     */
+    void writeTo(File file) throws IOException {
+
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * h);
+        bitmap.copyPixelsToBuffer(pixels);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(w);
+            out.writeInt(h);
+            out.writeInt(tileSize);
+            out.writeLong(gridLeft);
+            out.writeLong(gridTop);
+            out.writeInt(pixels.capacity());
+            out.write(pixels.array());
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    /**
+     * @return The snapshot stored in the file, or <code>null</code> if there isn't one (or it can't be read)
+     */
+    static WarmStartSnapshot readFrom(File file) {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a warm start snapshot");
+            }
+            int w = in.readInt(), h = in.readInt();
+            int tileSize = in.readInt();
+            long gridLeft = in.readLong(), gridTop = in.readLong();
+
+            // 2 bytes a pixel - checked before allocating anything, in case the header is corrupt
+            int length = in.readInt();
+            if (w <= 0 || h <= 0 || w > MAX_DIMENSION || h > MAX_DIMENSION || length != w * h * 2) {
+                throw new IOException("Invalid snapshot size " + w + "x" + h);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+
+            Bitmap bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+            if (data.length != bitmap.getRowBytes() * h) {
+                throw new IOException("Snapshot pixel data doesn't match its size");
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(data));
+
+            return new WarmStartSnapshot(bitmap, gridLeft, gridTop, tileSize);
+
+        } catch (IOException e) {
+            Log.w(Utils.LOG_TAG, "Ignoring unreadable warm start snapshot " + file, e);
+            return null;
+        } catch (RuntimeException e) {
+            // eg a corrupt size making for an absurd bitmap
+            Log.w(Utils.LOG_TAG, "Ignoring invalid warm start snapshot " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+}
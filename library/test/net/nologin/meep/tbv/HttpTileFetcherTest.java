@@ -0,0 +1,269 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link HttpTileFetcher} against a local stand-in tile server (the JDK's built in HTTP server).  Each path
+ * behaves differently, see {@link TileServer}.
+ */
+public class HttpTileFetcherTest {
+
+    private static final byte[] TILE = {1, 2, 3, 4};
+    private static final int READ_TIMEOUT = 300;
+
+    private TileServer server;
+    private HttpServer http;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+
+        server = new TileServer();
+        http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http.createContext("/", server);
+        http.setExecutor(Executors.newCachedThreadPool()); // hanging requests mustn't hold up the others
+        http.start();
+
+        cacheDir = File.createTempFile("tilecache", "");
+        assertTrue(cacheDir.delete() && cacheDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+
+        server.release.countDown();
+        http.stop(0);
+        ((ExecutorService) http.getExecutor()).shutdownNow();
+
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void okIsFetchedFromNetworkThenRevalidated() throws IOException {
+
+        HttpTileFetcher fetcher = newFetcher(1);
+
+        HttpTileFetcher.Result first = fetcher.fetch(url("/tile"), "a");
+        assertEquals(HttpTileFetcher.SOURCE_NETWORK, first.source);
+        assertArrayEquals(TILE, first.data);
+
+        // the second request carries the ETag, and gets a 304
+        HttpTileFetcher.Result second = fetcher.fetch(url("/tile"), "b");
+        assertEquals(HttpTileFetcher.SOURCE_REVALIDATED, second.source);
+        assertArrayEquals(TILE, second.data);
+        assertEquals(1, server.notModified.get());
+    }
+
+    @Test
+    public void freshCacheEntryIsUsedWithoutARequest() throws IOException {
+
+        HttpTileFetcher fetcher = newFetcher(1);
+        fetcher.setMaxAge(60000);
+
+        fetcher.fetch(url("/tile"), "a");
+        HttpTileFetcher.Result second = fetcher.fetch(url("/tile"), "b");
+
+        assertEquals(HttpTileFetcher.SOURCE_CACHE, second.source);
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void notFoundIsNull() throws IOException {
+        assertNull(newFetcher(1).fetch(url("/missing"), "a"));
+    }
+
+    @Test
+    public void serverErrorIsAFailure() {
+
+        try {
+            newFetcher(1).fetch(url("/error"), "a");
+            fail("expected IOException");
+        } catch (InterruptedIOException e) {
+            fail("a server error isn't a cancellation");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void timeoutWithoutCachedCopyIsAFailureNotACancellation() {
+
+        server.slow = true;
+        try {
+            newFetcher(1).fetch(url("/tile"), "a");
+            fail("expected IOException");
+        } catch (InterruptedIOException e) {
+            fail("a timeout isn't a cancellation");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void timeoutWithCachedCopyFallsBackToIt() throws IOException {
+
+        HttpTileFetcher fetcher = newFetcher(1);
+        fetcher.fetch(url("/tile"), "a");
+
+        server.slow = true;
+        HttpTileFetcher.Result result = fetcher.fetch(url("/tile"), "b");
+
+        assertEquals(HttpTileFetcher.SOURCE_STALE, result.source);
+        assertArrayEquals(TILE, result.data);
+    }
+
+    @Test
+    public void cancelAbortsTransfer() throws Exception {
+
+        final HttpTileFetcher fetcher = newFetcher(1);
+        Future<HttpTileFetcher.Result> hung = fetchAsync(fetcher, "/hang", "a");
+
+        assertTrue(server.hanging.await(5, TimeUnit.SECONDS));
+        fetcher.cancel("a");
+
+        assertCancelled(hung);
+    }
+
+    @Test
+    public void cancelAbortsWaitForConnectionSlot() throws Exception {
+
+        HttpTileFetcher fetcher = newFetcher(1);
+        fetcher.setTimeouts(READ_TIMEOUT, 60000); // so the hanging request holds the only slot throughout
+        Future<HttpTileFetcher.Result> hung = fetchAsync(fetcher, "/hang", "a");
+        assertTrue(server.hanging.await(5, TimeUnit.SECONDS));
+
+        Future<HttpTileFetcher.Result> waiting = fetchAsync(fetcher, "/tile", "b");
+        Thread.sleep(100); // let it start waiting for the slot
+        fetcher.cancel("b");
+
+        assertCancelled(waiting);
+        assertFalse(hung.isDone());
+
+        // the slot is still usable once the hanging request finishes
+        server.release.countDown();
+        assertEquals(HttpTileFetcher.SOURCE_NETWORK, hung.get(5, TimeUnit.SECONDS).source);
+        assertEquals(HttpTileFetcher.SOURCE_NETWORK, fetcher.fetch(url("/other"), "c").source);
+    }
+
+    private HttpTileFetcher newFetcher(int maxConnectionsPerHost) {
+
+        HttpTileFetcher fetcher = new HttpTileFetcher(cacheDir, maxConnectionsPerHost);
+        fetcher.setTimeouts(READ_TIMEOUT, READ_TIMEOUT);
+        return fetcher;
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + http.getAddress().getPort() + path);
+    }
+
+    private Future<HttpTileFetcher.Result> fetchAsync(final HttpTileFetcher fetcher, String path, final Object tag)
+            throws IOException {
+
+        final URL url = url(path);
+        FutureTask<HttpTileFetcher.Result> task = new FutureTask<HttpTileFetcher.Result>(
+                new Callable<HttpTileFetcher.Result>() {
+                    public HttpTileFetcher.Result call() throws IOException {
+                        return fetcher.fetch(url, tag);
+                    }
+                });
+        new Thread(task).start();
+        return task;
+    }
+
+    private static void assertCancelled(Future<HttpTileFetcher.Result> fetch) throws Exception {
+
+        try {
+            fetch.get(5, TimeUnit.SECONDS);
+            fail("expected the fetch to be cancelled");
+        } catch (ExecutionException e) {
+            assertTrue("expected InterruptedIOException, got " + e.getCause(),
+                    e.getCause() instanceof InterruptedIOException);
+        }
+    }
+
+    /**
+     * <code>/missing</code> is a 404, <code>/error</code> a 500, <code>/hang</code> doesn't respond until
+     * {@link #release} is counted down, and anything else is a tile with an ETag (a 304 if the request already has
+     * it).  If {@link #slow} is set, every response is held back past the read timeout.
+     */
+    private static class TileServer implements HttpHandler {
+
+        final CountDownLatch hanging = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+        volatile boolean slow;
+
+        public void handle(HttpExchange ex) throws IOException {
+
+            requests.incrementAndGet();
+            String path = ex.getRequestURI().getPath();
+            try {
+                if (slow) {
+                    Thread.sleep(READ_TIMEOUT * 3);
+                }
+                if (path.equals("/hang")) {
+                    hanging.countDown();
+                    release.await();
+                }
+            } catch (InterruptedException e) {
+                ex.close();
+                return;
+            }
+
+            if (path.equals("/missing")) {
+                ex.sendResponseHeaders(404, -1);
+            } else if (path.equals("/error")) {
+                ex.sendResponseHeaders(500, -1);
+            } else if ("\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                ex.sendResponseHeaders(304, -1);
+            } else {
+                ex.getResponseHeaders().set("ETag", "\"v1\"");
+                ex.sendResponseHeaders(200, TILE.length);
+                OutputStream out = ex.getResponseBody();
+                out.write(TILE);
+                out.close();
+            }
+            ex.close();
+        }
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ *    TiledBitmapView - A library providing a view component rendered dynamically with tile data
+ *    Copyright 2013 Barry O'Neill (http://meep.nologin.net/)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package net.nologin.meep.tbv.packbuilder;
+
+import net.nologin.meep.tbv.TilePackWriter;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Command line tool that slices a large source image into a pyramid of tiles (level 0 at full resolution, each
+ * level above at half the resolution of the one below, up to the level where the whole image fits in a single
+ * tile), and writes them to a tile pack for the library's <code>TilePackTileProvider</code>.
+ * <br/><br/>
+ * The source is streamed in row by row, so the full image is never held in memory.  Each level keeps a single
+ * strip buffer one tile high - as a strip fills, its tiles are cut out and encoded, and it's downsampled to feed
+ * half a strip into the level above.  Peak memory is roughly two full-width strips, whatever the image height, so
+ * images far larger than the available RAM can be processed.  Tile encoding and downsampling run in parallel on a
+ * fork-join pool.
+ * <br/><br/>
+ * PNG and JPEG sources are decoded in a single sequential pass, unless they're interlaced (PNG) or progressive
+ * (JPEG), where the rows don't arrive in order.  Those, and other formats, are read a strip at a time by source
+ * region instead, and as most readers can only reach a region by decoding everything above it, the time taken
+ * then grows with the square of the image height - convert very tall sources to a plain PNG or baseline JPEG
+ * first.
+ * <br/><br/>
+ * Usage:
+ * <code>TilePackBuilder [-tilesize N] [-format png|jpg] [-threads N] &lt;input image&gt; &lt;output pack&gt;</code>
+ */
+public class TilePackBuilder {
+
+    // same as Tile.DEFAULT_TILE_SIZE in the library (which can't be referenced outside Android)
+    private static final int DEFAULT_TILE_SIZE = 256;
+
+    // below this many rows, downsampling isn't worth splitting further
+    private static final int MIN_DOWNSAMPLE_ROWS = 16;
+
+    // the native metadata formats of the JDK's PNG and JPEG readers, see isSequential()
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private final int tileSize;
+    private final String format;
+    private final ForkJoinPool pool;
+
+    private TilePackWriter writer;
+    private LevelStrip[] strips;
+
+    private ProgressListener progressListener;
+
+    /**
+     * Receives progress reports from {@link #build(File, File)}, on the calling thread.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called once the source image's size is known, before any tiles are written
+         *
+         * @param width    The source width (px)
+         * @param height   The source height (px)
+         * @param topLevel The highest level of detail that will be written (the levels are 0 to topLevel)
+         */
+        void onStart(int width, int height, int topLevel);
+
+        /**
+         * Called after each strip of the source image has been read and sliced
+         *
+         * @param rowsRead  The number of source rows read so far
+         * @param totalRows The source height
+         */
+        void onRowsRead(int rowsRead, int totalRows);
+    }
+
+    /**
+     * @param tileSize The tile side length (px)
+     * @param format   The tile encoding, "png" or "jpg"
+     * @param threads  The number of threads for encoding and downsampling
+     */
+    public TilePackBuilder(int tileSize, String format, int threads) {
+        this.tileSize = tileSize;
+        this.format = format;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * @param listener Receives progress reports from {@link #build(File, File)}, or <code>null</code> for none
+     *                 (the default).
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    public static void main(String[] args) {
+
+        int tileSize = DEFAULT_TILE_SIZE;
+        String format = "png";
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-tilesize".equals(args[i])) {
+                    tileSize = Integer.parseInt(args[++i]);
+                } else if ("-format".equals(args[i])) {
+                    format = args[++i].toLowerCase();
+                } else if ("-threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                } else {
+                    files.add(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            files.clear(); // bad/missing option value, fall through to usage
+        }
+
+        boolean validFormat = "png".equals(format) || "jpg".equals(format);
+        if (files.size() != 2 || tileSize <= 0 || tileSize % 2 != 0 || threads <= 0 || !validFormat) {
+            System.err.println("Usage: TilePackBuilder [-tilesize N] [-format png|jpg] [-threads N] "
+                    + "<input image> <output pack>");
+            System.exit(2);
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            final String input = files.get(0);
+
+            TilePackBuilder builder = new TilePackBuilder(tileSize, format, threads);
+            builder.setProgressListener(new ProgressListener() {
+
+                public void onStart(int width, int height, int topLevel) {
+                    System.out.printf("%s: %dx%d, levels 0-%d%n", input, width, height, topLevel);
+                }
+
+                public void onRowsRead(int rowsRead, int totalRows) {
+                    System.out.printf("\rRead %d/%d rows", rowsRead, totalRows);
+                    if (rowsRead == totalRows) {
+                        System.out.println();
+                    }
+                }
+            });
+
+            int numTiles = builder.build(new File(input), new File(files.get(1)));
+            System.out.printf("Wrote %d tiles in %.1fs%n", numTiles, (System.currentTimeMillis() - start) / 1000.0);
+        } catch (Exception e) {
+            System.err.println("Failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Slice the input image and write the pack.
+     *
+     * @return The number of tiles written
+     * @throws IOException If the image can't be read, or the pack can't be written
+     */
+    public int build(File input, File output) throws IOException, InterruptedException, ExecutionException {
+
+        ImageInputStream iis = ImageIO.createImageInputStream(input);
+        if (iis == null) {
+            throw new IOException("Can't open " + input);
+        }
+
+        try {
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + input);
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(iis, true); // the metadata says whether the rows can be streamed
+
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            // the top level is the first where the whole image fits in one tile
+            int topLevel = 0;
+            while (scaledSize(width, topLevel) > tileSize || scaledSize(height, topLevel) > tileSize) {
+                topLevel++;
+            }
+
+            ProgressListener listener = progressListener;
+            if (listener != null) {
+                listener.onStart(width, height, topLevel);
+            }
+
+            strips = new LevelStrip[topLevel + 1];
+            for (int level = 0; level <= topLevel; level++) {
+                strips[level] = new LevelStrip(level, scaledSize(width, level), scaledSize(height, level));
+            }
+
+            writer = new TilePackWriter(output, tileSize);
+
+            if (isSequential(reader)) {
+                readSequentially(reader, width, height, listener);
+            } else {
+                readInStrips(reader, width, height, listener);
+            }
+
+            int numTiles = writer.getNumTiles();
+            writer.finish();
+
+            return numTiles;
+
+        } finally {
+            iis.close();
+            pool.shutdown();
+        }
+    }
+
+    /* Whether the reader decodes the image top to bottom in a single pass, so it can be streamed row by row */
+    private static boolean isSequential(ImageReader reader) throws IOException {
+
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        String format = metadata == null ? null : metadata.getNativeMetadataFormatName();
+
+        if (PNG_METADATA_FORMAT.equals(format)) {
+            Node header = findNode(metadata.getAsTree(format), "IHDR");
+            return header != null && "none".equals(getAttribute(header, "interlaceMethod"));
+        }
+        if (JPEG_METADATA_FORMAT.equals(format)) {
+            // process 0 is baseline, 1 extended sequential, 2 progressive
+            Node frame = findNode(metadata.getAsTree(format), "sof");
+            String process = frame == null ? null : getAttribute(frame, "process");
+            return "0".equals(process) || "1".equals(process);
+        }
+        return false;
+    }
+
+    private static Node findNode(Node node, String name) {
+
+        if (name.equals(node.getNodeName())) {
+            return node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Node found = findNode(child, name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private static String getAttribute(Node node, String name) {
+        Node attr = node.getAttributes().getNamedItem(name);
+        return attr == null ? null : attr.getNodeValue();
+    }
+
+    /* Decode the whole image in one pass, into a destination that only keeps the most recent rows, feeding each row
+     * to level 0 as the reader reports it decoded */
+    private void readSequentially(ImageReader reader, final int width, final int height,
+                                  final ProgressListener listener) throws IOException, InterruptedException,
+            ExecutionException {
+
+        ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        final RowRingImage ring = RowRingImage.create(type, width, height, tileSize);
+        if (ring == null) {
+            readInStrips(reader, width, height, listener); // a layout the ring can't hold
+            return;
+        }
+
+        final int[] row = new int[width];
+        final Exception[] failure = new Exception[1];
+
+        IIOReadUpdateListener rowFeeder = new IIOReadUpdateListener() {
+
+            int nextRow = 0;
+
+            public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int w, int h,
+                                    int periodX, int periodY, int[] bands) {
+
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    if (minY != nextRow || periodY != 1 || h > tileSize) {
+                        throw new IOException("Rows decoded out of order, at row " + minY);
+                    }
+                    for (int y = minY; y < minY + h; y++) {
+                        ring.image.getRGB(0, y, width, 1, row, 0, width);
+                        feed(0, row, 1);
+                        nextRow++;
+                        if (listener != null && (nextRow % tileSize == 0 || nextRow == height)) {
+                            listener.onRowsRead(nextRow, height);
+                        }
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                    source.abort();
+                }
+            }
+
+            public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                    int minX, int minY, int periodX, int periodY, int[] bands) {
+            }
+
+            public void passComplete(ImageReader source, BufferedImage image) {
+            }
+
+            public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                                             int maxPass, int minX, int minY, int periodX, int periodY,
+                                             int[] bands) {
+            }
+
+            public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, int w,
+                                        int h, int periodX, int periodY, int[] bands) {
+            }
+
+            public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+            }
+        };
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(ring.image);
+        reader.addIIOReadUpdateListener(rowFeeder);
+        try {
+            reader.read(0, param);
+        } finally {
+            reader.removeIIOReadUpdateListener(rowFeeder);
+        }
+
+        if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        } else if (failure[0] instanceof InterruptedException) {
+            throw (InterruptedException) failure[0];
+        } else if (failure[0] instanceof ExecutionException) {
+            throw (ExecutionException) failure[0];
+        } else if (failure[0] != null) {
+            throw (RuntimeException) failure[0];
+        }
+        if (strips[0].tileRow * tileSize < height) {
+            throw new IOException("Image ended after " + strips[0].tileRow * tileSize + " rows");
+        }
+    }
+
+    /* Read the image a tile-high strip at a time by source region, for readers that can't be streamed */
+    private void readInStrips(ImageReader reader, int width, int height, ProgressListener listener)
+            throws IOException, InterruptedException, ExecutionException {
+
+        for (int top = 0; top < height; top += tileSize) {
+
+            int rows = Math.min(tileSize, height - top);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new java.awt.Rectangle(0, top, width, rows));
+            BufferedImage region = reader.read(0, param);
+
+            int[] pixels = region.getRGB(0, 0, width, rows, null, 0, width);
+            feed(0, pixels, rows);
+
+            if (listener != null) {
+                listener.onRowsRead(top + rows, height);
+            }
+        }
+    }
+
+    private static int scaledSize(int size, int level) {
+        // ceil(size / 2^level)
+        return (int) ((size + (1L << level) - 1) >> level);
+    }
+
+    /* Append rows to a level's strip, flushing it when full (or the level's last rows have arrived) */
+    private void feed(int level, int[] pixels, int numRows)
+            throws IOException, InterruptedException, ExecutionException {
+
+        LevelStrip strip = strips[level];
+
+        System.arraycopy(pixels, 0, strip.pixels, strip.rowsFilled * strip.width, numRows * strip.width);
+        strip.rowsFilled += numRows;
+
+        boolean lastStrip = (strip.tileRow + 1) * tileSize >= strip.height;
+        boolean lastRowsIn = lastStrip && strip.tileRow * tileSize + strip.rowsFilled >= strip.height;
+        if (strip.rowsFilled == tileSize || lastRowsIn) {
+            flush(strip);
+        }
+    }
+
+    private void flush(LevelStrip strip) throws IOException, InterruptedException, ExecutionException {
+
+        // cut and encode this strip's tiles in parallel
+        List<Callable<Void>> encodeTasks = new ArrayList<Callable<Void>>();
+        for (int tileX = 0; tileX * tileSize < strip.width; tileX++) {
+            encodeTasks.add(new EncodeTileTask(strip, tileX));
+        }
+        for (Future<Void> f : pool.invokeAll(encodeTasks)) {
+            f.get(); // rethrow any failure
+        }
+
+        // then feed the level above with a downsampled copy
+        if (strip.level + 1 < strips.length) {
+
+            int outWidth = (strip.width + 1) / 2;
+            int outRows = (strip.rowsFilled + 1) / 2;
+            int[] out = new int[outWidth * outRows];
+
+            pool.invoke(new DownsampleTask(strip.pixels, strip.width, strip.rowsFilled, out, outWidth, 0, outRows));
+
+            feed(strip.level + 1, out, outRows);
+        }
+
+        strip.tileRow++;
+        strip.rowsFilled = 0;
+    }
+
+    /**
+     * A destination image the size of the source, for a single sequential read, whose data buffer only holds the
+     * most recent rows - row <code>y</code> is stored at <code>y % ringRows</code>, overwriting an earlier row.
+     */
+    private static class RowRingImage {
+
+        final BufferedImage image;
+
+        private RowRingImage(BufferedImage image) {
+            this.image = image;
+        }
+
+        /* null if the type's layout isn't a single bank of whole rows, or is too big to index with an int */
+        static RowRingImage create(ImageTypeSpecifier type, int width, int height, int ringRows) {
+
+            SampleModel sampleModel = type.getSampleModel(width, height);
+            int rowElems;
+            if (sampleModel instanceof ComponentSampleModel) {
+                rowElems = ((ComponentSampleModel) sampleModel).getScanlineStride();
+            } else if (sampleModel instanceof MultiPixelPackedSampleModel) {
+                rowElems = ((MultiPixelPackedSampleModel) sampleModel).getScanlineStride();
+            } else if (sampleModel instanceof SinglePixelPackedSampleModel) {
+                rowElems = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+            } else {
+                return null;
+            }
+            if (sampleModel.getNumDataElements() < 1 || sampleModel instanceof BandedSampleModel
+                    || (long) rowElems * height > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            DataBuffer buffer = new RowRingBuffer(sampleModel.getDataType(), rowElems, height, ringRows);
+            WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+            ColorModel colorModel = type.getColorModel();
+            return new RowRingImage(new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null));
+        }
+    }
+
+    /**
+     * A single bank data buffer, nominally holding every row of the image, but storing only the last few.
+     */
+    private static class RowRingBuffer extends DataBuffer {
+
+        private final int[] data;
+        private final int rowElems, ringRows, mask;
+
+        RowRingBuffer(int dataType, int rowElems, int height, int ringRows) {
+            super(dataType, rowElems * height);
+            this.data = new int[rowElems * ringRows];
+            this.rowElems = rowElems;
+            this.ringRows = ringRows;
+            this.mask = dataType == TYPE_BYTE ? 0xFF : dataType == TYPE_USHORT ? 0xFFFF : -1;
+        }
+
+        private int index(int i) {
+            return (i / rowElems % ringRows) * rowElems + i % rowElems;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return data[index(i)];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            data[index(i)] = val & mask;
+        }
+    }
+
+    /**
+     * The strip buffer for one level of the pyramid
+     */
+    private class LevelStrip {
+
+        final int level, width, height;
+        final int[] pixels;
+
+        int tileRow = 0, rowsFilled = 0;
+
+        LevelStrip(int level, int width, int height) {
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.pixels = new int[width * tileSize];
+        }
+    }
+
+    /**
+     * Cuts one tile out of a full strip, padding partial tiles at the right/bottom edges (so that every tile in
+     * the pack has the same dimensions), and adds it to the pack.
+     */
+    private class EncodeTileTask implements Callable<Void> {
+
+        private final LevelStrip strip;
+        private final int tileX;
+
+        EncodeTileTask(LevelStrip strip, int tileX) {
+            this.strip = strip;
+            this.tileX = tileX;
+        }
+
+        @Override
+        public Void call() throws IOException {
+
+            boolean jpg = "jpg".equals(format);
+
+            // jpeg has no alpha, the padding is left black there (transparent for png)
+            BufferedImage tile = new BufferedImage(tileSize, tileSize,
+                    jpg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            int[] tilePixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+
+            int left = tileX * tileSize;
+            int cols = Math.min(tileSize, strip.width - left);
+            for (int y = 0; y < strip.rowsFilled; y++) {
+                System.arraycopy(strip.pixels, y * strip.width + left, tilePixels, y * tileSize, cols);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            if (!ImageIO.write(tile, format, bytes)) {
+                throw new IOException("No writer for format " + format);
+            }
+
+            writer.addTile(strip.level, tileX, strip.tileRow, bytes.toByteArray(), 0, bytes.size());
+            return null;
+        }
+    }
+
+    /**
+     * Halves the resolution of a range of output rows, averaging each 2x2 block of source pixels (per channel,
+     * including alpha).  Blocks that hang over the right/bottom edge average whatever source pixels exist.
+     */
+    private static class DownsampleTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src, out;
+        private final int srcWidth, srcRows, outWidth, fromRow, toRow;
+
+        DownsampleTask(int[] src, int srcWidth, int srcRows, int[] out, int outWidth, int fromRow, int toRow) {
+            this.src = src;
+            this.srcWidth = srcWidth;
+            this.srcRows = srcRows;
+            this.out = out;
+            this.outWidth = outWidth;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (toRow - fromRow > MIN_DOWNSAMPLE_ROWS) {
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new DownsampleTask(src, srcWidth, srcRows, out, outWidth, fromRow, mid),
+                        new DownsampleTask(src, srcWidth, srcRows, out, outWidth, mid, toRow));
+                return;
+            }
+
+            for (int oy = fromRow; oy < toRow; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+
+                    int a = 0, r = 0, g = 0, b = 0, n = 0;
+
+                    for (int sy = oy * 2; sy < Math.min(oy * 2 + 2, srcRows); sy++) {
+                        for (int sx = ox * 2; sx < Math.min(ox * 2 + 2, srcWidth); sx++) {
+                            int p = src[sy * srcWidth + sx];
+                            a += p >>> 24;
+                            r += (p >> 16) & 0xFF;
+                            g += (p >> 8) & 0xFF;
+                            b += p & 0xFF;
+                            n++;
+                        }
+                    }
+
+                    out[oy * outWidth + ox] = (a / n) << 24 | (r / n) << 16 | (g / n) << 8 | (b / n);
+                }
+            }
+        }
+    }
+
+}